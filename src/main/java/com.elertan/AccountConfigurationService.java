@@ -83,6 +83,14 @@ public class AccountConfigurationService implements BUPluginLifecycle {
         return accountConfigurationMap.get(accountHash);
     }
 
+    // Configurations of every account, for work that can start before the account is known
+    public List<AccountConfiguration> getAccountConfigurations() {
+        if (!isReady()) {
+            return new ArrayList<>();
+        }
+        return new ArrayList<>(accountConfigurationMap.values());
+    }
+
     public AccountConfiguration getCurrentAccountConfiguration() {
         return getAccountConfiguration(client.getAccountHash());
     }
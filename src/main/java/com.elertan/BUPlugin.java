@@ -244,6 +244,7 @@ public final class BUPlugin extends Plugin {
         buPartyService.onGameStateChanged(event);
         achievementDiaryService.onGameStateChanged(event);
         itemUnlockService.onGameStateChanged(event);
+        remoteStorageService.onGameStateChanged(event);
     }
 
     @Subscribe
@@ -23,6 +23,8 @@ public interface BUPluginConfig extends Config {
     String partySection = "partySection";
     String SHOULD_AUTOMATICALLY_JOIN_PARTY_KEY = "shouldAutomaticallyJoinParty";
     String SHOULD_CHANGE_TO_PARTY_EVEN_IF_ALREADY_IN_PARTY = "shouldChangeToPartyEvenIfAlreadyInParty";
+    @ConfigSection(name = "Advanced", description = "Network settings, only change these when asked to", position = 5, closedByDefault = true)
+    String advancedSection = "advancedSection";
     String ACCOUNT_CONFIG_MAP_JSON_KEY = "accountConfigMapJson";
     String AUTO_OPEN_ACCOUNT_CONFIGURATION_DISABLED_FOR_ACCOUNT_HASHES_JSON_KEY = "autoOpenAccountConfigurationDisabledForAccountHashesJson";
 
@@ -150,6 +152,22 @@ public interface BUPluginConfig extends Config {
         return false;
     }
 
+    @ConfigItem(keyName = "hedgeReads", name = "Hedge slow reads", description = "Sends a slow read a second time and uses whichever answers first, this can speed up loading on an unreliable connection", section = advancedSection)
+    default boolean hedgeReads() {
+        return false;
+    }
+
+    @ConfigItem(keyName = "compressWrites", name = "Compress large writes", description = "Sends large writes compressed to save bandwidth, they are sent uncompressed again as soon as the database refuses one", section = advancedSection)
+    default boolean compressWrites() {
+        return false;
+    }
+
+    @ConfigItem(keyName = "groundItemWritesPerMinute", name = "Ground item writes per minute", description = "How many ground item ownership updates may be sent per minute, updates beyond that are delayed and merged. Lower this if your database runs into its plan limits", section = advancedSection)
+    @Range(min = 10, max = 6000)
+    default int groundItemWritesPerMinute() {
+        return 120;
+    }
+
     @ConfigItem(keyName = ACCOUNT_CONFIG_MAP_JSON_KEY, name = "Account config map json", description = "A map of account names to their respective config", hidden = true)
     default String accountConfigMapJson() {
         return null;
@@ -272,6 +272,23 @@ public class ItemUnlockService implements BUPluginLifecycle {
                     buChatService.sendMessage(builder.build());
                 });
             }
+
+            @Override
+            public void onBatchUpdate(Collection<UnlockedItem> updated,
+                Collection<UnlockedItem> deleted) {
+                // Every unlock and re-lock is still announced on its own
+                for (UnlockedItem unlockedItem : updated) {
+                    onUpdate(unlockedItem);
+                }
+                for (UnlockedItem unlockedItem : deleted) {
+                    onDelete(unlockedItem);
+                }
+            }
+
+            @Override
+            public void onFullUpdate(Map<Integer, UnlockedItem> unlockedItemsMap) {
+                // Unlocks made while logged out are not announced, same as on a plain login
+            }
         };
         unlockedItemsDataProvider.addUnlockedItemsMapListener(unlockedItemsMapListener);
         unlockedItemsDataProvider.addStateListener(unlockedItemDataProviderStateListener);
@@ -346,8 +363,9 @@ public class ItemUnlockService implements BUPluginLifecycle {
     }
 
     public boolean hasUnlockedItem(int itemId) throws IllegalStateException {
-        if (unlockedItemsDataProvider.getState() != UnlockedItemsDataProvider.State.Ready) {
-            throw new IllegalStateException("State is not READY");
+        // Policies only read, so a snapshot that is not reconciled yet is good enough
+        if (!unlockedItemsDataProvider.isReadable()) {
+            throw new IllegalStateException("Unlocked items are not readable");
         }
 
         if (AUTO_UNLOCKED_ITEMS.contains(itemId)) {
@@ -280,37 +280,25 @@ public class MemberService implements BUPluginLifecycle {
             memberToPromote.getJoinedAt(),
             MemberRole.Owner
         );
-        membersDataProvider.updateMember(newMemberToPromote).whenComplete((void1, throwable) -> {
+        List<Member> membersToUpdate = new ArrayList<>();
+        membersToUpdate.add(newMemberToPromote);
+        for (Member memberToDemote : membersToDemote) {
+            Member newMemberToDemote = new Member(
+                memberToDemote.getAccountHash(),
+                memberToDemote.getName(),
+                memberToDemote.getJoinedAt(),
+                MemberRole.Member
+            );
+            membersToUpdate.add(newMemberToDemote);
+        }
+
+        // One multi-location write, so the group never ends up with zero or two owners
+        membersDataProvider.updateMembers(membersToUpdate).whenComplete((void1, throwable) -> {
             if (throwable != null) {
                 future.completeExceptionally(throwable);
                 return;
             }
 
-            List<CompletableFuture<Void>> demoteFutures = new ArrayList<>();
-            for (Member memberToDemote : membersToDemote) {
-                Member newMemberToDemote = new Member(
-                    memberToDemote.getAccountHash(),
-                    memberToDemote.getName(),
-                    memberToDemote.getJoinedAt(),
-                    MemberRole.Member
-                );
-                CompletableFuture<Void> fut = membersDataProvider.updateMember(newMemberToDemote);
-                demoteFutures.add(fut);
-            }
-
-            if (!demoteFutures.isEmpty()) {
-                CompletableFuture.allOf(demoteFutures.toArray(new CompletableFuture[0]))
-                    .whenComplete((void2, throwable2) -> {
-                        if (throwable2 != null) {
-                            future.completeExceptionally(throwable2);
-                            return;
-                        }
-
-                        future.complete(null);
-                    });
-                return;
-            }
-
             future.complete(null);
         });
 
@@ -9,8 +9,10 @@ import com.elertan.utils.ListenerUtils;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import java.time.Duration;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
@@ -98,6 +100,27 @@ public class GroundItemOwnedByDataProvider implements BUPluginLifecycle {
                     }
                 }
             }
+
+            @Override
+            public void onBatchUpdate(Map<GroundItemOwnedByKey, GroundItemOwnedByData> updated,
+                Set<GroundItemOwnedByKey> deleted) {
+                if (groundItemOwnedByMap == null) {
+                    return;
+                }
+                groundItemOwnedByMap.putAll(updated);
+                groundItemOwnedByMap.keySet().removeAll(deleted);
+
+                for (Listener listener : maplisteners) {
+                    try {
+                        listener.onBatchUpdate(updated, deleted);
+                    } catch (Exception e) {
+                        log.error(
+                            "Error while notifying listener on GroundItemOwnedByDataProvider.",
+                            e
+                        );
+                    }
+                }
+            }
         };
 
         tryInitialize();
@@ -224,6 +247,21 @@ public class GroundItemOwnedByDataProvider implements BUPluginLifecycle {
         return storagePort.delete(key);
     }
 
+    public CompletableFuture<Void> deleteMany(Collection<GroundItemOwnedByKey> keys) {
+        if (storagePort == null) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            Exception ex = new IllegalStateException("storagePort is null");
+            future.completeExceptionally(ex);
+            return future;
+        }
+
+        if (groundItemOwnedByMap != null) {
+            groundItemOwnedByMap.keySet().removeAll(keys);
+        }
+
+        return storagePort.deleteMany(keys);
+    }
+
     public enum State {
         NotReady,
         Ready
@@ -251,5 +289,8 @@ public class GroundItemOwnedByDataProvider implements BUPluginLifecycle {
         void onUpdate(GroundItemOwnedByKey key, GroundItemOwnedByData value);
 
         void onDelete(GroundItemOwnedByKey key);
+
+        void onBatchUpdate(Map<GroundItemOwnedByKey, GroundItemOwnedByData> updated,
+            Set<GroundItemOwnedByKey> deleted);
     }
 }
@@ -5,11 +5,18 @@ import com.elertan.models.Member;
 import com.elertan.remote.KeyValueStoragePort;
 import com.elertan.remote.RemoteStorageService;
 import com.elertan.utils.ListenerUtils;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import java.io.File;
+import java.lang.reflect.Type;
 import java.time.Duration;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
@@ -22,20 +29,29 @@ import lombok.extern.slf4j.Slf4j;
 @Singleton
 public class MembersDataProvider implements BUPluginLifecycle {
 
+    private static final String SNAPSHOT_NAME = "members";
+    private static final Type SNAPSHOT_TYPE = new TypeToken<Map<Long, Member>>() {
+    }.getType();
+
     private final ConcurrentLinkedQueue<MemberMapListener> memberMapListeners = new ConcurrentLinkedQueue<>();
     private final ConcurrentLinkedQueue<Consumer<State>> stateListeners = new ConcurrentLinkedQueue<>();
     private final ConcurrentSkipListSet<Long> optimisticallyAddedMembers = new ConcurrentSkipListSet<>();
     @Inject
     private RemoteStorageService remoteStorageService;
+    @Inject
+    private Gson gson;
     private KeyValueStoragePort<Long, Member> keyValueStoragePort;
     private KeyValueStoragePort.Listener<Long, Member> storagePortListener;
     private ConcurrentHashMap<Long, Member> membersMap = new ConcurrentHashMap<>();
+    private SnapshotCache<Long, Member> snapshotCache;
+    private long startUpNanos;
     @Getter
     private State state = State.NotReady;
     private final Consumer<RemoteStorageService.State> remoteStorageServiceStateListener = this::remoteStorageServiceStateListener;
 
     @Override
     public void startUp() throws Exception {
+        startUpNanos = System.nanoTime();
         remoteStorageService.addStateListener(remoteStorageServiceStateListener);
 
         storagePortListener = new KeyValueStoragePort.Listener<Long, Member>() {
@@ -92,6 +108,17 @@ public class MembersDataProvider implements BUPluginLifecycle {
                     }
                 }
             }
+
+            @Override
+            public void onBatchUpdate(Map<Long, Member> updated, Set<Long> deleted) {
+                // Groups are small, member listeners handle each change on their own
+                for (Map.Entry<Long, Member> entry : updated.entrySet()) {
+                    onUpdate(entry.getKey(), entry.getValue());
+                }
+                for (Long key : deleted) {
+                    onDelete(key);
+                }
+            }
         };
 
         tryInitialize();
@@ -100,6 +127,8 @@ public class MembersDataProvider implements BUPluginLifecycle {
 
     @Override
     public void shutDown() throws Exception {
+        saveSnapshot();
+        snapshotCache = null;
         state = State.NotReady;
 
         remoteStorageService.removeStateListener(remoteStorageServiceStateListener);
@@ -181,6 +210,22 @@ public class MembersDataProvider implements BUPluginLifecycle {
         return keyValueStoragePort.update(member.getAccountHash(), member);
     }
 
+    public CompletableFuture<Void> updateMembers(Collection<Member> members) {
+        if (keyValueStoragePort == null) {
+            throw new IllegalStateException("storagePort is null");
+        }
+        if (membersMap == null) {
+            throw new IllegalStateException("membersMap is null");
+        }
+
+        Map<Long, Member> membersByAccountHash = new HashMap<>();
+        for (Member member : members) {
+            membersByAccountHash.put(member.getAccountHash(), member);
+        }
+        membersMap.putAll(membersByAccountHash);
+        return keyValueStoragePort.updateMany(membersByAccountHash);
+    }
+
     public CompletableFuture<Void> removeMember(long accountHash) {
         if (keyValueStoragePort == null) {
             throw new IllegalStateException("storagePort is null");
@@ -194,6 +239,8 @@ public class MembersDataProvider implements BUPluginLifecycle {
 
     private void remoteStorageServiceStateListener(RemoteStorageService.State state) {
         if (state == RemoteStorageService.State.NotReady) {
+            saveSnapshot();
+            snapshotCache = null;
             membersMap = null;
             keyValueStoragePort = null;
             setState(State.NotReady);
@@ -205,27 +252,80 @@ public class MembersDataProvider implements BUPluginLifecycle {
 
     private void tryInitialize() {
         if (remoteStorageService.getState() == RemoteStorageService.State.NotReady) {
+            saveSnapshot();
+            snapshotCache = null;
             membersMap = null;
             keyValueStoragePort = null;
             setState(State.NotReady);
             return;
         }
 
-        keyValueStoragePort = remoteStorageService.getMembersStoragePort();
-        keyValueStoragePort.addListener(storagePortListener);
+        final long startNanos = System.nanoTime();
+        File snapshotFile = remoteStorageService.getSnapshotFile(SNAPSHOT_NAME);
+        snapshotCache = snapshotFile == null
+            ? null
+            : new SnapshotCache<>(snapshotFile, gson, SNAPSHOT_TYPE);
+        Map<Long, Member> snapshot = snapshotCache == null ? null : snapshotCache.load();
+        final boolean usedSnapshot = snapshot != null;
+        if (usedSnapshot) {
+            // Usable right away, the remote read below reconciles it
+            membersMap = new ConcurrentHashMap<>(snapshot);
+            log.info(
+                "MembersDataProvider usable from snapshot with {} members after {} ms",
+                membersMap.size(),
+                (System.nanoTime() - startNanos) / 1_000_000
+            );
+            setState(State.Ready);
+            logUsable(true);
+        }
 
-        keyValueStoragePort.readAll().whenComplete((map, throwable) -> {
+        final KeyValueStoragePort<Long, Member> port = remoteStorageService.getMembersStoragePort();
+        keyValueStoragePort = port;
+        port.addListener(storagePortListener);
+
+        port.readAll().whenComplete((map, throwable) -> {
             if (throwable != null) {
                 log.error("MembersDataProvider storageport read all failed", throwable);
                 return;
             }
+            if (keyValueStoragePort != port) {
+                // The data port changed while reading
+                return;
+            }
 
+            // Replaced silently like on a plain login, joins while logged out are not announced
             membersMap = new ConcurrentHashMap<>(map);
-            log.debug("MembersDataProvider initialized with {} members", membersMap.size());
+            log.info(
+                "MembersDataProvider read {} members from remote after {} ms (snapshot: {})",
+                membersMap.size(),
+                (System.nanoTime() - startNanos) / 1_000_000,
+                usedSnapshot
+            );
             setState(State.Ready);
+            if (!usedSnapshot) {
+                logUsable(false);
+            }
+            saveSnapshot();
         });
     }
 
+    private void logUsable(boolean usedSnapshot) {
+        log.info(
+            "MembersDataProvider usable {} ms after startup (snapshot: {})",
+            (System.nanoTime() - startUpNanos) / 1_000_000,
+            usedSnapshot
+        );
+    }
+
+    private void saveSnapshot() {
+        SnapshotCache<Long, Member> cache = snapshotCache;
+        ConcurrentHashMap<Long, Member> map = membersMap;
+        if (cache == null || map == null) {
+            return;
+        }
+        cache.save(new HashMap<>(map));
+    }
+
     private void setState(State state) {
         if (this.state == state) {
             return;
@@ -0,0 +1,105 @@
+package com.elertan.data;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.Map;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Last known contents of a data provider's map on disk, so a provider can be used right away on
+ * login and reconcile with the remote afterwards.
+ * <p>
+ * The file is {"version":..,"savedAt":..,"values":{..}}. A snapshot of another version is ignored,
+ * the remote read that follows rebuilds it.
+ */
+@Slf4j
+public class SnapshotCache<K, V> {
+
+    // Bump when the stored models change in a way older snapshots can not be read as
+    private static final int VERSION = 1;
+
+    private final File file;
+    private final Gson gson;
+    private final Type mapType;
+
+    /**
+     * @param mapType the type of the values map, e.g. Map&lt;Integer, UnlockedItem&gt;
+     */
+    public SnapshotCache(File file, Gson gson, Type mapType) {
+        this.file = file;
+        this.gson = gson;
+        this.mapType = mapType;
+    }
+
+    /**
+     * @return the stored map, or null if there is no usable snapshot
+     */
+    public Map<K, V> load() {
+        if (!file.exists()) {
+            return null;
+        }
+        try (Reader reader = new BufferedReader(new InputStreamReader(
+            new FileInputStream(file),
+            StandardCharsets.UTF_8
+        ))) {
+            JsonObject obj = new JsonParser().parse(reader).getAsJsonObject();
+            JsonElement version = obj.get("version");
+            if (version == null || version.getAsInt() != VERSION) {
+                log.info("Ignoring snapshot {} of version {}", file, version);
+                return null;
+            }
+            return gson.fromJson(obj.get("values"), mapType);
+        } catch (IOException | JsonParseException | IllegalStateException e) {
+            log.warn("Failed to read snapshot {}", file, e);
+            return null;
+        }
+    }
+
+    public void save(Map<K, V> map) {
+        JsonObject obj = new JsonObject();
+        obj.addProperty("version", VERSION);
+        obj.addProperty("savedAt", Instant.now().toString());
+        obj.add("values", gson.toJsonTree(map, mapType));
+
+        File parent = file.getParentFile();
+        File tmpFile = new File(parent, file.getName() + ".tmp");
+        try {
+            if (parent != null && !parent.exists() && !parent.mkdirs()) {
+                throw new IOException("Failed to create " + parent);
+            }
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(tmpFile),
+                StandardCharsets.UTF_8
+            ))) {
+                gson.toJson(obj, writer);
+            }
+            // Never leave a half written snapshot behind
+            Files.move(
+                tmpFile.toPath(),
+                file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE
+            );
+        } catch (IOException e) {
+            log.error("Failed to write snapshot {}", file, e);
+        }
+    }
+}
@@ -2,18 +2,34 @@ package com.elertan.data;
 
 import com.elertan.BUPluginLifecycle;
 import com.elertan.models.UnlockedItem;
+import com.elertan.remote.BucketDigestStoragePort;
 import com.elertan.remote.KeyValueStoragePort;
 import com.elertan.remote.RemoteStorageService;
 import com.elertan.utils.ListenerUtils;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import java.io.File;
+import java.lang.reflect.Type;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 
@@ -21,29 +37,63 @@ import lombok.extern.slf4j.Slf4j;
 @Singleton
 public class UnlockedItemsDataProvider implements BUPluginLifecycle {
 
+    private static final String SNAPSHOT_NAME = "unlocked-items";
+    private static final Type SNAPSHOT_TYPE = new TypeToken<Map<Integer, UnlockedItem>>() {
+    }.getType();
+    private static final long DRIFT_CHECK_INTERVAL_MINUTES = 5;
+
     private final ConcurrentLinkedQueue<Consumer<State>> stateListeners = new ConcurrentLinkedQueue<>();
     private final ConcurrentLinkedQueue<UnlockedItemsMapListener> unlockedItemsMapListeners = new ConcurrentLinkedQueue<>();
     @Inject
     private RemoteStorageService remoteStorageService;
+    @Inject
+    private Gson gson;
 
     @Getter
     private State state = State.NotReady;
     private KeyValueStoragePort<Integer, UnlockedItem> keyValueStoragePort;
     private KeyValueStoragePort.Listener<Integer, UnlockedItem> unlockedItemsStoragePortListener;
     private ConcurrentHashMap<Integer, UnlockedItem> unlockedItemsMap;
+    private SnapshotCache<Integer, UnlockedItem> snapshotCache;
+    private ScheduledExecutorService driftCheckScheduler;
+    // Provisional with every item from the snapshot, rather than with the pages loaded so far
+    private volatile boolean provisionalFromSnapshot;
+    private long startUpNanos;
+    private final AtomicBoolean checkingForDrift = new AtomicBoolean();
     private final Consumer<RemoteStorageService.State> remoteStorageServiceStateListener = this::remoteStorageServiceStateListener;
 
     @Override
     public void startUp() throws Exception {
+        startUpNanos = System.nanoTime();
         remoteStorageService.addStateListener(remoteStorageServiceStateListener);
 
         unlockedItemsStoragePortListener = new KeyValueStoragePort.Listener<Integer, UnlockedItem>() {
             @Override
             public void onFullUpdate(Map<Integer, UnlockedItem> map) {
-                if (unlockedItemsMap == null) {
+                ConcurrentHashMap<Integer, UnlockedItem> currentMap = unlockedItemsMap;
+                KeyValueStoragePort<Integer, UnlockedItem> port = keyValueStoragePort;
+                if (currentMap == null) {
                     return;
                 }
-                unlockedItemsMap = new ConcurrentHashMap<>(map);
+                ConcurrentHashMap<Integer, UnlockedItem> newMap = new ConcurrentHashMap<>(map);
+                if (port != null) {
+                    // Local writes that did not reach the remote yet keep what they are sending
+                    Set<Integer> itemIds = new HashSet<>(currentMap.keySet());
+                    itemIds.addAll(map.keySet());
+                    for (Integer itemId : itemIds) {
+                        if (!port.hasPendingWrite(itemId)) {
+                            continue;
+                        }
+                        UnlockedItem current = currentMap.get(itemId);
+                        if (current == null) {
+                            newMap.remove(itemId);
+                        } else {
+                            newMap.put(itemId, current);
+                        }
+                    }
+                }
+                unlockedItemsMap = newMap;
+                notifyFullUpdate();
             }
 
             @Override
@@ -78,13 +128,56 @@ public class UnlockedItemsDataProvider implements BUPluginLifecycle {
                     }
                 }
             }
+
+            @Override
+            public void onBatchUpdate(Map<Integer, UnlockedItem> updated, Set<Integer> deleted) {
+                if (unlockedItemsMap == null) {
+                    return;
+                }
+                unlockedItemsMap.putAll(updated);
+                List<UnlockedItem> deletedUnlockedItems = new ArrayList<>();
+                for (Integer key : deleted) {
+                    UnlockedItem unlockedItem = unlockedItemsMap.remove(key);
+                    if (unlockedItem != null) {
+                        deletedUnlockedItems.add(unlockedItem);
+                    }
+                }
+
+                Collection<UnlockedItem> updatedUnlockedItems = Collections.unmodifiableCollection(
+                    updated.values());
+                for (UnlockedItemsMapListener listener : unlockedItemsMapListeners) {
+                    try {
+                        listener.onBatchUpdate(updatedUnlockedItems, deletedUnlockedItems);
+                    } catch (Exception ex) {
+                        log.error("unlockedItemBatchUpdateListener: onBatchUpdate", ex);
+                    }
+                }
+            }
         };
 
+        driftCheckScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "bu-unlocked-items-drift-check");
+            thread.setDaemon(true);
+            return thread;
+        });
+        driftCheckScheduler.scheduleWithFixedDelay(
+            this::checkForDrift,
+            DRIFT_CHECK_INTERVAL_MINUTES,
+            DRIFT_CHECK_INTERVAL_MINUTES,
+            TimeUnit.MINUTES
+        );
+
         tryInitialize();
     }
 
     @Override
     public void shutDown() throws Exception {
+        if (driftCheckScheduler != null) {
+            driftCheckScheduler.shutdownNow();
+            driftCheckScheduler = null;
+        }
+        saveSnapshot();
+        snapshotCache = null;
         unlockedItemsMap = null;
         state = State.NotReady;
         unlockedItemsStoragePortListener = null;
@@ -100,6 +193,16 @@ public class UnlockedItemsDataProvider implements BUPluginLifecycle {
         return Collections.unmodifiableMap(unlockedItemsMap);
     }
 
+    /**
+     * Whether unlocks can be looked up, which is the case when Ready or when Provisional from a
+     * snapshot. Such a map may be behind the remote, so only checks read it, unlocking waits for
+     * Ready.
+     */
+    public boolean isReadable() {
+        State state = this.state;
+        return state == State.Ready || (state == State.Provisional && provisionalFromSnapshot);
+    }
+
     public void addStateListener(Consumer<State> listener) {
         stateListeners.add(listener);
     }
@@ -157,7 +260,8 @@ public class UnlockedItemsDataProvider implements BUPluginLifecycle {
         }
 
         unlockedItemsMap.put(unlockedItem.getId(), unlockedItem);
-        return keyValueStoragePort.update(unlockedItem.getId(), unlockedItem);
+        return keyValueStoragePort.update(unlockedItem.getId(), unlockedItem)
+            .thenRun(() -> updateDigest(UnlockedItemsDigest.getBucket(unlockedItem.getId()), null));
     }
 
     public CompletableFuture<Void> removeUnlockedItemById(int itemId) {
@@ -167,12 +271,177 @@ public class UnlockedItemsDataProvider implements BUPluginLifecycle {
             future.completeExceptionally(ex);
             return future;
         }
-        return keyValueStoragePort.delete(itemId);
+        return keyValueStoragePort.delete(itemId)
+            .thenRun(() -> updateDigest(UnlockedItemsDigest.getBucket(itemId), itemId));
+    }
+
+    // Reads only the buckets of item IDs whose digest differs from the stored one
+    public void checkForDrift() {
+        KeyValueStoragePort<Integer, UnlockedItem> port = keyValueStoragePort;
+        BucketDigestStoragePort digestPort =
+            remoteStorageService.getUnlockedItemsDigestStoragePort();
+        ConcurrentHashMap<Integer, UnlockedItem> map = unlockedItemsMap;
+        if (state != State.Ready || port == null || digestPort == null || map == null) {
+            return;
+        }
+        if (!checkingForDrift.compareAndSet(false, true)) {
+            return;
+        }
+
+        final long startNanos = System.nanoTime();
+        List<Integer> differingBuckets = new ArrayList<>();
+        digestPort.readAll().thenCompose(storedDigests -> {
+            Map<Integer, String> localDigests = UnlockedItemsDigest.digestAll(map);
+            for (Map.Entry<Integer, String> entry : localDigests.entrySet()) {
+                String storedDigest = storedDigests.getOrDefault(
+                    entry.getKey(),
+                    UnlockedItemsDigest.EMPTY_DIGEST
+                );
+                if (!storedDigest.equals(entry.getValue())) {
+                    differingBuckets.add(entry.getKey());
+                }
+            }
+
+            // One bucket after another, a drift check is never in a hurry
+            CompletableFuture<Integer> future = CompletableFuture.completedFuture(0);
+            for (Integer bucket : differingBuckets) {
+                String storedDigest = storedDigests.get(bucket);
+                future = future.thenCompose(repaired -> repairBucket(
+                    port,
+                    digestPort,
+                    bucket,
+                    storedDigest
+                ).thenApply(repairedInBucket -> repaired + repairedInBucket));
+            }
+            return future;
+        }).whenComplete((repaired, throwable) -> {
+            checkingForDrift.set(false);
+            if (throwable != null) {
+                log.warn("UnlockedItemDataProvider drift check failed", throwable);
+                return;
+            }
+            if (differingBuckets.isEmpty()) {
+                log.debug(
+                    "UnlockedItemDataProvider no drift after {} ms",
+                    (System.nanoTime() - startNanos) / 1_000_000
+                );
+                return;
+            }
+            log.info(
+                "UnlockedItemDataProvider drift check read {} of {} buckets and repaired {} items in {} ms",
+                differingBuckets.size(),
+                UnlockedItemsDigest.BUCKET_COUNT,
+                repaired,
+                (System.nanoTime() - startNanos) / 1_000_000
+            );
+            // The map itself was brought up to date by the full update of the read ranges
+            if (repaired > 0 && keyValueStoragePort == port) {
+                saveSnapshot();
+            }
+        });
+    }
+
+    private CompletableFuture<Integer> repairBucket(KeyValueStoragePort<Integer, UnlockedItem> port,
+        BucketDigestStoragePort digestPort, int bucket, String storedDigest) {
+        // Taken before reading as well, a write confirmed meanwhile may be missing from the read
+        Set<Integer> pendingItemIds = getPendingItemIds(port, bucket);
+        Map<Integer, UnlockedItem> localItems = getBucketItems(bucket);
+        // The read range is handed to the map as a full update, so it is only compared here
+        return port.readRange(
+            UnlockedItemsDigest.getFirstItemId(bucket),
+            UnlockedItemsDigest.getLastItemId(bucket)
+        ).thenApply(remoteItems -> {
+            if (keyValueStoragePort != port) {
+                return 0;
+            }
+
+            // Local writes that did not reach the remote yet are not drift
+            Predicate<Integer> isPending =
+                itemId -> pendingItemIds.contains(itemId) || port.hasPendingWrite(itemId);
+            int repaired = 0;
+            for (Integer itemId : localItems.keySet()) {
+                if (!remoteItems.containsKey(itemId) && !isPending.test(itemId)) {
+                    repaired++;
+                }
+            }
+            for (Map.Entry<Integer, UnlockedItem> entry : remoteItems.entrySet()) {
+                if (isPending.test(entry.getKey())) {
+                    continue;
+                }
+                UnlockedItem current = localItems.get(entry.getKey());
+                if (current == null || !UnlockedItemsDigest.isSameItem(current, entry.getValue())) {
+                    repaired++;
+                }
+            }
+
+            // Digests written from a map that was behind are corrected from the remote items
+            String remoteDigest = UnlockedItemsDigest.digest(remoteItems.values());
+            if (!remoteDigest.equals(storedDigest)) {
+                digestPort.update(bucket, remoteDigest);
+            }
+            return repaired;
+        });
+    }
+
+    private Map<Integer, UnlockedItem> getBucketItems(int bucket) {
+        Map<Integer, UnlockedItem> bucketItems = new HashMap<>();
+        ConcurrentHashMap<Integer, UnlockedItem> map = unlockedItemsMap;
+        if (map == null) {
+            return bucketItems;
+        }
+        for (Map.Entry<Integer, UnlockedItem> entry : map.entrySet()) {
+            if (UnlockedItemsDigest.getBucket(entry.getKey()) == bucket) {
+                bucketItems.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return bucketItems;
+    }
+
+        private Set<Integer> getPendingItemIds(KeyValueStoragePort<Integer, UnlockedItem> port,
+        int bucket) {
+        Set<Integer> pendingItemIds = new HashSet<>();
+        ConcurrentHashMap<Integer, UnlockedItem> map = unlockedItemsMap;
+        if (map == null) {
+            return pendingItemIds;
+        }
+        for (Integer itemId : map.keySet()) {
+            if (UnlockedItemsDigest.getBucket(itemId) == bucket && port.hasPendingWrite(itemId)) {
+                pendingItemIds.add(itemId);
+            }
+        }
+        return pendingItemIds;
+    }
+
+    private void updateDigest(int bucket, Integer removedItemId) {
+        BucketDigestStoragePort digestPort =
+            remoteStorageService.getUnlockedItemsDigestStoragePort();
+        ConcurrentHashMap<Integer, UnlockedItem> map = unlockedItemsMap;
+        if (digestPort == null || map == null) {
+            return;
+        }
+        // A removal only reaches the map once the stream echoes it
+        List<UnlockedItem> bucketItems = new ArrayList<>();
+        for (UnlockedItem unlockedItem : map.values()) {
+            if (UnlockedItemsDigest.getBucket(unlockedItem.getId()) == bucket
+                && (removedItemId == null || unlockedItem.getId() != removedItemId)) {
+                bucketItems.add(unlockedItem);
+            }
+        }
+        digestPort.update(bucket, UnlockedItemsDigest.digest(bucketItems))
+            .whenComplete((__, throwable) -> {
+                if (throwable != null) {
+                    // The next drift check reads the bucket and writes its digest
+                    log.warn("UnlockedItemDataProvider failed to update digest", throwable);
+                }
+            });
     }
 
     private void remoteStorageServiceStateListener(RemoteStorageService.State state) {
         if (state == RemoteStorageService.State.NotReady) {
+            saveSnapshot();
+            snapshotCache = null;
             unlockedItemsMap = null;
+            provisionalFromSnapshot = false;
             if (keyValueStoragePort != null) {
                 keyValueStoragePort.removeListener(unlockedItemsStoragePortListener);
                 keyValueStoragePort = null;
@@ -186,6 +455,8 @@ public class UnlockedItemsDataProvider implements BUPluginLifecycle {
 
     private void tryInitialize() {
         if (remoteStorageService.getState() == RemoteStorageService.State.NotReady) {
+            saveSnapshot();
+            snapshotCache = null;
             unlockedItemsMap = null;
             if (keyValueStoragePort != null) {
                 keyValueStoragePort.removeListener(unlockedItemsStoragePortListener);
@@ -195,24 +466,107 @@ public class UnlockedItemsDataProvider implements BUPluginLifecycle {
             return;
         }
 
-        keyValueStoragePort = remoteStorageService.getUnlockedItemsStoragePort();
-        keyValueStoragePort.addListener(unlockedItemsStoragePortListener);
+        final long startNanos = System.nanoTime();
+        File snapshotFile = remoteStorageService.getSnapshotFile(SNAPSHOT_NAME);
+        snapshotCache = snapshotFile == null
+            ? null
+            : new SnapshotCache<>(snapshotFile, gson, SNAPSHOT_TYPE);
+        Map<Integer, UnlockedItem> snapshot = snapshotCache == null ? null : snapshotCache.load();
+        final boolean usedSnapshot = snapshot != null;
+        provisionalFromSnapshot = usedSnapshot;
+        if (usedSnapshot) {
+            // Shown and checked right away, but nothing is unlocked from it until the remote
+            // read below reconciles it
+            unlockedItemsMap = new ConcurrentHashMap<>(snapshot);
+            log.info(
+                "UnlockedItemDataProvider provisional from snapshot with {} items after {} ms",
+                unlockedItemsMap.size(),
+                (System.nanoTime() - startNanos) / 1_000_000
+            );
+            setState(State.Provisional);
+            logUsable(true);
+        }
 
-        keyValueStoragePort.readAll().whenComplete((map, throwable) -> {
+        final KeyValueStoragePort<Integer, UnlockedItem> port =
+            remoteStorageService.getUnlockedItemsStoragePort();
+        keyValueStoragePort = port;
+        port.addListener(unlockedItemsStoragePortListener);
+
+        CompletableFuture<Map<Integer, UnlockedItem>> readAllFuture;
+        if (usedSnapshot) {
+            readAllFuture = port.readAll();
+        } else {
+            // Loaded pages are shown right away, but only the complete map makes the provider
+            // Ready, as a missing item must not be taken for a locked one
+            readAllFuture = port.readAllPaged(page -> onPageLoaded(port, page));
+        }
+        readAllFuture.whenComplete((map, throwable) -> {
             if (throwable != null) {
                 log.error("UnlockedItemDataProvider storageport read all failed", throwable);
                 return;
             }
+            if (keyValueStoragePort != port) {
+                // The data port changed while reading
+                return;
+            }
 
             unlockedItemsMap = new ConcurrentHashMap<>(map);
-            log.debug(
-                "UnlockedItemDataProvider initialized with {} items",
-                unlockedItemsMap.size()
+            log.info(
+                "UnlockedItemDataProvider read {} items from remote after {} ms (snapshot: {})",
+                unlockedItemsMap.size(),
+                (System.nanoTime() - startNanos) / 1_000_000,
+                usedSnapshot
             );
+            notifyFullUpdate();
             setState(State.Ready);
+            if (!usedSnapshot) {
+                logUsable(false);
+            }
+            saveSnapshot();
         });
     }
 
+    private void logUsable(boolean usedSnapshot) {
+        log.info(
+            "UnlockedItemDataProvider usable {} ms after startup (snapshot: {})",
+            (System.nanoTime() - startUpNanos) / 1_000_000,
+            usedSnapshot
+        );
+    }
+
+    private void onPageLoaded(KeyValueStoragePort<Integer, UnlockedItem> port,
+        Map<Integer, UnlockedItem> page) {
+        if (keyValueStoragePort != port) {
+            return;
+        }
+        if (unlockedItemsMap == null) {
+            unlockedItemsMap = new ConcurrentHashMap<>();
+        }
+        unlockedItemsMap.putAll(page);
+        notifyFullUpdate();
+        setState(State.Provisional);
+    }
+
+    private void notifyFullUpdate() {
+        Map<Integer, UnlockedItem> map = Collections.unmodifiableMap(unlockedItemsMap);
+        for (UnlockedItemsMapListener listener : unlockedItemsMapListeners) {
+            try {
+                listener.onFullUpdate(map);
+            } catch (Exception ex) {
+                log.error("unlockedItemFullUpdateListener: onFullUpdate", ex);
+            }
+        }
+    }
+
+    private void saveSnapshot() {
+        SnapshotCache<Integer, UnlockedItem> cache = snapshotCache;
+        ConcurrentHashMap<Integer, UnlockedItem> map = unlockedItemsMap;
+        if (cache == null || map == null) {
+            return;
+        }
+        cache.save(new HashMap<>(map));
+    }
+
     private void setState(State state) {
         if (this.state == state) {
             return;
@@ -230,6 +584,8 @@ public class UnlockedItemsDataProvider implements BUPluginLifecycle {
 
     public enum State {
         NotReady,
+        // The map can be shown, but it may be behind the remote, so nothing is unlocked from it yet
+        Provisional,
         Ready,
     }
 
@@ -238,5 +594,10 @@ public class UnlockedItemsDataProvider implements BUPluginLifecycle {
         void onUpdate(UnlockedItem unlockedItem);
 
         void onDelete(UnlockedItem unlockedItem);
+
+        void onBatchUpdate(Collection<UnlockedItem> updated, Collection<UnlockedItem> deleted);
+
+        // The whole map was replaced, e.g. after reconciling a snapshot with the remote
+        void onFullUpdate(Map<Integer, UnlockedItem> unlockedItemsMap);
     }
 }
@@ -0,0 +1,98 @@
+package com.elertan.data;
+
+import com.elertan.gson.UnlockedItemRecordAdapter;
+import com.elertan.models.UnlockedItem;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hashes of unlocked items per bucket of item IDs. Two copies of the unlocked items hold the same
+ * items in a bucket when the digests of that bucket are equal.
+ * <p>
+ * Items are hashed in their compact record form, so the digest does not depend on the format an
+ * item was read from.
+ */
+public final class UnlockedItemsDigest {
+
+    public static final int BUCKET_COUNT = 64;
+    private static final int ITEM_IDS_PER_BUCKET = 512;
+    // 64 bits of the hash, plenty to tell buckets apart and small enough to read often
+    private static final int DIGEST_BYTES = 8;
+    private static final UnlockedItemRecordAdapter RECORD_ADAPTER =
+        new UnlockedItemRecordAdapter(true);
+
+    public static final String EMPTY_DIGEST = digest(new ArrayList<>());
+
+    private UnlockedItemsDigest() {
+    }
+
+    // The last bucket takes every item ID above the others
+    public static int getBucket(int itemId) {
+        return Math.min(Math.max(itemId, 0) / ITEM_IDS_PER_BUCKET, BUCKET_COUNT - 1);
+    }
+
+    public static int getFirstItemId(int bucket) {
+        return bucket * ITEM_IDS_PER_BUCKET;
+    }
+
+    // Null for the last bucket, it has no upper bound
+    public static Integer getLastItemId(int bucket) {
+        if (bucket >= BUCKET_COUNT - 1) {
+            return null;
+        }
+        return (bucket + 1) * ITEM_IDS_PER_BUCKET - 1;
+    }
+
+    /**
+     * @return the digest of every bucket, empty buckets included
+     */
+    public static Map<Integer, String> digestAll(Map<Integer, UnlockedItem> unlockedItemsMap) {
+        Map<Integer, List<UnlockedItem>> itemsByBucket = new HashMap<>();
+        for (UnlockedItem unlockedItem : unlockedItemsMap.values()) {
+            itemsByBucket.computeIfAbsent(getBucket(unlockedItem.getId()), __ -> new ArrayList<>())
+                .add(unlockedItem);
+        }
+        Map<Integer, String> digests = new HashMap<>();
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            List<UnlockedItem> items = itemsByBucket.get(bucket);
+            digests.put(bucket, items == null ? EMPTY_DIGEST : digest(items));
+        }
+        return digests;
+    }
+
+    public static String digest(Collection<UnlockedItem> unlockedItems) {
+        List<UnlockedItem> sorted = new ArrayList<>(unlockedItems);
+        sorted.sort(Comparator.comparingInt(UnlockedItem::getId));
+
+        MessageDigest messageDigest;
+        try {
+            messageDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java runtime has SHA-256
+            throw new IllegalStateException(e);
+        }
+        for (UnlockedItem unlockedItem : sorted) {
+            String record = RECORD_ADAPTER.toCompactTree(unlockedItem).toString();
+            messageDigest.update(record.getBytes(StandardCharsets.UTF_8));
+            messageDigest.update((byte) '\n');
+        }
+
+        byte[] hash = messageDigest.digest();
+        StringBuilder builder = new StringBuilder(DIGEST_BYTES * 2);
+        for (int i = 0; i < DIGEST_BYTES; i++) {
+            builder.append(String.format("%02x", hash[i]));
+        }
+        return builder.toString();
+    }
+
+    public static boolean isSameItem(UnlockedItem a, UnlockedItem b) {
+        return RECORD_ADAPTER.toCompactTree(a).equals(RECORD_ADAPTER.toCompactTree(b));
+    }
+}
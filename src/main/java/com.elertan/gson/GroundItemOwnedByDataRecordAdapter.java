@@ -0,0 +1,59 @@
+package com.elertan.gson;
+
+import com.elertan.models.GroundItemOwnedByData;
+import com.elertan.models.ISOOffsetDateTime;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+
+public class GroundItemOwnedByDataRecordAdapter extends RecordAdapter<GroundItemOwnedByData> {
+
+    public GroundItemOwnedByDataRecordAdapter(boolean writeCompact) {
+        super(writeCompact);
+    }
+
+    @Override
+    protected GroundItemOwnedByData readFields(JsonReader in) throws IOException {
+        long accountHash = 0;
+        ISOOffsetDateTime despawnsAt = null;
+        String droppedByPlayerName = null;
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "a":
+                case "accountHash":
+                    accountHash = readAccountHash(in);
+                    break;
+                case "t":
+                case "despawnsAt":
+                    despawnsAt = readTimestamp(in);
+                    break;
+                case "p":
+                case "droppedByPlayerName":
+                    droppedByPlayerName = readNullableString(in);
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        if (despawnsAt == null) {
+            throw new JsonParseException("ground item ownership without despawnsAt");
+        }
+        return new GroundItemOwnedByData(accountHash, despawnsAt, droppedByPlayerName);
+    }
+
+    @Override
+    protected void writeFields(JsonWriter out, GroundItemOwnedByData value) throws IOException {
+        writeAccountHash(out, "accountHash", value.getAccountHash());
+        writeTimestamp(out, "despawnsAt", value.getDespawnsAt(), false);
+        writeNullable(out, "droppedByPlayerName", value.getDroppedByPlayerName());
+    }
+
+    @Override
+    protected void writeCompactFields(JsonWriter out, GroundItemOwnedByData value)
+        throws IOException {
+        writeAccountHash(out, "a", value.getAccountHash());
+        writeTimestamp(out, "t", value.getDespawnsAt(), true);
+        writeNullable(out, "p", value.getDroppedByPlayerName());
+    }
+}
@@ -0,0 +1,80 @@
+package com.elertan.gson;
+
+import com.elertan.models.ISOOffsetDateTime;
+import com.elertan.models.Member;
+import com.elertan.models.MemberRole;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+
+public class MemberRecordAdapter extends RecordAdapter<Member> {
+
+    public MemberRecordAdapter(boolean writeCompact) {
+        super(writeCompact);
+    }
+
+    @Override
+    protected Member readFields(JsonReader in) throws IOException {
+        long accountHash = 0;
+        String name = null;
+        ISOOffsetDateTime joinedAt = null;
+        MemberRole role = null;
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "a":
+                case "accountHash":
+                    accountHash = readAccountHash(in);
+                    break;
+                case "n":
+                case "name":
+                    name = readNullableString(in);
+                    break;
+                case "t":
+                case "joinedAt":
+                    joinedAt = readTimestamp(in);
+                    break;
+                case "r":
+                case "role":
+                    String roleName = readNullableString(in);
+                    role = parseRole(roleName);
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        return new Member(accountHash, name, joinedAt, role);
+    }
+
+    @Override
+    protected void writeFields(JsonWriter out, Member value) throws IOException {
+        writeAccountHash(out, "accountHash", value.getAccountHash());
+        writeNullable(out, "name", value.getName());
+        writeTimestamp(out, "joinedAt", value.getJoinedAt(), false);
+        writeNullable(out, "role", getRoleName(value));
+    }
+
+    @Override
+    protected void writeCompactFields(JsonWriter out, Member value) throws IOException {
+        writeAccountHash(out, "a", value.getAccountHash());
+        writeNullable(out, "n", value.getName());
+        writeTimestamp(out, "t", value.getJoinedAt(), true);
+        writeNullable(out, "r", getRoleName(value));
+    }
+
+    // Unknown roles, e.g. from a newer version of the plugin, are read as null like Gson does
+    private static MemberRole parseRole(String roleName) {
+        if (roleName == null) {
+            return null;
+        }
+        for (MemberRole role : MemberRole.values()) {
+            if (role.name().equals(roleName)) {
+                return role;
+            }
+        }
+        return null;
+    }
+
+    private static String getRoleName(Member value) {
+        return value.getRole() == null ? null : value.getRole().name();
+    }
+}
@@ -0,0 +1,169 @@
+package com.elertan.gson;
+
+import com.elertan.models.ISOOffsetDateTime;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+// Reads a record in either format, version 1 with model field names and ISO-8601 timestamps or
+// version 2, {"v":2,..} with one letter keys and epoch milliseconds, and writes the chosen one
+public abstract class RecordAdapter<V> extends TypeAdapter<V> {
+
+    public static final String VERSION_KEY = "v";
+    public static final int COMPACT_VERSION = 2;
+
+    private final boolean writeCompact;
+    private final TypeAdapter<V> compactAdapter = new TypeAdapter<V>() {
+        @Override
+        public void write(JsonWriter out, V value) throws IOException {
+            RecordAdapter.this.write(out, value, true);
+        }
+
+        @Override
+        public V read(JsonReader in) throws IOException {
+            return RecordAdapter.this.read(in);
+        }
+    };
+
+    // Records are always read in both versions
+    protected RecordAdapter(boolean writeCompact) {
+        this.writeCompact = writeCompact;
+    }
+
+    public boolean isWriteCompact() {
+        return writeCompact;
+    }
+
+    // Records without a version are version 1
+    public static boolean isCompact(JsonElement record) {
+        if (record == null || !record.isJsonObject()) {
+            return false;
+        }
+        JsonObject obj = record.getAsJsonObject();
+        JsonElement version = obj.get(VERSION_KEY);
+        return version != null && version.isJsonPrimitive()
+            && version.getAsInt() >= COMPACT_VERSION;
+    }
+
+    // The same value always gives the same tree, whichever format it was read from
+    public JsonElement toCompactTree(V value) {
+        return compactAdapter.toJsonTree(value);
+    }
+
+    @Override
+    public void write(JsonWriter out, V value) throws IOException {
+        write(out, value, writeCompact);
+    }
+
+    @Override
+    public V read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        in.beginObject();
+        V value = readFields(in);
+        in.endObject();
+        return value;
+    }
+
+    // Keys of both versions are accepted, unknown keys are skipped
+    protected abstract V readFields(JsonReader in) throws IOException;
+
+    protected abstract void writeFields(JsonWriter out, V value) throws IOException;
+
+    protected abstract void writeCompactFields(JsonWriter out, V value) throws IOException;
+
+    private void write(JsonWriter out, V value, boolean compact) throws IOException {
+        if (value == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        if (compact) {
+            out.name(VERSION_KEY).value(COMPACT_VERSION);
+            writeCompactFields(out, value);
+        } else {
+            writeFields(out, value);
+        }
+        out.endObject();
+    }
+
+    protected static ISOOffsetDateTime readTimestamp(JsonReader in) throws IOException {
+        JsonToken token = in.peek();
+        if (token == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        if (token == JsonToken.NUMBER) {
+            Instant instant = Instant.ofEpochMilli(in.nextLong());
+            return new ISOOffsetDateTime(OffsetDateTime.ofInstant(instant, ZoneId.systemDefault()));
+        }
+        return new ISOOffsetDateTime(
+            OffsetDateTime.parse(in.nextString(), DateTimeFormatter.ISO_OFFSET_DATE_TIME));
+    }
+
+    protected static void writeTimestamp(JsonWriter out, String name, ISOOffsetDateTime timestamp,
+        boolean compact) throws IOException {
+        if (timestamp == null || timestamp.getValue() == null) {
+            return;
+        }
+        out.name(name);
+        if (compact) {
+            out.value(timestamp.getValue().toInstant().toEpochMilli());
+        } else {
+            out.value(timestamp.toString());
+        }
+    }
+
+    // Account hashes are stored as text, a long does not fit in a JSON number everywhere
+    protected static long readAccountHash(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.STRING) {
+            return Long.parseLong(in.nextString());
+        }
+        return in.nextLong();
+    }
+
+    protected static void writeAccountHash(JsonWriter out, String name, long accountHash)
+        throws IOException {
+        out.name(name).value(String.valueOf(accountHash));
+    }
+
+    protected static String readNullableString(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return in.nextString();
+    }
+
+    protected static Integer readNullableInt(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return in.nextInt();
+    }
+
+    protected static void writeNullable(JsonWriter out, String name, String value)
+        throws IOException {
+        if (value != null) {
+            out.name(name).value(value);
+        }
+    }
+
+    protected static void writeNullable(JsonWriter out, String name, Number value)
+        throws IOException {
+        if (value != null) {
+            out.name(name).value(value);
+        }
+    }
+}
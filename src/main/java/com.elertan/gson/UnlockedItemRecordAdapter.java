@@ -0,0 +1,80 @@
+package com.elertan.gson;
+
+import com.elertan.models.ISOOffsetDateTime;
+import com.elertan.models.UnlockedItem;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+
+public class UnlockedItemRecordAdapter extends RecordAdapter<UnlockedItem> {
+
+    // acquiredAt as epoch milliseconds, written in both versions as the stored items are ordered
+    // by it
+    public static final String ACQUIRED_AT_ORDER_KEY = "t";
+
+    public UnlockedItemRecordAdapter(boolean writeCompact) {
+        super(writeCompact);
+    }
+
+    @Override
+    protected UnlockedItem readFields(JsonReader in) throws IOException {
+        int id = 0;
+        String name = null;
+        long acquiredByAccountHash = 0;
+        ISOOffsetDateTime acquiredAt = null;
+        ISOOffsetDateTime acquiredAtMillis = null;
+        Integer droppedByNPCId = null;
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "i":
+                case "id":
+                    id = in.nextInt();
+                    break;
+                case "n":
+                case "name":
+                    name = readNullableString(in);
+                    break;
+                case "a":
+                case "acquiredByAccountHash":
+                    acquiredByAccountHash = readAccountHash(in);
+                    break;
+                case ACQUIRED_AT_ORDER_KEY:
+                    acquiredAtMillis = readTimestamp(in);
+                    break;
+                case "acquiredAt":
+                    acquiredAt = readTimestamp(in);
+                    break;
+                case "d":
+                case "droppedByNPCId":
+                    droppedByNPCId = readNullableInt(in);
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        // Version 1 keeps the offset of whoever unlocked the item
+        if (acquiredAt == null) {
+            acquiredAt = acquiredAtMillis;
+        }
+        return new UnlockedItem(id, name, acquiredByAccountHash, acquiredAt, droppedByNPCId);
+    }
+
+    @Override
+    protected void writeFields(JsonWriter out, UnlockedItem value) throws IOException {
+        out.name("id").value(value.getId());
+        writeNullable(out, "name", value.getName());
+        writeAccountHash(out, "acquiredByAccountHash", value.getAcquiredByAccountHash());
+        writeTimestamp(out, "acquiredAt", value.getAcquiredAt(), false);
+        writeTimestamp(out, ACQUIRED_AT_ORDER_KEY, value.getAcquiredAt(), true);
+        writeNullable(out, "droppedByNPCId", value.getDroppedByNPCId());
+    }
+
+    @Override
+    protected void writeCompactFields(JsonWriter out, UnlockedItem value) throws IOException {
+        out.name("i").value(value.getId());
+        writeNullable(out, "n", value.getName());
+        writeAccountHash(out, "a", value.getAcquiredByAccountHash());
+        writeTimestamp(out, ACQUIRED_AT_ORDER_KEY, value.getAcquiredAt(), true);
+        writeNullable(out, "d", value.getDroppedByNPCId());
+    }
+}
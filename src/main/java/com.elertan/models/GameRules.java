@@ -63,6 +63,15 @@ public class GameRules {
     @Setter
     private String partyPassword;
 
+    // Storage
+    @Getter
+    @Setter
+    private boolean compactRecords;
+    // Switching copies the unlocked items into the other layout, both are kept
+    @Getter
+    @Setter
+    private boolean shardUnlockedItems;
+
     public GameRules(Long lastUpdatedByAccountHash, ISOOffsetDateTime lastUpdatedAt,
         boolean onlyForTradeableItems,
         boolean restrictGroundItems,
@@ -72,7 +81,8 @@ public class GameRules {
         boolean preventPlayerOwnedHouse,
         boolean restrictPlayerVersusPlayerLoot,
         boolean shareAchievementNotifications,
-        Integer valuableLootNotificationThreshold, String partyPassword) {
+        Integer valuableLootNotificationThreshold, String partyPassword,
+        boolean compactRecords, boolean shardUnlockedItems) {
         this.lastUpdatedByAccountHash = lastUpdatedByAccountHash;
         this.lastUpdatedAt = lastUpdatedAt;
         this.onlyForTradeableItems = onlyForTradeableItems;
@@ -85,6 +95,8 @@ public class GameRules {
         this.shareAchievementNotifications = shareAchievementNotifications;
         this.valuableLootNotificationThreshold = valuableLootNotificationThreshold;
         this.partyPassword = partyPassword;
+        this.compactRecords = compactRecords;
+        this.shardUnlockedItems = shardUnlockedItems;
     }
 
     public static GameRules createWithDefaults(Long lastUpdatedByAccountHash,
@@ -101,7 +113,9 @@ public class GameRules {
             false,
             true,
             100_000,
-            null
+            null,
+            false,
+            false
         );
     }
 
@@ -118,6 +132,8 @@ public class GameRules {
             + ", restrictPlayerVersusPlayerLoot=" + restrictPlayerVersusPlayerLoot
             + ", shareAchievementNotifications=" + shareAchievementNotifications
             + ", valuableLootNotificationThreshold=" + valuableLootNotificationThreshold
-            + ", partyPassword='" + partyPassword + '\'' + '}';
+            + ", partyPassword='" + partyPassword + '\''
+            + ", compactRecords=" + compactRecords
+            + ", shardUnlockedItems=" + shardUnlockedItems + '}';
     }
 }
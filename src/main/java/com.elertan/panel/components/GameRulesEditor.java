@@ -114,6 +114,17 @@ public class GameRulesEditor extends JPanel {
         add(createSection("Party", "Controls the party settings", createPartyPanel(), true), gbc);
         gbc.gridy++;
 
+        add(
+            createSection(
+                "Storage",
+                "How the group's data is stored",
+                createStoragePanel(),
+                true
+            ),
+            gbc
+        );
+        gbc.gridy++;
+
         add(Box.createVerticalStrut(20), gbc);
         gbc.gridy++;
     }
@@ -496,6 +507,56 @@ public class GameRulesEditor extends JPanel {
         return panel;
     }
 
+    private JPanel createStoragePanel() {
+        JPanel panel = new JPanel(new GridBagLayout());
+        panel.setOpaque(false);
+
+        GridBagConstraints gbc = new GridBagConstraints();
+        gbc.gridx = 0;
+        gbc.gridy = 0;
+        gbc.anchor = GridBagConstraints.WEST;
+        gbc.fill = GridBagConstraints.HORIZONTAL;
+        gbc.weightx = 1.0;
+        gbc.insets = new Insets(0, 0, 5, 0);
+
+        JCheckBox compactRecordsCheckbox = new JCheckBox();
+        Bindings.bindSelected(
+            compactRecordsCheckbox,
+            viewModel.compactRecordsProperty
+        );
+        Bindings.bindEnabled(
+            compactRecordsCheckbox,
+            viewModel.isViewOnlyModeProperty.derive(isViewOnlyMode -> !isViewOnlyMode)
+        );
+        panel.add(
+            createCheckboxInput(
+                "Compact records",
+                "Stores unlocked items, members and ground item ownership with short keys and numeric timestamps, about half the size. Existing records are rewritten in the background. Every member must be on a version that reads them",
+                compactRecordsCheckbox
+            ), gbc
+        );
+        gbc.gridy++;
+
+        JCheckBox shardUnlockedItemsCheckbox = new JCheckBox();
+        Bindings.bindSelected(
+            shardUnlockedItemsCheckbox,
+            viewModel.shardUnlockedItemsProperty
+        );
+        Bindings.bindEnabled(
+            shardUnlockedItemsCheckbox,
+            viewModel.isViewOnlyModeProperty.derive(isViewOnlyMode -> !isViewOnlyMode)
+        );
+        panel.add(
+            createCheckboxInput(
+                "Shard unlocked items",
+                "Stores unlocked items in buckets by item ID, each loaded and streamed on its own. Existing unlocks are copied over and kept in the old layout, so this can be turned off again. Every member must be on a version that reads them",
+                shardUnlockedItemsCheckbox
+            ), gbc
+        );
+
+        return panel;
+    }
+
     private JPanel createTextFieldInput(String labelText, String description,
         JTextField textField) {
         JPanel inputPanel = new JPanel(new GridBagLayout());
@@ -25,6 +25,8 @@ public class GameRulesEditorViewModel implements AutoCloseable {
     public final Property<Boolean> shareAchievementNotificationsProperty;
     public final Property<Integer> valuableLootNotificationThresholdProperty;
     public final Property<String> partyPasswordProperty;
+    public final Property<Boolean> compactRecordsProperty;
+    public final Property<Boolean> shardUnlockedItemsProperty;
     public final Property<Boolean> isViewOnlyModeProperty;
     private Props props;
     private final PropertyChangeListener onlyForTradeableItemsListener = this::onlyForTradeableItemsListener;
@@ -38,6 +40,8 @@ public class GameRulesEditorViewModel implements AutoCloseable {
     private final PropertyChangeListener shareAchievementNotificationsListener = this::shareAchievementNotificationsListener;
     private final PropertyChangeListener valuableLootNotificationThresholdListener = this::valuableLootNotificationThresholdListener;
     private final PropertyChangeListener partyPasswordListener = this::partyPasswordListener;
+    private final PropertyChangeListener compactRecordsListener = this::compactRecordsListener;
+    private final PropertyChangeListener shardUnlockedItemsListener = this::shardUnlockedItemsListener;
 
     private GameRulesEditorViewModel(Props initialProps) {
         this.props = initialProps;
@@ -60,6 +64,8 @@ public class GameRulesEditorViewModel implements AutoCloseable {
         shareAchievementNotificationsProperty = new Property<>(gameRules.isShareAchievementNotifications());
         valuableLootNotificationThresholdProperty = new Property<>(gameRules.getValuableLootNotificationThreshold());
         partyPasswordProperty = new Property<>(gameRules.getPartyPassword());
+        compactRecordsProperty = new Property<>(gameRules.isCompactRecords());
+        shardUnlockedItemsProperty = new Property<>(gameRules.isShardUnlockedItems());
 
         isViewOnlyModeProperty = new Property<>(initialProps.isViewOnlyMode());
 //        isValid = Property.deriveMany(
@@ -93,6 +99,8 @@ public class GameRulesEditorViewModel implements AutoCloseable {
         valuableLootNotificationThresholdProperty.addListener(
             valuableLootNotificationThresholdListener);
         partyPasswordProperty.addListener(partyPasswordListener);
+        compactRecordsProperty.addListener(compactRecordsListener);
+        shardUnlockedItemsProperty.addListener(shardUnlockedItemsListener);
 
         if (setGameRules) {
             initialProps.onGameRulesChanged.accept(gameRules);
@@ -101,6 +109,8 @@ public class GameRulesEditorViewModel implements AutoCloseable {
 
     @Override
     public void close() throws Exception {
+        shardUnlockedItemsProperty.removeListener(shardUnlockedItemsListener);
+        compactRecordsProperty.removeListener(compactRecordsListener);
         partyPasswordProperty.removeListener(partyPasswordListener);
         valuableLootNotificationThresholdProperty.removeListener(
             valuableLootNotificationThresholdListener);
@@ -133,6 +143,8 @@ public class GameRulesEditorViewModel implements AutoCloseable {
         shareAchievementNotificationsProperty.set(gameRules.isShareAchievementNotifications());
         partyPasswordProperty.set(gameRules.getPartyPassword());
         valuableLootNotificationThresholdProperty.set(gameRules.getValuableLootNotificationThreshold());
+        compactRecordsProperty.set(gameRules.isCompactRecords());
+        shardUnlockedItemsProperty.set(gameRules.isShardUnlockedItems());
 
         isViewOnlyModeProperty.set(props.isViewOnlyMode());
     }
@@ -187,6 +199,16 @@ public class GameRulesEditorViewModel implements AutoCloseable {
         tryUpdateGameRules();
     }
 
+    private void compactRecordsListener(PropertyChangeEvent event) {
+        log.debug("compactRecords changed to: {}", event.getNewValue());
+        tryUpdateGameRules();
+    }
+
+    private void shardUnlockedItemsListener(PropertyChangeEvent event) {
+        log.debug("shardUnlockedItems changed to: {}", event.getNewValue());
+        tryUpdateGameRules();
+    }
+
     private boolean isValid() {
         String partyPassword = partyPasswordProperty.get();
         Integer valuableLootNotificationThreshold = valuableLootNotificationThresholdProperty.get();
@@ -214,7 +236,9 @@ public class GameRulesEditorViewModel implements AutoCloseable {
             restrictPlayerVersusPlayerLootProperty.get(),
             shareAchievementNotificationsProperty.get(),
             valuableLootNotificationThresholdProperty.get(),
-            partyPasswordProperty.get()
+            partyPasswordProperty.get(),
+            compactRecordsProperty.get(),
+            shardUnlockedItemsProperty.get()
         );
         props.onGameRulesChanged.accept(newGameRules);
     }
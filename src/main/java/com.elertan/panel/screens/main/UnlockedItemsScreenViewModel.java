@@ -9,6 +9,7 @@ import com.google.inject.Singleton;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.function.Supplier;
@@ -44,6 +45,17 @@ public class UnlockedItemsScreenViewModel implements AutoCloseable {
             public void onDelete(UnlockedItem unlockedItem) {
                 allUnlockedItems.set(allUnlockedItemsSupplier.get());
             }
+
+            @Override
+            public void onBatchUpdate(Collection<UnlockedItem> updated,
+                Collection<UnlockedItem> deleted) {
+                allUnlockedItems.set(allUnlockedItemsSupplier.get());
+            }
+
+            @Override
+            public void onFullUpdate(Map<Integer, UnlockedItem> unlockedItemsMap) {
+                allUnlockedItems.set(allUnlockedItemsSupplier.get());
+            }
         };
         unlockedItemsDataProvider.addUnlockedItemsMapListener(unlockedItemsMapListener);
 
@@ -20,7 +20,10 @@ import com.elertan.utils.TickUtils;
 import com.google.inject.Inject;
 import java.time.Duration;
 import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -88,6 +91,12 @@ public class GroundItemsPolicy extends PolicyBase implements BUPluginLifecycle {
             public void onDelete(GroundItemOwnedByKey key) {
 
             }
+
+            @Override
+            public void onBatchUpdate(Map<GroundItemOwnedByKey, GroundItemOwnedByData> updated,
+                Set<GroundItemOwnedByKey> deleted) {
+
+            }
         };
         groundItemOwnedByDataProvider.addMapListener(groundItemOwnedByDataProviderListener);
 
@@ -426,6 +435,7 @@ public class GroundItemsPolicy extends PolicyBase implements BUPluginLifecycle {
 
         OffsetDateTime now = OffsetDateTime.now();
         long accountHash = client.getAccountHash();
+        List<GroundItemOwnedByKey> expiredKeys = new ArrayList<>();
 
         for (Map.Entry<GroundItemOwnedByKey, GroundItemOwnedByData> entry : map.entrySet()) {
             GroundItemOwnedByKey key = entry.getKey();
@@ -438,13 +448,10 @@ public class GroundItemsPolicy extends PolicyBase implements BUPluginLifecycle {
             }
 
             log.debug("Cleaning up expired ground item {}", key);
-
-            groundItemOwnedByDataProvider.delete(key).whenComplete((result, throwable) -> {
-                if (throwable != null) {
-                    log.error("Failed to clean up expired ground item {}", key, throwable);
-                }
-            });
+            expiredKeys.add(key);
         }
+
+        deleteExpiredGroundItems(expiredKeys);
     }
 
     private void cleanupExpiredGroundItemsForEveryone() {
@@ -457,6 +464,7 @@ public class GroundItemsPolicy extends PolicyBase implements BUPluginLifecycle {
         }
 
         OffsetDateTime now = OffsetDateTime.now();
+        List<GroundItemOwnedByKey> expiredKeys = new ArrayList<>();
 
         for (Map.Entry<GroundItemOwnedByKey, GroundItemOwnedByData> entry : map.entrySet()) {
             GroundItemOwnedByKey key = entry.getKey();
@@ -470,13 +478,27 @@ public class GroundItemsPolicy extends PolicyBase implements BUPluginLifecycle {
                 key,
                 data.getAccountHash()
             );
+            expiredKeys.add(key);
+        }
+
+        deleteExpiredGroundItems(expiredKeys);
+    }
+
+    private void deleteExpiredGroundItems(List<GroundItemOwnedByKey> expiredKeys) {
+        if (expiredKeys.isEmpty()) {
+            return;
+        }
 
-            groundItemOwnedByDataProvider.delete(key).whenComplete((result, throwable) -> {
+        groundItemOwnedByDataProvider.deleteMany(expiredKeys)
+            .whenComplete((result, throwable) -> {
                 if (throwable != null) {
-                    log.error("Failed to clean up expired ground item {}", key, throwable);
+                    log.error(
+                        "Failed to clean up {} expired ground items",
+                        expiredKeys.size(),
+                        throwable
+                    );
                 }
             });
-        }
     }
 
     @AllArgsConstructor
@@ -0,0 +1,16 @@
+package com.elertan.remote;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Hashes of the buckets of a stored map, kept next to the map so a copy of it can be compared
+ * bucket by bucket without reading the map itself.
+ */
+public interface BucketDigestStoragePort extends AutoCloseable {
+
+    // Digest per bucket, buckets that never had a digest written are left out
+    CompletableFuture<Map<Integer, String>> readAll();
+
+    CompletableFuture<Void> update(int bucket, String digest);
+}
@@ -0,0 +1,204 @@
+package com.elertan.remote;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+
+// Sends a second read when the first takes longer than most recent reads of its kind, within a
+// budget of extra requests. Only for idempotent reads.
+@Slf4j
+public class HedgedReads implements AutoCloseable {
+
+    private static final int LATENCY_WINDOW = 128;
+    // Below this many samples the percentile says too little to hedge on
+    private static final int MIN_SAMPLES = 16;
+    // Used instead of the percentile until a kind has enough samples, e.g. for the reads at startup
+    private static final long DEFAULT_INITIAL_HEDGE_DELAY_MS = 2_000;
+    private static final long MIN_HEDGE_DELAY_MS = 50;
+    private static final double MAX_BUDGET = 10;
+
+    private final double percentile;
+    private final double budgetPerRead;
+    private final long initialHedgeDelayMs;
+    private final ScheduledExecutorService scheduler;
+
+    private final Object lock = new Object();
+    // Per kind of read, a small read should not wait for the percentile of a large one
+    private final Map<String, LatencyWindow> latencyWindows = new ConcurrentHashMap<>();
+    private double budget = MAX_BUDGET;
+
+    private final AtomicLong hedgeCount = new AtomicLong();
+    private final AtomicLong hedgeWinCount = new AtomicLong();
+
+    /**
+     * @param percentile    latency percentile after which a read is hedged, e.g. 0.95
+     * @param budgetPerRead extra requests earned per read, e.g. 0.05 for at most 5% more reads
+     */
+    public HedgedReads(double percentile, double budgetPerRead) {
+        this(percentile, budgetPerRead, DEFAULT_INITIAL_HEDGE_DELAY_MS);
+    }
+
+    /**
+     * @param initialHedgeDelayMs delay after which a read is hedged while its kind has too few
+     *                            latencies for the percentile
+     */
+    public HedgedReads(double percentile, double budgetPerRead, long initialHedgeDelayMs) {
+        if (percentile <= 0 || percentile >= 1) {
+            throw new IllegalArgumentException("percentile must be between 0 and 1");
+        }
+        this.percentile = percentile;
+        this.budgetPerRead = budgetPerRead;
+        this.initialHedgeDelayMs = initialHedgeDelayMs;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "bu-hedged-reads");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Reads for which a second request was sent
+    public long getHedgeCount() {
+        return hedgeCount.get();
+    }
+
+    // Hedged reads that were answered by the second request
+    public long getHedgeWinCount() {
+        return hedgeWinCount.get();
+    }
+
+    /**
+     * @param kind reads of the same kind share their latencies, e.g. the path read
+     * @param read sends the request, called a second time for the hedge. Cancelling the future
+     *             it returns should cancel the request.
+     */
+    public <T> CompletableFuture<T> read(String kind, Supplier<CompletableFuture<T>> read) {
+        LatencyWindow window = latencyWindows.computeIfAbsent(kind, __ -> new LatencyWindow());
+        long hedgeDelayMs = scheduler.isShutdown() ? -1 : getHedgeDelayMillis(window);
+        CompletableFuture<T> result = new CompletableFuture<>();
+        CompletableFuture<T> primary = send(read, window);
+        if (hedgeDelayMs < 0) {
+            primary.whenComplete((value, throwable) -> complete(result, value, throwable, null));
+            return result;
+        }
+
+        AtomicReference<CompletableFuture<T>> hedge = new AtomicReference<>();
+        ScheduledFuture<?> hedgeTimer = scheduler.schedule(() -> {
+            if (result.isDone() || !tryTakeBudget()) {
+                return;
+            }
+            hedgeCount.incrementAndGet();
+            log.debug("{} read slower than {} ms, sending a hedge", kind, hedgeDelayMs);
+            CompletableFuture<T> second = send(read, window);
+            hedge.set(second);
+            second.whenComplete((value, throwable) -> {
+                if (throwable == null && !result.isDone()) {
+                    hedgeWinCount.incrementAndGet();
+                }
+                complete(result, value, throwable, primary);
+            });
+        }, hedgeDelayMs, TimeUnit.MILLISECONDS);
+
+        primary.whenComplete(
+            (value, throwable) -> complete(result, value, throwable, hedge.get()));
+        result.whenComplete((value, throwable) -> {
+            hedgeTimer.cancel(false);
+            // The loser is not needed anymore
+            primary.cancel(true);
+            CompletableFuture<T> second = hedge.get();
+            if (second != null) {
+                second.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        log.debug(
+            "{} reads hedged, {} answered by the hedge",
+            hedgeCount.get(),
+            hedgeWinCount.get()
+        );
+    }
+
+    private static <T> CompletableFuture<T> send(Supplier<CompletableFuture<T>> read,
+        LatencyWindow window) {
+        final long startNanos = System.nanoTime();
+        CompletableFuture<T> future;
+        try {
+            future = read.get();
+        } catch (Exception e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+        }
+        future.whenComplete((value, throwable) -> {
+            if (throwable == null) {
+                window.record((System.nanoTime() - startNanos) / 1_000_000);
+            }
+        });
+        return future;
+    }
+
+    private static <T> void complete(CompletableFuture<T> result, T value, Throwable throwable,
+        CompletableFuture<T> other) {
+        if (throwable == null) {
+            result.complete(value);
+            return;
+        }
+        // A failure only counts once the other request can not answer anymore
+        if (other != null && !other.isDone()) {
+            return;
+        }
+        result.completeExceptionally(throwable);
+    }
+
+    private long getHedgeDelayMillis(LatencyWindow window) {
+        synchronized (lock) {
+            budget = Math.min(MAX_BUDGET, budget + budgetPerRead);
+        }
+        long[] samples = window.samples();
+        if (samples.length < MIN_SAMPLES) {
+            return initialHedgeDelayMs;
+        }
+        Arrays.sort(samples);
+        int index = (int) Math.ceil(percentile * samples.length) - 1;
+        return Math.max(MIN_HEDGE_DELAY_MS, samples[Math.max(0, index)]);
+    }
+
+    private boolean tryTakeBudget() {
+        synchronized (lock) {
+            if (budget < 1) {
+                return false;
+            }
+            budget -= 1;
+            return true;
+        }
+    }
+
+    private static final class LatencyWindow {
+
+        private final long[] latencies = new long[LATENCY_WINDOW];
+        private int latencyCount;
+        private int latencyIndex;
+
+        private synchronized void record(long millis) {
+            latencies[latencyIndex] = millis;
+            latencyIndex = (latencyIndex + 1) % LATENCY_WINDOW;
+            latencyCount = Math.min(latencyCount + 1, LATENCY_WINDOW);
+        }
+
+        private synchronized long[] samples() {
+            return Arrays.copyOf(latencies, latencyCount);
+        }
+    }
+}
@@ -1,7 +1,10 @@
 package com.elertan.remote;
 
+import java.util.Collection;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 public interface KeyValueStoragePort<K, V> extends AutoCloseable {
 
@@ -9,12 +12,28 @@ public interface KeyValueStoragePort<K, V> extends AutoCloseable {
 
     CompletableFuture<Map<K, V>> readAll();
 
+    // Like readAll, but hands over the values in pages as they are loaded when the port loads
+    // them in pages, otherwise as a single page
+    CompletableFuture<Map<K, V>> readAllPaged(Consumer<Map<K, V>> pageConsumer);
+
+    // Always read from the remote, keys from fromKey up to and including toKey in the order the
+    // remote keeps them, a null toKey reads up to the last key
+    CompletableFuture<Map<K, V>> readRange(K fromKey, K toKey);
+
     CompletableFuture<Void> update(K key, V value);
 
     CompletableFuture<Void> updateAll(Map<K, V> map);
 
     CompletableFuture<Void> delete(K key);
 
+    // Writes all given keys in one request, other keys are left untouched unlike updateAll
+    CompletableFuture<Void> updateMany(Map<K, V> map);
+
+    CompletableFuture<Void> deleteMany(Collection<K> keys);
+
+    // Whether a write of the key was made here but not confirmed by the remote yet
+    boolean hasPendingWrite(K key);
+
     void addListener(Listener<K, V> listener);
 
     void removeListener(Listener<K, V> listener);
@@ -26,5 +45,7 @@ public interface KeyValueStoragePort<K, V> extends AutoCloseable {
         void onUpdate(K key, V value);
 
         void onDelete(K key);
+
+        void onBatchUpdate(Map<K, V> updated, Set<K> deleted);
     }
 }
@@ -0,0 +1,200 @@
+package com.elertan.remote;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+
+// Writes of the same key are sent one after another, a waiting single key write is superseded by a
+// newer one
+@Slf4j
+public class KeyedWriteScheduler<K> {
+
+    private final Object lock = new Object();
+    // Only keys with a write on the wire or waiting have an entry, the first write is the one the
+    // key is busy with
+    private final Map<K, ArrayDeque<PendingWrite<K>>> queues = new HashMap<>();
+    // Writes of every key not done yet, keys that get a queue meanwhile wait for them as well
+    private final List<PendingWrite<K>> pendingWritesOfAllKeys = new ArrayList<>();
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong supersededCount = new AtomicLong();
+
+    public CompletableFuture<Void> submit(K key, Supplier<CompletableFuture<Void>> write) {
+        PendingWrite<K> pendingWrite = new PendingWrite<>(Collections.singleton(key), write);
+        PendingWrite<K> supersededWrite = null;
+        boolean sendNow = false;
+        synchronized (lock) {
+            ArrayDeque<PendingWrite<K>> queue = getQueue(key);
+            PendingWrite<K> last = queue.peekLast();
+            if (last != null && last != queue.peekFirst() && last.isSingleKey()) {
+                // Waiting for the same write as the one it replaces
+                queue.pollLast();
+                queue.addLast(pendingWrite);
+                pendingWrite.waitingForKeys = last.waitingForKeys;
+                supersededWrite = last;
+            } else {
+                sendNow = enqueue(pendingWrite, Collections.singletonList(queue));
+            }
+        }
+
+        if (supersededWrite != null) {
+            supersededCount.incrementAndGet();
+            log.debug("write for {} superseded before it was sent", key);
+            CompletableFuture<Void> supersededFuture = supersededWrite.future;
+            pendingWrite.future.whenComplete((__, throwable) -> {
+                if (throwable != null) {
+                    supersededFuture.completeExceptionally(throwable);
+                } else {
+                    supersededFuture.complete(null);
+                }
+            });
+        }
+        if (sendNow) {
+            send(pendingWrite);
+        }
+        return pendingWrite.future;
+    }
+
+    // A write of all the keys at once, e.g. a multi-location update
+    public CompletableFuture<Void> submitMany(Collection<K> keys,
+        Supplier<CompletableFuture<Void>> write) {
+        Set<K> uniqueKeys = new LinkedHashSet<>(keys);
+        PendingWrite<K> pendingWrite = new PendingWrite<>(uniqueKeys, write);
+        boolean sendNow;
+        synchronized (lock) {
+            List<ArrayDeque<PendingWrite<K>>> keyQueues = new ArrayList<>(uniqueKeys.size());
+            for (K key : uniqueKeys) {
+                keyQueues.add(getQueue(key));
+            }
+            sendNow = enqueue(pendingWrite, keyQueues);
+        }
+        if (sendNow) {
+            send(pendingWrite);
+        }
+        return pendingWrite.future;
+    }
+
+    // A write that replaces every key, e.g. the whole collection, ordered against all other writes
+    public CompletableFuture<Void> submitToAllKeys(Supplier<CompletableFuture<Void>> write) {
+        PendingWrite<K> pendingWrite = new PendingWrite<>(null, write);
+        boolean sendNow;
+        synchronized (lock) {
+            sendNow = enqueue(pendingWrite, queues.values());
+            pendingWritesOfAllKeys.add(pendingWrite);
+        }
+        if (sendNow) {
+            send(pendingWrite);
+        }
+        return pendingWrite.future;
+    }
+
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    // Requests that were never sent because a newer write for the same key replaced them
+    public long getSupersededCount() {
+        return supersededCount.get();
+    }
+
+    // Called holding the lock
+    private ArrayDeque<PendingWrite<K>> getQueue(K key) {
+        ArrayDeque<PendingWrite<K>> queue = queues.get(key);
+        if (queue == null) {
+            queue = new ArrayDeque<>();
+            for (PendingWrite<K> writeOfAllKeys : pendingWritesOfAllKeys) {
+                if (!queue.isEmpty()) {
+                    writeOfAllKeys.waitingForKeys++;
+                }
+                queue.addLast(writeOfAllKeys);
+            }
+            queues.put(key, queue);
+        }
+        return queue;
+    }
+
+    // Called holding the lock, whether the write can be sent right away
+    private boolean enqueue(PendingWrite<K> pendingWrite,
+        Collection<ArrayDeque<PendingWrite<K>>> keyQueues) {
+        for (ArrayDeque<PendingWrite<K>> queue : keyQueues) {
+            if (!queue.isEmpty()) {
+                pendingWrite.waitingForKeys++;
+            }
+            queue.addLast(pendingWrite);
+        }
+        return pendingWrite.waitingForKeys == 0;
+    }
+
+    private void send(PendingWrite<K> pendingWrite) {
+        sentCount.incrementAndGet();
+        CompletableFuture<Void> writeFuture;
+        try {
+            writeFuture = pendingWrite.write.get();
+        } catch (Exception e) {
+            writeFuture = new CompletableFuture<>();
+            writeFuture.completeExceptionally(e);
+        }
+
+        writeFuture.whenComplete((__, throwable) -> {
+            if (throwable != null) {
+                pendingWrite.future.completeExceptionally(throwable);
+            } else {
+                pendingWrite.future.complete(null);
+            }
+
+            List<PendingWrite<K>> next = new ArrayList<>();
+            synchronized (lock) {
+                if (pendingWrite.keys == null) {
+                    pendingWritesOfAllKeys.remove(pendingWrite);
+                }
+                Iterator<Map.Entry<K, ArrayDeque<PendingWrite<K>>>> iterator =
+                    queues.entrySet().iterator();
+                while (iterator.hasNext()) {
+                    ArrayDeque<PendingWrite<K>> queue = iterator.next().getValue();
+                    if (queue.peekFirst() != pendingWrite) {
+                        continue;
+                    }
+                    queue.pollFirst();
+                    PendingWrite<K> nextOfKey = queue.peekFirst();
+                    if (nextOfKey == null) {
+                        iterator.remove();
+                    } else if (--nextOfKey.waitingForKeys == 0) {
+                        next.add(nextOfKey);
+                    }
+                }
+            }
+            for (PendingWrite<K> nextWrite : next) {
+                send(nextWrite);
+            }
+        });
+    }
+
+    private static final class PendingWrite<K> {
+
+        // Null for a write of all keys
+        private final Set<K> keys;
+        private final Supplier<CompletableFuture<Void>> write;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        // Keys that are still busy with an earlier write, sent once there are none
+        private int waitingForKeys;
+
+        private PendingWrite(Set<K> keys, Supplier<CompletableFuture<Void>> write) {
+            this.keys = keys;
+            this.write = write;
+        }
+
+        private boolean isSingleKey() {
+            return keys != null && keys.size() == 1;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.elertan.remote;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import lombok.extern.slf4j.Slf4j;
+
+// Token bucket per storage path, only background writes wait for a token
+@Slf4j
+public class PathRateLimiter implements AutoCloseable {
+
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private final LongSupplier clockMillis;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+        r -> {
+            Thread thread = new Thread(r, "bu-rate-limiter");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    public PathRateLimiter() {
+        // Monotonic, a wall clock jump would empty or refill every bucket
+        this(() -> System.nanoTime() / 1_000_000);
+    }
+
+    // Milliseconds of a monotonic clock
+    PathRateLimiter(LongSupplier clockMillis) {
+        this.clockMillis = clockMillis;
+    }
+
+    /**
+     * @param storagePath     e.g. '/GroundItemOwnedBy'
+     * @param burst           writes allowed at once after a quiet period
+     * @param writesPerMinute writes allowed per minute in the long run
+     */
+    public void setBudget(String storagePath, int burst, double writesPerMinute) {
+        buckets.put(storagePath, new Bucket(burst, writesPerMinute / 60_000d, clockMillis));
+    }
+
+    public void removeBudget(String storagePath) {
+        buckets.remove(storagePath);
+    }
+
+    /**
+     * @return completes once the write may be sent
+     */
+    public CompletableFuture<Void> acquire(String storagePath, WritePriority priority) {
+        Bucket bucket = buckets.get(storagePath);
+        if (bucket == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        long waitMillis = bucket.take(priority == WritePriority.Background);
+        if (waitMillis <= 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        bucket.delayedCount.incrementAndGet();
+        log.debug("{} over budget, delaying a background write by {} ms", storagePath, waitMillis);
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        try {
+            scheduler.schedule(() -> future.complete(null), waitMillis, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            // Shut down, the write is sent rather than lost
+            future.complete(null);
+        }
+        return future;
+    }
+
+    public Map<String, Bucket> getBuckets() {
+        return buckets;
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        for (Map.Entry<String, Bucket> entry : buckets.entrySet()) {
+            Bucket bucket = entry.getValue();
+            if (bucket.getDelayedCount() > 0 || bucket.getOverBudgetCount() > 0) {
+                log.info(
+                    "{}: {} background writes delayed, {} writes sent over budget",
+                    entry.getKey(),
+                    bucket.getDelayedCount(),
+                    bucket.getOverBudgetCount()
+                );
+            }
+        }
+    }
+
+    public static final class Bucket {
+
+        private final int burst;
+        private final double tokensPerMilli;
+        private final LongSupplier clockMillis;
+        private double tokens;
+        private long lastRefillMillis;
+        private final AtomicLong delayedCount = new AtomicLong();
+        private final AtomicLong overBudgetCount = new AtomicLong();
+
+        private Bucket(int burst, double tokensPerMilli, LongSupplier clockMillis) {
+            this.burst = burst;
+            this.tokensPerMilli = tokensPerMilli;
+            this.clockMillis = clockMillis;
+            this.tokens = burst;
+            this.lastRefillMillis = clockMillis.getAsLong();
+        }
+
+        // Background writes that had to wait for a token
+        public long getDelayedCount() {
+            return delayedCount.get();
+        }
+
+        // Other writes sent while there was no token
+        public long getOverBudgetCount() {
+            return overBudgetCount.get();
+        }
+
+        // The time to wait before the token taken is available, 0 when it is right away
+        private synchronized long take(boolean canWait) {
+            long now = clockMillis.getAsLong();
+            // A clock going back refills nothing rather than taking tokens away
+            long elapsedMillis = Math.max(0, now - lastRefillMillis);
+            tokens = Math.min(burst, tokens + elapsedMillis * tokensPerMilli);
+            lastRefillMillis = now;
+            if (tokens >= 1) {
+                tokens -= 1;
+                return 0;
+            }
+            if (!canWait) {
+                overBudgetCount.incrementAndGet();
+                return 0;
+            }
+            // Reserves the next token, so waiting writes are spread out instead of sent together
+            tokens -= 1;
+            return (long) Math.ceil(-tokens / tokensPerMilli);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.elertan.remote;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Sends writes in lanes by {@link WritePriority}, each with its own limit of writes on the wire.
+ * <p>
+ * A burst of background writes only fills the background lane, so a critical write waits for at
+ * most the other critical writes. Within a lane writes are sent in the order they were submitted.
+ */
+@Slf4j
+public class PrioritizedWriteDispatcher {
+
+    private final Object lock = new Object();
+    private final Map<WritePriority, Lane> lanes = new EnumMap<>(WritePriority.class);
+
+    public PrioritizedWriteDispatcher() {
+        for (WritePriority priority : WritePriority.values()) {
+            lanes.put(priority, new Lane(priority));
+        }
+    }
+
+    public CompletableFuture<Void> submit(WritePriority priority,
+        Supplier<CompletableFuture<Void>> write) {
+        Lane lane = lanes.get(priority);
+        QueuedWrite queuedWrite = new QueuedWrite(write);
+        boolean sendNow;
+        synchronized (lock) {
+            sendNow = lane.inFlight < priority.getMaxInFlight();
+            if (sendNow) {
+                lane.inFlight++;
+            } else {
+                lane.queue.add(queuedWrite);
+            }
+        }
+        if (sendNow) {
+            send(lane, queuedWrite);
+        }
+        return queuedWrite.future;
+    }
+
+    public void logStats() {
+        synchronized (lock) {
+            for (Lane lane : lanes.values()) {
+                if (lane.sentCount == 0) {
+                    continue;
+                }
+                log.debug(
+                    "{} writes: {} sent, {} ms average and {} ms max from submit to done",
+                    lane.priority,
+                    lane.sentCount,
+                    lane.totalLatencyMillis / lane.sentCount,
+                    lane.maxLatencyMillis
+                );
+            }
+        }
+    }
+
+    private void send(Lane lane, QueuedWrite queuedWrite) {
+        CompletableFuture<Void> writeFuture;
+        try {
+            writeFuture = queuedWrite.write.get();
+        } catch (Exception e) {
+            writeFuture = new CompletableFuture<>();
+            writeFuture.completeExceptionally(e);
+        }
+
+        writeFuture.whenComplete((__, throwable) -> {
+            long latencyMillis = (System.nanoTime() - queuedWrite.submitNanos) / 1_000_000;
+            QueuedWrite next;
+            synchronized (lock) {
+                lane.sentCount++;
+                lane.totalLatencyMillis += latencyMillis;
+                lane.maxLatencyMillis = Math.max(lane.maxLatencyMillis, latencyMillis);
+                next = lane.queue.poll();
+                if (next == null) {
+                    lane.inFlight--;
+                }
+            }
+
+            if (throwable != null) {
+                queuedWrite.future.completeExceptionally(throwable);
+            } else {
+                queuedWrite.future.complete(null);
+            }
+            if (next != null) {
+                // The slot is handed over as is
+                send(lane, next);
+            }
+        });
+    }
+
+    private static final class Lane {
+
+        private final WritePriority priority;
+        private final ArrayDeque<QueuedWrite> queue = new ArrayDeque<>();
+        private int inFlight;
+        private long sentCount;
+        private long totalLatencyMillis;
+        private long maxLatencyMillis;
+
+        private Lane(WritePriority priority) {
+            this.priority = priority;
+        }
+    }
+
+    private static final class QueuedWrite {
+
+        private final Supplier<CompletableFuture<Void>> write;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        private final long submitNanos = System.nanoTime();
+
+        private QueuedWrite(Supplier<CompletableFuture<Void>> write) {
+            this.write = write;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.elertan.remote;
 
 import com.elertan.AccountConfigurationService;
+import com.elertan.BUPluginConfig;
 import com.elertan.BUPluginLifecycle;
 import com.elertan.event.BUEvent;
 import com.elertan.models.AccountConfiguration;
@@ -11,14 +12,29 @@ import com.elertan.models.Member;
 import com.elertan.models.UnlockedItem;
 import com.elertan.remote.firebase.FirebaseRealtimeDatabase;
 import com.elertan.remote.firebase.FirebaseRealtimeDatabaseURL;
-import com.elertan.remote.firebase.FirebaseSSEStream;
 import com.elertan.remote.firebase.storageAdapters.GameRulesFirebaseObjectStorageAdapter;
 import com.elertan.remote.firebase.storageAdapters.GroundItemOwnedByKeyValueStorageAdapter;
 import com.elertan.remote.firebase.storageAdapters.LastEventFirebaseObjectStorageAdapter;
 import com.elertan.remote.firebase.storageAdapters.MembersFirebaseKeyValueStorageAdapter;
+import com.elertan.remote.firebase.storageAdapters.UnlockedItemsDigestFirebaseStorageAdapter;
 import com.elertan.remote.firebase.storageAdapters.UnlockedItemsFirebaseKeyValueStorageAdapter;
 import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import javax.inject.Inject;
 import javax.inject.Singleton;
@@ -26,13 +42,27 @@ import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import net.runelite.api.Client;
 import net.runelite.api.GameState;
+import net.runelite.api.events.GameStateChanged;
+import net.runelite.client.RuneLite;
 import okhttp3.OkHttpClient;
 
 @Slf4j
 @Singleton
 public class RemoteStorageService implements BUPluginLifecycle {
 
+    // Hedge reads slower than 95% of recent ones, with at most 5% extra requests
+    private static final double HEDGE_PERCENTILE = 0.95;
+    private static final double HEDGE_BUDGET_PER_READ = 0.05;
+    // Writes allowed at once before the per minute budgets apply
+    private static final int WRITE_BURST = 30;
+    // Below the 5 minutes after which OkHttp closes idle connections
+    private static final long KEEP_WARM_INTERVAL_SECONDS = 4 * 60;
+    private static final long GAME_RULES_RETRY_SECONDS = 10;
+    private static final String STORAGE_LAYOUT_NAME = "StorageLayout";
+    private static final File DATA_DIR = new File(RuneLite.RUNELITE_DIR, "bronzeman-unleashed");
+
     private final ConcurrentLinkedQueue<Consumer<State>> stateListeners = new ConcurrentLinkedQueue<>();
+    private final Object dataportLock = new Object();
     @Inject
     private OkHttpClient httpClient;
     @Inject
@@ -41,23 +71,60 @@ public class RemoteStorageService implements BUPluginLifecycle {
     private Gson gson;
     @Inject
     private AccountConfigurationService accountConfigurationService;
+    @Inject
+    private BUPluginConfig buPluginConfig;
     @Getter
     private State state = State.NotReady;
     private FirebaseRealtimeDatabase firebaseRealtimeDatabase;
+    private File snapshotDir;
+    private ScheduledExecutorService keepWarmScheduler;
+    private volatile boolean onLoginScreen;
+    // Format and layout the record ports were created with, set by the group in its game rules
+    private volatile boolean compactRecords;
+    private volatile boolean shardedUnlockedItems;
     @Getter
     private KeyValueStoragePort<Long, Member> membersStoragePort;
     @Getter
     private KeyValueStoragePort<Integer, UnlockedItem> unlockedItemsStoragePort;
     @Getter
+    private BucketDigestStoragePort unlockedItemsDigestStoragePort;
+    @Getter
     private ObjectStoragePort<GameRules> gameRulesStoragePort;
     @Getter
     private ObjectStoragePort<BUEvent> lastEventStoragePort;
     @Getter
     private KeyValueStoragePort<GroundItemOwnedByKey, GroundItemOwnedByData> groundItemOwnedByStoragePort;
     private final Consumer<AccountConfiguration> currentAccountConfigurationChangeListener = this::currentAccountConfigurationChangeListener;
+    private final ObjectStoragePort.Listener<GameRules> gameRulesListener = new ObjectStoragePort.Listener<GameRules>() {
+        @Override
+        public void onUpdate(GameRules value) {
+            onGameRulesChanged(value);
+        }
+
+        @Override
+        public void onDelete() {
+            onGameRulesChanged(null);
+        }
+    };
 
     @Override
     public void startUp() {
+        keepWarmScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "bu-keep-warm");
+            thread.setDaemon(true);
+            return thread;
+        });
+        keepWarmScheduler.scheduleWithFixedDelay(
+            this::keepConnectionsWarm,
+            KEEP_WARM_INTERVAL_SECONDS,
+            KEEP_WARM_INTERVAL_SECONDS,
+            TimeUnit.SECONDS
+        );
+        onLoginScreen = client.getGameState() == GameState.LOGIN_SCREEN;
+        if (onLoginScreen) {
+            warmUpConfiguredDatabases();
+        }
+
         accountConfigurationService.addCurrentAccountConfigurationChangeListener(
             currentAccountConfigurationChangeListener);
         if (accountConfigurationService.isReady() && client.getGameState() == GameState.LOGGED_IN) {
@@ -67,11 +134,29 @@ public class RemoteStorageService implements BUPluginLifecycle {
 
     @Override
     public void shutDown() throws Exception {
-        clearCurrentDataport();
+        if (keepWarmScheduler != null) {
+            keepWarmScheduler.shutdownNow();
+            keepWarmScheduler = null;
+        }
+        synchronized (dataportLock) {
+            clearCurrentDataport();
+        }
         accountConfigurationService.removeCurrentAccountConfigurationChangeListener(
             currentAccountConfigurationChangeListener);
     }
 
+    public void onGameStateChanged(GameStateChanged event) {
+        GameState gameState = event.getGameState();
+        boolean wasOnLoginScreen = onLoginScreen;
+        onLoginScreen = gameState == GameState.LOGIN_SCREEN
+            || gameState == GameState.LOGIN_SCREEN_AUTHENTICATOR
+            || gameState == GameState.LOGGING_IN;
+        if (onLoginScreen && !wasOnLoginScreen) {
+            // The account is not known yet, but it is most likely one of the configured ones
+            warmUpConfiguredDatabases();
+        }
+    }
+
     public void addStateListener(Consumer<State> listener) {
         stateListeners.add(listener);
     }
@@ -80,6 +165,19 @@ public class RemoteStorageService implements BUPluginLifecycle {
         stateListeners.remove(listener);
     }
 
+    /**
+     * Where a data provider keeps the snapshot of its data for the current database and account.
+     *
+     * @return null while no account configuration is in use
+     */
+    public File getSnapshotFile(String name) {
+        File dir = snapshotDir;
+        if (dir == null) {
+            return null;
+        }
+        return new File(dir, name + ".json");
+    }
+
     private void setState(State state) {
         if (this.state == state) {
             return;
@@ -100,20 +198,21 @@ public class RemoteStorageService implements BUPluginLifecycle {
     }
 
     private void useAccountConfiguration(AccountConfiguration accountConfiguration) {
-        try {
-            clearCurrentDataport();
-        } catch (Exception e) {
-            log.error("Failed to clear current data port", e);
-        }
-        if (accountConfiguration == null) {
-            return;
-        }
-
-        // We can support different kinds of data ports here later
-        FirebaseRealtimeDatabaseURL url = accountConfiguration.getFirebaseRealtimeDatabaseURL();
-        configureFromFirebaseRealtimeDatabase(url);
+        synchronized (dataportLock) {
+            try {
+                clearCurrentDataport();
+            } catch (Exception e) {
+                log.error("Failed to clear current data port", e);
+            }
+            if (accountConfiguration == null) {
+                return;
+            }
 
-        setState(State.Ready);
+            // We can support different kinds of data ports here later
+            FirebaseRealtimeDatabaseURL url = accountConfiguration.getFirebaseRealtimeDatabaseURL();
+            snapshotDir = getSnapshotDir(url, client.getAccountHash());
+            configureFromFirebaseRealtimeDatabase(url);
+        }
     }
 
     private void clearCurrentDataport() throws Exception {
@@ -135,47 +234,262 @@ public class RemoteStorageService implements BUPluginLifecycle {
             unlockedItemsStoragePort.close();
             unlockedItemsStoragePort = null;
         }
+        if (unlockedItemsDigestStoragePort != null) {
+            unlockedItemsDigestStoragePort.close();
+            unlockedItemsDigestStoragePort = null;
+        }
         if (gameRulesStoragePort != null) {
+            gameRulesStoragePort.removeListener(gameRulesListener);
             gameRulesStoragePort.close();
             gameRulesStoragePort = null;
         }
 
         if (firebaseRealtimeDatabase != null) {
-            FirebaseSSEStream stream = firebaseRealtimeDatabase.getStream();
-            stream.stop();
-
+            firebaseRealtimeDatabase.close();
             firebaseRealtimeDatabase = null;
         }
 
+        snapshotDir = null;
+
         log.info("Dataport has been cleared");
     }
 
     private void configureFromFirebaseRealtimeDatabase(FirebaseRealtimeDatabaseURL url) {
-        firebaseRealtimeDatabase = new FirebaseRealtimeDatabase(httpClient, gson, url);
-
-        groundItemOwnedByStoragePort = new GroundItemOwnedByKeyValueStorageAdapter(
-            firebaseRealtimeDatabase,
-            gson
+        firebaseRealtimeDatabase = new FirebaseRealtimeDatabase(
+            httpClient,
+            gson,
+            url,
+            getOutboxJournalFile(url)
         );
+        // Ground item ownership and the last event follow everything the group does in game, the
+        // other paths only get a budget to count writes beyond it
+        PathRateLimiter rateLimiter = firebaseRealtimeDatabase.getRateLimiter();
+        rateLimiter.setBudget(
+            "/GroundItemOwnedBy",
+            WRITE_BURST,
+            buPluginConfig.groundItemWritesPerMinute()
+        );
+        rateLimiter.setBudget("/LastEvent", WRITE_BURST, 60);
+        rateLimiter.setBudget("/UnlockedItems", WRITE_BURST, 120);
+        rateLimiter.setBudget(
+            UnlockedItemsFirebaseKeyValueStorageAdapter.SHARDED_BASE_PATH,
+            WRITE_BURST,
+            120
+        );
+        rateLimiter.setBudget("/Members", WRITE_BURST, 30);
+        rateLimiter.setBudget(
+            UnlockedItemsDigestFirebaseStorageAdapter.BASE_PATH,
+            WRITE_BURST,
+            120
+        );
+        // Unlocks and the group itself must survive an outage, ground items and the last event are
+        // stale by the time they could be replayed
+        firebaseRealtimeDatabase.journalWritesTo("/UnlockedItems");
+        firebaseRealtimeDatabase.journalWritesTo(
+            UnlockedItemsFirebaseKeyValueStorageAdapter.SHARDED_BASE_PATH);
+        firebaseRealtimeDatabase.journalWritesTo("/Members");
+        firebaseRealtimeDatabase.journalWritesTo("/GameRules");
+        firebaseRealtimeDatabase.setCompressRequestBodies(buPluginConfig.compressWrites());
+        if (buPluginConfig.hedgeReads()) {
+            firebaseRealtimeDatabase.setHedgedReads(
+                new HedgedReads(HEDGE_PERCENTILE, HEDGE_BUDGET_PER_READ));
+        }
+
         lastEventStoragePort = new LastEventFirebaseObjectStorageAdapter(
             firebaseRealtimeDatabase,
             gson
         );
-        membersStoragePort = new MembersFirebaseKeyValueStorageAdapter(
+        unlockedItemsDigestStoragePort = new UnlockedItemsDigestFirebaseStorageAdapter(
+            firebaseRealtimeDatabase
+        );
+        gameRulesStoragePort = new GameRulesFirebaseObjectStorageAdapter(
             firebaseRealtimeDatabase,
             gson
         );
-        unlockedItemsStoragePort = new UnlockedItemsFirebaseKeyValueStorageAdapter(
+
+        // Every member writes records in the format and layout the group picked. The ports start
+        // with the last known ones, so the data is usable before, or without, the game rules.
+        StorageLayout layout = loadStorageLayout();
+        compactRecords = layout.compactRecords;
+        shardedUnlockedItems = layout.shardedUnlockedItems;
+        groundItemOwnedByStoragePort = new GroundItemOwnedByKeyValueStorageAdapter(
             firebaseRealtimeDatabase,
-            gson
+            compactRecords
         );
-        gameRulesStoragePort = new GameRulesFirebaseObjectStorageAdapter(
+        membersStoragePort = new MembersFirebaseKeyValueStorageAdapter(
             firebaseRealtimeDatabase,
-            gson
+            compactRecords
         );
+        // Unlocks still pending for the other layout would land where nobody reads them
+        if (shardedUnlockedItems) {
+            firebaseRealtimeDatabase.reroutePendingWrites(
+                "/UnlockedItems",
+                UnlockedItemsFirebaseKeyValueStorageAdapter::toShardedPath
+            );
+            unlockedItemsStoragePort = UnlockedItemsFirebaseKeyValueStorageAdapter.createSharded(
+                firebaseRealtimeDatabase,
+                compactRecords
+            );
+        } else {
+            firebaseRealtimeDatabase.reroutePendingWrites(
+                UnlockedItemsFirebaseKeyValueStorageAdapter.SHARDED_BASE_PATH,
+                UnlockedItemsFirebaseKeyValueStorageAdapter::toUnshardedPath
+            );
+            unlockedItemsStoragePort = new UnlockedItemsFirebaseKeyValueStorageAdapter(
+                firebaseRealtimeDatabase,
+                compactRecords
+            );
+        }
+        gameRulesStoragePort.addListener(gameRulesListener);
+
+        // Only the storage paths the plugin uses are streamed, each on its own connection.
+        // Started right away, they are what warms the connection once the account is known.
+        firebaseRealtimeDatabase.startStreams();
+        setState(State.Ready);
+
+        checkStorageLayout(firebaseRealtimeDatabase);
+    }
+
+    private void checkStorageLayout(FirebaseRealtimeDatabase db) {
+        ObjectStoragePort<GameRules> gameRulesPort = gameRulesStoragePort;
+        if (firebaseRealtimeDatabase != db || gameRulesPort == null) {
+            return;
+        }
+        gameRulesPort.read().whenComplete((gameRules, throwable) -> {
+            synchronized (dataportLock) {
+                if (firebaseRealtimeDatabase != db) {
+                    // Cleared or replaced while reading
+                    return;
+                }
+                if (throwable != null) {
+                    log.warn(
+                        "Failed to read how the group stores its data, trying again in {} seconds",
+                        GAME_RULES_RETRY_SECONDS,
+                        throwable
+                    );
+                    ScheduledExecutorService scheduler = keepWarmScheduler;
+                    if (scheduler != null) {
+                        scheduler.schedule(
+                            () -> checkStorageLayout(db),
+                            GAME_RULES_RETRY_SECONDS,
+                            TimeUnit.SECONDS
+                        );
+                    }
+                    return;
+                }
+
+                useStorageLayout(getStorageLayout(gameRules));
+            }
+        });
+    }
+
+    private void onGameRulesChanged(GameRules gameRules) {
+        useStorageLayout(getStorageLayout(gameRules));
+    }
+
+    private static StorageLayout getStorageLayout(GameRules gameRules) {
+        StorageLayout layout = new StorageLayout();
+        layout.compactRecords = gameRules != null && gameRules.isCompactRecords();
+        layout.shardedUnlockedItems = gameRules != null && gameRules.isShardUnlockedItems();
+        return layout;
+    }
+
+    private void useStorageLayout(StorageLayout layout) {
+        ScheduledExecutorService scheduler = keepWarmScheduler;
+        if (scheduler == null || layout.compactRecords == compactRecords
+            && layout.shardedUnlockedItems == shardedUnlockedItems) {
+            return;
+        }
+        // Saved first, the reconnect creates the ports from it
+        saveStorageLayout(layout);
+        log.info("The group changed how its data is stored, reconnecting");
+        // Not from the stream thread, reconnecting closes its stream
+        scheduler.execute(() -> useAccountConfiguration(
+            accountConfigurationService.getCurrentAccountConfiguration()));
+    }
+
+    private StorageLayout loadStorageLayout() {
+        File file = getSnapshotFile(STORAGE_LAYOUT_NAME);
+        if (file == null || !file.exists()) {
+            return new StorageLayout();
+        }
+        try (Reader reader = new InputStreamReader(
+            new FileInputStream(file),
+            StandardCharsets.UTF_8
+        )) {
+            StorageLayout layout = gson.fromJson(reader, StorageLayout.class);
+            return layout != null ? layout : new StorageLayout();
+        } catch (IOException | JsonParseException e) {
+            log.warn("Failed to read the storage layout {}", file, e);
+            return new StorageLayout();
+        }
+    }
+
+    private void saveStorageLayout(StorageLayout layout) {
+        File file = getSnapshotFile(STORAGE_LAYOUT_NAME);
+        if (file == null) {
+            return;
+        }
+        try {
+            File parent = file.getParentFile();
+            if (parent != null && !parent.exists() && !parent.mkdirs()) {
+                throw new IOException("Failed to create " + parent);
+            }
+            try (Writer writer = new OutputStreamWriter(
+                new FileOutputStream(file),
+                StandardCharsets.UTF_8
+            )) {
+                gson.toJson(layout, writer);
+            }
+        } catch (IOException e) {
+            log.error("Failed to write the storage layout {}", file, e);
+        }
+    }
+
+    private static File getOutboxJournalFile(FirebaseRealtimeDatabaseURL url) {
+        // One journal per database, writes must never be replayed against another group
+        String host = url.getUrl().getHost().replaceAll("[^A-Za-z0-9.-]", "_");
+        return new File(DATA_DIR, "outbox-" + host + ".jsonl");
+    }
+
+    private void keepConnectionsWarm() {
+        try {
+            FirebaseRealtimeDatabase db = firebaseRealtimeDatabase;
+            if (db != null) {
+                FirebaseRealtimeDatabase.warmUp(httpClient, db.getDatabaseURL());
+            } else if (onLoginScreen) {
+                warmUpConfiguredDatabases();
+            }
+        } catch (Exception e) {
+            log.warn("Failed to keep connections warm", e);
+        }
+    }
+
+    private void warmUpConfiguredDatabases() {
+        // Accounts of the same group share a database, warm each one only once
+        Map<String, FirebaseRealtimeDatabaseURL> urlsByBaseUrl = new LinkedHashMap<>();
+        for (AccountConfiguration accountConfiguration :
+            accountConfigurationService.getAccountConfigurations()) {
+            FirebaseRealtimeDatabaseURL url = accountConfiguration.getFirebaseRealtimeDatabaseURL();
+            if (url != null) {
+                urlsByBaseUrl.put(url.getBaseUrl(), url);
+            }
+        }
+        for (FirebaseRealtimeDatabaseURL url : urlsByBaseUrl.values()) {
+            FirebaseRealtimeDatabase.warmUp(httpClient, url);
+        }
+    }
+
+    private static File getSnapshotDir(FirebaseRealtimeDatabaseURL url, long accountHash) {
+        String host = url.getUrl().getHost().replaceAll("[^A-Za-z0-9.-]", "_");
+        return new File(DATA_DIR, "snapshots" + File.separator + host + "-" + accountHash);
+    }
+
+    // Record format and unlocked items layout the group used when last connected
+    private static final class StorageLayout {
 
-        FirebaseSSEStream stream = firebaseRealtimeDatabase.getStream();
-        stream.start();
+        private boolean compactRecords;
+        private boolean shardedUnlockedItems;
     }
 
     public enum State {
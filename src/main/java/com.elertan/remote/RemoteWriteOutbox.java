@@ -0,0 +1,641 @@
+package com.elertan.remote;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+import lombok.extern.slf4j.Slf4j;
+
+// Journal of writes not acknowledged yet, replayed once the remote is reachable again
+@Slf4j
+public class RemoteWriteOutbox implements AutoCloseable {
+
+    private static final int REPLAY_BATCH_SIZE = 250;
+    // Rewrite the journal with only the pending writes once it holds this many lines
+    private static final int COMPACT_AFTER_LINES = 2000;
+    private static final long DEFAULT_RETRY_MIN_MILLIS = 5_000;
+    private static final long RETRY_MAX_MILLIS = 5 * 60_000;
+
+    private final File journalFile;
+    private final Gson gson;
+    private final Function<Map<String, JsonElement>, CompletableFuture<Void>> batchWriter;
+    private final Predicate<Throwable> isRetryable;
+    private final long retryMinMillis;
+
+    private final Object lock = new Object();
+    // Pending writes by path, in the order they were first made
+    private final LinkedHashMap<String, PendingWrite> pendingByPath = new LinkedHashMap<>();
+    private final AtomicBoolean replaying = new AtomicBoolean();
+    // Replays pending writes while the remote is reachable but failed them, e.g. with a 503
+    private final ScheduledExecutorService retryScheduler =
+        Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "bu-outbox-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+    private long retryDelayMillis;
+    private ScheduledFuture<?> scheduledRetry;
+    private long nextId = 1;
+    // Lines waiting for the journal thread and the future it completes once they are flushed
+    private List<Supplier<String>> unwrittenLines = new ArrayList<>();
+    private CompletableFuture<Void> unwrittenLinesFlushed;
+    private final ExecutorService journalExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "bu-outbox-journal");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Only used on the journal thread, once constructed
+    private int journalLines;
+    private Writer journalWriter;
+
+    // isRetryable tells whether a failed write is kept for a later replay
+    public RemoteWriteOutbox(
+        File journalFile,
+        Gson gson,
+        Function<Map<String, JsonElement>, CompletableFuture<Void>> batchWriter,
+        Predicate<Throwable> isRetryable
+    ) {
+        this(journalFile, gson, batchWriter, isRetryable, DEFAULT_RETRY_MIN_MILLIS);
+    }
+
+    // retryMinMillis is the first delay before failed writes are replayed, it doubles per failure
+    RemoteWriteOutbox(
+        File journalFile,
+        Gson gson,
+        Function<Map<String, JsonElement>, CompletableFuture<Void>> batchWriter,
+        Predicate<Throwable> isRetryable,
+        long retryMinMillis
+    ) {
+        this.journalFile = journalFile;
+        this.gson = gson;
+        this.batchWriter = batchWriter;
+        this.isRetryable = isRetryable;
+        this.retryMinMillis = retryMinMillis;
+        this.retryDelayMillis = retryMinMillis;
+
+        synchronized (lock) {
+            load();
+            compact(new ArrayList<>(pendingByPath.values()));
+        }
+        if (!pendingByPath.isEmpty()) {
+            log.info("Outbox has {} writes pending from a previous session", pendingByPath.size());
+        }
+    }
+
+    public int getPendingCount() {
+        synchronized (lock) {
+            return pendingByPath.size();
+        }
+    }
+
+    // Whether a write of the path or of one of its parents was not acknowledged yet
+    public boolean hasPendingWrite(String path) {
+        synchronized (lock) {
+            String current = path;
+            while (!current.isEmpty()) {
+                if (pendingByPath.containsKey(current)) {
+                    return true;
+                }
+                current = current.substring(0, current.lastIndexOf('/'));
+            }
+            return false;
+        }
+    }
+
+    // Moves the pending writes of the storage path to where mapPath puts them, e.g. after the data
+    // moved to another layout. A write of the new path made meanwhile is kept instead.
+    public CompletableFuture<Void> reroute(String storagePath, UnaryOperator<String> mapPath) {
+        synchronized (lock) {
+            int reroutedCount = 0;
+            for (PendingWrite write : new ArrayList<>(pendingByPath.values())) {
+                if (!write.path.startsWith(storagePath + "/")) {
+                    continue;
+                }
+                String newPath = mapPath.apply(write.path);
+                if (newPath.equals(write.path)) {
+                    continue;
+                }
+                pendingByPath.remove(write.path);
+                long id = write.id;
+                unwrittenLines.add(() -> {
+                    JsonObject ack = new JsonObject();
+                    ack.addProperty("op", "ack");
+                    ack.addProperty("id", id);
+                    return gson.toJson(ack);
+                });
+                PendingWrite current = pendingByPath.get(newPath);
+                if (current != null && current.id > write.id) {
+                    continue;
+                }
+                PendingWrite rerouted = new PendingWrite(nextId++, newPath, write.value);
+                putPending(rerouted);
+                unwrittenLines.add(rerouted::toJournalLine);
+                reroutedCount++;
+            }
+            if (reroutedCount > 0) {
+                log.info("Moved {} pending writes of {} in the outbox", reroutedCount, storagePath);
+            }
+            return scheduleJournalWrite();
+        }
+    }
+
+    // Journals the writes, then sends them, JsonNull values are deletes
+    public CompletableFuture<Void> submit(Map<String, JsonElement> valuesByPath,
+        Supplier<CompletableFuture<Void>> send) {
+        List<PendingWrite> writes = new ArrayList<>(valuesByPath.size());
+        CompletableFuture<Void> journaled;
+        synchronized (lock) {
+            for (Map.Entry<String, JsonElement> entry : valuesByPath.entrySet()) {
+                PendingWrite write = new PendingWrite(nextId++, entry.getKey(), entry.getValue());
+                putPending(write);
+                unwrittenLines.add(write::toJournalLine);
+                writes.add(write);
+            }
+            journaled = scheduleJournalWrite();
+        }
+
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        journaled.thenCompose(__ -> send.get()).whenComplete((__, throwable) -> {
+            if (throwable != null && isRetryable.test(unwrap(throwable))) {
+                log.warn(
+                    "Remote unreachable, {} writes kept in the outbox for later: {}",
+                    writes.size(),
+                    unwrap(throwable).getMessage()
+                );
+                scheduleRetry();
+                future.complete(null);
+                return;
+            }
+            if (throwable == null) {
+                resetRetryDelay();
+            }
+
+            // Completes once the ack is journaled, a write reported as sent is not replayed later
+            acknowledge(writes).whenComplete((___, ackThrowable) -> {
+                if (throwable != null) {
+                    future.completeExceptionally(unwrap(throwable));
+                } else {
+                    future.complete(null);
+                }
+            });
+        });
+        return future;
+    }
+
+    // Sends all pending writes, whenever the remote is reachable again
+    public CompletableFuture<Void> replay() {
+        if (!replaying.compareAndSet(false, true)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        List<PendingWrite> writes;
+        synchronized (lock) {
+            writes = new ArrayList<>(pendingByPath.values());
+        }
+        if (writes.isEmpty()) {
+            replaying.set(false);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        log.info("Replaying {} pending writes from the outbox", writes.size());
+        final long startNanos = System.nanoTime();
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        replayBatches(writes, future);
+        return future.whenComplete((__, throwable) -> {
+            replaying.set(false);
+            if (throwable != null) {
+                scheduleRetry();
+            } else {
+                resetRetryDelay();
+                log.info(
+                    "Replayed {} writes from the outbox in {} ms",
+                    writes.size(),
+                    (System.nanoTime() - startNanos) / 1_000_000
+                );
+            }
+        });
+    }
+
+    private void replayBatches(List<PendingWrite> remaining, CompletableFuture<Void> future) {
+        if (remaining.isEmpty()) {
+            future.complete(null);
+            return;
+        }
+        List<PendingWrite> deferred = new ArrayList<>();
+        List<PendingWrite> batch = takeBatch(remaining, deferred);
+        replayBatch(batch).whenComplete((__, throwable) -> {
+            if (throwable != null) {
+                Throwable cause = unwrap(throwable);
+                log.warn("Outbox replay interrupted, will retry: {}", cause.getMessage());
+                future.completeExceptionally(cause);
+                return;
+            }
+            replayBatches(deferred, future);
+        });
+    }
+
+    // A multi-location update is refused when one path is an ancestor of another, such writes
+    // and everything after them that overlaps go in a later batch so their order is kept
+    private static List<PendingWrite> takeBatch(List<PendingWrite> writes,
+        List<PendingWrite> deferred) {
+        List<PendingWrite> batch = new ArrayList<>();
+        NavigableSet<String> batchPaths = new TreeSet<>();
+        NavigableSet<String> deferredPaths = new TreeSet<>();
+        for (PendingWrite write : writes) {
+            if (batch.size() >= REPLAY_BATCH_SIZE
+                || overlaps(batchPaths, write.path)
+                || overlaps(deferredPaths, write.path)) {
+                deferred.add(write);
+                deferredPaths.add(write.path);
+                continue;
+            }
+            batch.add(write);
+            batchPaths.add(write.path);
+        }
+        return batch;
+    }
+
+    // Whether the paths hold the path, an ancestor or a descendant of it
+    private static boolean overlaps(NavigableSet<String> paths, String path) {
+        String descendant = paths.ceiling(path);
+        if (descendant != null && (descendant.equals(path) || descendant.startsWith(path + "/"))) {
+            return true;
+        }
+        for (int end = path.lastIndexOf('/'); end > 0; end = path.lastIndexOf('/', end - 1)) {
+            if (paths.contains(path.substring(0, end))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Completes exceptionally only when the remote could not be reached
+    private CompletableFuture<Void> replayBatch(List<PendingWrite> batch) {
+        List<PendingWrite> current = new ArrayList<>(batch.size());
+        List<PendingWrite> superseded = new ArrayList<>();
+        synchronized (lock) {
+            for (PendingWrite write : batch) {
+                PendingWrite latest = pendingByPath.get(write.path);
+                // A newer write of the path was made since the replay started, it is sent by itself
+                if (latest != null && latest.id == write.id) {
+                    current.add(write);
+                } else {
+                    superseded.add(write);
+                }
+            }
+        }
+        if (!superseded.isEmpty()) {
+            acknowledge(superseded);
+        }
+        if (current.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        Map<String, JsonElement> valuesByPath = new LinkedHashMap<>();
+        for (PendingWrite write : current) {
+            valuesByPath.put(write.path, write.value);
+        }
+        CompletableFuture<Void> batchFuture;
+        try {
+            batchFuture = batchWriter.apply(valuesByPath);
+        } catch (Exception e) {
+            batchFuture = new CompletableFuture<>();
+            batchFuture.completeExceptionally(e);
+        }
+        return batchFuture.handle((__, throwable) -> {
+            if (throwable == null) {
+                acknowledge(current);
+                return CompletableFuture.<Void>completedFuture(null);
+            }
+            Throwable cause = unwrap(throwable);
+            if (isRetryable.test(cause)) {
+                CompletableFuture<Void> failed = new CompletableFuture<>();
+                failed.completeExceptionally(cause);
+                return failed;
+            }
+            if (current.size() == 1) {
+                // The remote refuses this write, retrying would never succeed
+                log.error("Outbox replay of {} rejected, dropping it", current.get(0).path, cause);
+                acknowledge(current);
+                return CompletableFuture.<Void>completedFuture(null);
+            }
+            // One refused write fails the whole update, halves are sent until it is found
+            int half = current.size() / 2;
+            List<PendingWrite> first = current.subList(0, half);
+            List<PendingWrite> second = current.subList(half, current.size());
+            return replayBatch(first).thenCompose(___ -> replayBatch(second));
+        }).thenCompose(next -> next);
+    }
+
+    // Backs off while the remote keeps failing, a replay already scheduled is not moved
+    private void scheduleRetry() {
+        synchronized (lock) {
+            if (scheduledRetry != null) {
+                return;
+            }
+            long delayMillis = retryDelayMillis;
+            retryDelayMillis = Math.min(RETRY_MAX_MILLIS, retryDelayMillis * 2);
+            try {
+                scheduledRetry = retryScheduler.schedule(
+                    this::retry,
+                    delayMillis,
+                    TimeUnit.MILLISECONDS
+                );
+            } catch (RejectedExecutionException e) {
+                // Closed, the writes are replayed in the next session
+                return;
+            }
+            log.debug("Outbox replay scheduled in {} ms", delayMillis);
+        }
+    }
+
+    private void retry() {
+        synchronized (lock) {
+            // A replay failing right away schedules the next one
+            scheduledRetry = null;
+        }
+        replay().whenComplete((__, throwable) -> {
+            if (throwable != null) {
+                log.debug("Scheduled outbox replay did not complete", throwable);
+            }
+        });
+    }
+
+    private void resetRetryDelay() {
+        synchronized (lock) {
+            retryDelayMillis = retryMinMillis;
+        }
+    }
+
+    @Override
+    public void close() throws Exception {
+        retryScheduler.shutdownNow();
+        try {
+            journalExecutor.execute(() -> {
+                writeJournal();
+                closeJournalWriter();
+            });
+        } catch (RejectedExecutionException e) {
+            return;
+        }
+        journalExecutor.shutdown();
+        if (!journalExecutor.awaitTermination(5, TimeUnit.SECONDS)) {
+            log.warn("Outbox journal {} not closed in time", journalFile);
+        }
+    }
+
+    private CompletableFuture<Void> acknowledge(List<PendingWrite> writes) {
+        synchronized (lock) {
+            for (PendingWrite write : writes) {
+                PendingWrite current = pendingByPath.get(write.path);
+                // A newer write of the same path stays pending
+                if (current != null && current.id == write.id) {
+                    pendingByPath.remove(write.path);
+                }
+                long id = write.id;
+                unwrittenLines.add(() -> {
+                    JsonObject ack = new JsonObject();
+                    ack.addProperty("op", "ack");
+                    ack.addProperty("id", id);
+                    return gson.toJson(ack);
+                });
+            }
+            return scheduleJournalWrite();
+        }
+    }
+
+    // Called holding the lock, completes once the lines added so far are flushed
+    private CompletableFuture<Void> scheduleJournalWrite() {
+        if (unwrittenLinesFlushed != null) {
+            return unwrittenLinesFlushed;
+        }
+        CompletableFuture<Void> flushed = new CompletableFuture<>();
+        try {
+            journalExecutor.execute(this::writeJournal);
+        } catch (RejectedExecutionException e) {
+            // Closed, the writes are still sent but not journaled anymore
+            unwrittenLines.clear();
+            flushed.complete(null);
+            return flushed;
+        }
+        unwrittenLinesFlushed = flushed;
+        return flushed;
+    }
+
+    private void writeJournal() {
+        List<Supplier<String>> lines;
+        CompletableFuture<Void> flushed;
+        synchronized (lock) {
+            lines = unwrittenLines;
+            flushed = unwrittenLinesFlushed;
+            unwrittenLines = new ArrayList<>();
+            unwrittenLinesFlushed = null;
+        }
+        try {
+            for (Supplier<String> line : lines) {
+                appendToJournal(line.get());
+            }
+            flushJournal();
+            if (journalLines >= COMPACT_AFTER_LINES) {
+                List<PendingWrite> pending;
+                synchronized (lock) {
+                    pending = new ArrayList<>(pendingByPath.values());
+                }
+                compact(pending);
+            }
+        } finally {
+            if (flushed != null) {
+                flushed.complete(null);
+            }
+        }
+    }
+
+    private void putPending(PendingWrite write) {
+        // Re-inserted so the replay order follows the latest write
+        pendingByPath.remove(write.path);
+        pendingByPath.put(write.path, write);
+    }
+
+    private void load() {
+        if (!journalFile.exists()) {
+            return;
+        }
+        Map<Long, String> pathById = new LinkedHashMap<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+            new FileInputStream(journalFile),
+            StandardCharsets.UTF_8
+        ))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                JsonObject obj;
+                try {
+                    obj = new JsonParser().parse(line).getAsJsonObject();
+                } catch (JsonParseException | IllegalStateException e) {
+                    // Most likely the last line of a crashed session
+                    log.warn("Skipping unreadable outbox journal line");
+                    continue;
+                }
+                String op = obj.get("op").getAsString();
+                long id = obj.get("id").getAsLong();
+                nextId = Math.max(nextId, id + 1);
+                if ("write".equals(op)) {
+                    String path = obj.get("path").getAsString();
+                    JsonElement value = obj.has("value") ? obj.get("value") : JsonNull.INSTANCE;
+                    putPending(new PendingWrite(id, path, value));
+                    pathById.put(id, path);
+                } else if ("ack".equals(op)) {
+                    String path = pathById.remove(id);
+                    PendingWrite current = path == null ? null : pendingByPath.get(path);
+                    if (current != null && current.id == id) {
+                        pendingByPath.remove(path);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.error("Failed to read outbox journal {}", journalFile, e);
+        }
+    }
+
+    private void compact(List<PendingWrite> pending) {
+        closeJournalWriter();
+        File parent = journalFile.getParentFile();
+        try {
+            if (pending.isEmpty()) {
+                Files.deleteIfExists(journalFile.toPath());
+                journalLines = 0;
+                return;
+            }
+
+            if (parent != null && !parent.exists() && !parent.mkdirs()) {
+                throw new IOException("Failed to create " + parent);
+            }
+            File tmpFile = new File(parent, journalFile.getName() + ".tmp");
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(tmpFile),
+                StandardCharsets.UTF_8
+            ))) {
+                for (PendingWrite write : pending) {
+                    writer.write(write.toJournalLine());
+                    writer.write('\n');
+                }
+            }
+            Files.move(
+                tmpFile.toPath(),
+                journalFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE
+            );
+            journalLines = pending.size();
+        } catch (IOException e) {
+            log.error("Failed to compact outbox journal {}", journalFile, e);
+        }
+    }
+
+    private void appendToJournal(String line) {
+        try {
+            if (journalWriter == null) {
+                File parent = journalFile.getParentFile();
+                if (parent != null && !parent.exists() && !parent.mkdirs()) {
+                    throw new IOException("Failed to create " + parent);
+                }
+                journalWriter = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(journalFile, true),
+                    StandardCharsets.UTF_8
+                ));
+            }
+            journalWriter.write(line);
+            journalWriter.write('\n');
+            journalLines++;
+        } catch (IOException e) {
+            // The write is still sent, it just would not survive a crash
+            log.error("Failed to append to outbox journal {}", journalFile, e);
+        }
+    }
+
+    private void flushJournal() {
+        if (journalWriter == null) {
+            return;
+        }
+        try {
+            journalWriter.flush();
+        } catch (IOException e) {
+            log.error("Failed to flush outbox journal {}", journalFile, e);
+        }
+    }
+
+    private void closeJournalWriter() {
+        if (journalWriter == null) {
+            return;
+        }
+        try {
+            journalWriter.close();
+        } catch (IOException e) {
+            log.warn("Failed to close outbox journal {}", journalFile, e);
+        }
+        journalWriter = null;
+    }
+
+    private static Throwable unwrap(Throwable throwable) {
+        if (throwable instanceof CompletionException && throwable.getCause() != null) {
+            return throwable.getCause();
+        }
+        return throwable;
+    }
+
+    private final class PendingWrite {
+
+        private final long id;
+        private final String path;
+        private final JsonElement value;
+
+        private PendingWrite(long id, String path, JsonElement value) {
+            this.id = id;
+            this.path = path;
+            this.value = value == null ? JsonNull.INSTANCE : value;
+        }
+
+        private String toJournalLine() {
+            JsonObject obj = new JsonObject();
+            obj.addProperty("op", "write");
+            obj.addProperty("id", id);
+            obj.addProperty("path", path);
+            obj.add("value", value);
+            return gson.toJson(obj);
+        }
+    }
+}
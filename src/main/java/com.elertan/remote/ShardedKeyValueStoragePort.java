@@ -0,0 +1,331 @@
+package com.elertan.remote;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Spreads the keys of one logical map over several ports, one per shard, so each shard is read,
+ * written and streamed on its own and no request has to carry the whole map.
+ * <p>
+ * A full update of a single shard is handed to listeners as a full update of the whole map, put
+ * together from the last known values of the other shards.
+ */
+@Slf4j
+public class ShardedKeyValueStoragePort<K, V> implements KeyValueStoragePort<K, V> {
+
+    private final Function<K, String> shardOf;
+    private final Map<String, KeyValueStoragePort<K, V>> shards = new LinkedHashMap<>();
+    private final Map<String, Listener<K, V>> shardListeners = new HashMap<>();
+    private final ConcurrentLinkedQueue<Listener<K, V>> listeners = new ConcurrentLinkedQueue<>();
+
+    private final Object lock = new Object();
+    // Last known values per shard, a shard only has an entry once it was read completely
+    private final Map<String, Map<K, V>> valuesByShard = new HashMap<>();
+
+    /**
+     * @param shardNames   all shards, every key must map to one of them
+     * @param shardOf      the shard a key belongs to
+     * @param shardFactory creates the port of a shard
+     */
+    public ShardedKeyValueStoragePort(
+        Collection<String> shardNames,
+        Function<K, String> shardOf,
+        Function<String, KeyValueStoragePort<K, V>> shardFactory
+    ) {
+        if (shardNames.isEmpty()) {
+            throw new IllegalArgumentException("shardNames must not be empty");
+        }
+        this.shardOf = shardOf;
+        for (String shardName : shardNames) {
+            KeyValueStoragePort<K, V> shard = shardFactory.apply(shardName);
+            Listener<K, V> shardListener = new ShardListener(shardName);
+            shard.addListener(shardListener);
+            shards.put(shardName, shard);
+            shardListeners.put(shardName, shardListener);
+        }
+    }
+
+    public Set<String> getShardNames() {
+        return Collections.unmodifiableSet(shards.keySet());
+    }
+
+    public KeyValueStoragePort<K, V> getShard(String shardName) {
+        return shards.get(shardName);
+    }
+
+    @Override
+    public void close() throws Exception {
+        listeners.clear();
+        Exception failure = null;
+        for (Map.Entry<String, KeyValueStoragePort<K, V>> entry : shards.entrySet()) {
+            try {
+                entry.getValue().removeListener(shardListeners.get(entry.getKey()));
+                entry.getValue().close();
+            } catch (Exception e) {
+                // The other shards are still closed
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public CompletableFuture<V> read(K key) {
+        return shardFor(key).read(key);
+    }
+
+    @Override
+    public CompletableFuture<Map<K, V>> readAll() {
+        List<CompletableFuture<Map<K, V>>> futures = new ArrayList<>(shards.size());
+        for (Map.Entry<String, KeyValueStoragePort<K, V>> entry : shards.entrySet()) {
+            String shardName = entry.getKey();
+            futures.add(entry.getValue().readAll()
+                .thenApply(map -> onShardRead(shardName, map)));
+        }
+        return merge(futures);
+    }
+
+    @Override
+    public CompletableFuture<Map<K, V>> readAllPaged(Consumer<Map<K, V>> pageConsumer) {
+        // Shards load in parallel, the consumer gets their pages one at a time
+        Consumer<Map<K, V>> serializedConsumer = page -> {
+            synchronized (pageConsumer) {
+                pageConsumer.accept(page);
+            }
+        };
+        List<CompletableFuture<Map<K, V>>> futures = new ArrayList<>(shards.size());
+        for (Map.Entry<String, KeyValueStoragePort<K, V>> entry : shards.entrySet()) {
+            String shardName = entry.getKey();
+            futures.add(entry.getValue().readAllPaged(serializedConsumer)
+                .thenApply(map -> onShardRead(shardName, map)));
+        }
+        return merge(futures);
+    }
+
+    @Override
+    public CompletableFuture<Map<K, V>> readRange(K fromKey, K toKey) {
+        String shardName = shardOf(fromKey);
+        if (toKey != null && shardName.equals(shardOf(toKey))) {
+            return shards.get(shardName).readRange(fromKey, toKey);
+        }
+
+        // The shards do not know which of them hold the rest of the range
+        List<CompletableFuture<Map<K, V>>> futures = new ArrayList<>(shards.size());
+        for (KeyValueStoragePort<K, V> shard : shards.values()) {
+            futures.add(shard.readRange(fromKey, toKey));
+        }
+        return merge(futures);
+    }
+
+    @Override
+    public CompletableFuture<Void> update(K key, V value) {
+        return shardFor(key).update(key, value);
+    }
+
+    @Override
+    public CompletableFuture<Void> updateAll(Map<K, V> map) {
+        // Every shard is replaced, shards without any of the keys end up empty
+        Map<String, Map<K, V>> mapsByShard = new HashMap<>();
+        for (String shardName : shards.keySet()) {
+            mapsByShard.put(shardName, new HashMap<>());
+        }
+        for (Map.Entry<K, V> entry : map.entrySet()) {
+            mapsByShard.get(shardOf(entry.getKey())).put(entry.getKey(), entry.getValue());
+        }
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>(shards.size());
+        for (Map.Entry<String, Map<K, V>> entry : mapsByShard.entrySet()) {
+            futures.add(shards.get(entry.getKey()).updateAll(entry.getValue()));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]));
+    }
+
+    @Override
+    public CompletableFuture<Void> delete(K key) {
+        return shardFor(key).delete(key);
+    }
+
+    @Override
+    public CompletableFuture<Void> updateMany(Map<K, V> map) {
+        Map<String, Map<K, V>> mapsByShard = new HashMap<>();
+        for (Map.Entry<K, V> entry : map.entrySet()) {
+            mapsByShard.computeIfAbsent(shardOf(entry.getKey()), __ -> new HashMap<>())
+                .put(entry.getKey(), entry.getValue());
+        }
+
+        // One request per shard that has keys, they are not written as a whole anymore
+        List<CompletableFuture<Void>> futures = new ArrayList<>(mapsByShard.size());
+        for (Map.Entry<String, Map<K, V>> entry : mapsByShard.entrySet()) {
+            futures.add(shards.get(entry.getKey()).updateMany(entry.getValue()));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]));
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteMany(Collection<K> keys) {
+        Map<String, List<K>> keysByShard = new HashMap<>();
+        for (K key : keys) {
+            keysByShard.computeIfAbsent(shardOf(key), __ -> new ArrayList<>()).add(key);
+        }
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>(keysByShard.size());
+        for (Map.Entry<String, List<K>> entry : keysByShard.entrySet()) {
+            futures.add(shards.get(entry.getKey()).deleteMany(entry.getValue()));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]));
+    }
+
+    @Override
+    public boolean hasPendingWrite(K key) {
+        return shardFor(key).hasPendingWrite(key);
+    }
+
+    @Override
+    public void addListener(Listener<K, V> listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void removeListener(Listener<K, V> listener) {
+        listeners.remove(listener);
+    }
+
+    private String shardOf(K key) {
+        String shardName = shardOf.apply(key);
+        if (!shards.containsKey(shardName)) {
+            throw new IllegalArgumentException(
+                "key " + key + " maps to unknown shard " + shardName);
+        }
+        return shardName;
+    }
+
+    private KeyValueStoragePort<K, V> shardFor(K key) {
+        return shards.get(shardOf(key));
+    }
+
+    private Map<K, V> onShardRead(String shardName, Map<K, V> map) {
+        synchronized (lock) {
+            valuesByShard.put(shardName, new HashMap<>(map));
+        }
+        return map;
+    }
+
+    private static <K, V> CompletableFuture<Map<K, V>> merge(
+        List<CompletableFuture<Map<K, V>>> futures) {
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
+            .thenApply(__ -> {
+                Map<K, V> merged = new HashMap<>();
+                for (CompletableFuture<Map<K, V>> future : futures) {
+                    merged.putAll(future.join());
+                }
+                return merged;
+            });
+    }
+
+    private final class ShardListener implements Listener<K, V> {
+
+        private final String shardName;
+
+        private ShardListener(String shardName) {
+            this.shardName = shardName;
+        }
+
+        @Override
+        public void onFullUpdate(Map<K, V> map) {
+            Map<K, V> merged = null;
+            synchronized (lock) {
+                boolean allShardsKnown = valuesByShard.size() == shards.size();
+                valuesByShard.put(shardName, new HashMap<>(map));
+                if (allShardsKnown) {
+                    merged = new HashMap<>();
+                    for (Map<K, V> values : valuesByShard.values()) {
+                        merged.putAll(values);
+                    }
+                }
+            }
+            if (merged == null) {
+                // Not all shards were read yet, the read that is still going hands these over
+                log.debug("full update of shard {} before all shards were read", shardName);
+                return;
+            }
+
+            Map<K, V> unmodifiableMerged = Collections.unmodifiableMap(merged);
+            for (Listener<K, V> listener : listeners) {
+                try {
+                    listener.onFullUpdate(unmodifiableMerged);
+                } catch (Exception e) {
+                    log.error("Failed to notify listeners on full update", e);
+                }
+            }
+        }
+
+        @Override
+        public void onUpdate(K key, V value) {
+            synchronized (lock) {
+                Map<K, V> values = valuesByShard.get(shardName);
+                if (values != null) {
+                    values.put(key, value);
+                }
+            }
+            for (Listener<K, V> listener : listeners) {
+                try {
+                    listener.onUpdate(key, value);
+                } catch (Exception e) {
+                    log.error("Failed to notify listener on update", e);
+                }
+            }
+        }
+
+        @Override
+        public void onDelete(K key) {
+            synchronized (lock) {
+                Map<K, V> values = valuesByShard.get(shardName);
+                if (values != null) {
+                    values.remove(key);
+                }
+            }
+            for (Listener<K, V> listener : listeners) {
+                try {
+                    listener.onDelete(key);
+                } catch (Exception e) {
+                    log.error("Failed to notify listener on delete", e);
+                }
+            }
+        }
+
+        @Override
+        public void onBatchUpdate(Map<K, V> updated, Set<K> deleted) {
+            synchronized (lock) {
+                Map<K, V> values = valuesByShard.get(shardName);
+                if (values != null) {
+                    values.putAll(updated);
+                    values.keySet().removeAll(deleted);
+                }
+            }
+            for (Listener<K, V> listener : listeners) {
+                try {
+                    listener.onBatchUpdate(updated, deleted);
+                } catch (Exception e) {
+                    log.error("Failed to notify listener on batch update", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.elertan.remote;
+
+import lombok.Getter;
+
+public enum WritePriority {
+    // Writes the rules depend on, such as unlocks, members and game rules
+    Critical(3),
+    Normal(2),
+    // Writes nobody waits on, such as the last event and ground item ownership
+    Background(2);
+
+    // Writes of this priority on the wire at once, a lane never uses another lane's slots
+    @Getter
+    private final int maxInFlight;
+
+    WritePriority(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    public static int getTotalMaxInFlight() {
+        int total = 0;
+        for (WritePriority priority : values()) {
+            total += priority.maxInFlight;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,16 @@
+package com.elertan.remote.firebase;
+
+import java.io.IOException;
+import lombok.Getter;
+
+// Firebase answered, but with an error status
+public class FirebaseHttpException extends IOException {
+
+    @Getter
+    private final int code;
+
+    public FirebaseHttpException(int code, String message) {
+        super(message);
+        this.code = code;
+    }
+}
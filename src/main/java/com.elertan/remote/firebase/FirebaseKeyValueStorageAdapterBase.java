@@ -1,13 +1,28 @@
 package com.elertan.remote.firebase;
 
+import com.elertan.gson.RecordAdapter;
 import com.elertan.remote.KeyValueStoragePort;
+import com.elertan.remote.KeyedWriteScheduler;
+import com.elertan.remote.WritePriority;
 import com.google.gson.Gson;
 import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
 import com.google.gson.JsonObject;
-import java.util.Arrays;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.function.Consumer;
@@ -17,15 +32,49 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class FirebaseKeyValueStorageAdapterBase<K, V> implements KeyValueStoragePort<K, V> {
 
+    private static final int RECORD_REWRITE_PAGE_SIZE = 250;
+    // Reads waiting for the initial snapshot fall back to a request after this long without a page
+    private static final long INITIAL_SNAPSHOT_TIMEOUT_MILLIS = 15_000;
+
     private final String basePath;
     private final FirebaseRealtimeDatabase db;
-    private final Gson gson;
+    private final FirebaseWriteMode writeMode;
+    private final WritePriority writePriority;
+    private final KeyedWriteScheduler<String> writeScheduler = new KeyedWriteScheduler<>();
     private final ConcurrentLinkedQueue<Listener<K, V>> listeners = new ConcurrentLinkedQueue<>();
     private final Function<String, K> stringToKeyTransformer;
     private final Function<K, String> keyToStringTransformer;
+    private final TypeAdapter<V> valueAdapter;
+    // Set when values are stored as records that have more than one format
+    private final RecordAdapter<V> recordAdapter;
     private final Function<JsonElement, V> deserializeFromJsonElement;
 
-    private final Consumer<FirebaseSSE> sseListener = this::sseListener;
+    private final FirebaseSSEStream stream;
+    private final FirebaseSSERouter.Handler<StreamEvent<K, V>> routeHandler = new FirebaseSSERouter.Handler<StreamEvent<K, V>>() {
+        @Override
+        public StreamEvent<K, V> decode(FirebaseSSEType type, String[] keySegments,
+            JsonReader reader) throws IOException {
+            return decodeStreamEvent(type, keySegments, reader);
+        }
+
+        @Override
+        public void onEvent(FirebaseSSEType type, String[] keySegments,
+            StreamEvent<K, V> data) {
+            onStreamEvent(type, keySegments, data);
+        }
+    };
+    private final Runnable streamConnectedListener = this::streamConnectedListener;
+    private volatile boolean awaitingInitialSnapshot;
+    private volatile boolean connectionFiltered;
+    private final CompletableFuture<Void> initialSnapshotFuture = new CompletableFuture<>();
+    // Waiting for the pages of a paged bootstrap that is still loading
+    private final List<Consumer<Map<K, V>>> pageConsumers = new ArrayList<>();
+    private boolean bootstrapping;
+    private volatile long lastPageNanos = System.nanoTime();
+    private final Object snapshotLock = new Object();
+    // Mirror of the streamed data, kept up to date so readAll can be served without a request
+    private Map<K, V> snapshot;
+    private volatile boolean closed;
 
     public FirebaseKeyValueStorageAdapterBase(
         String basePath,
@@ -33,37 +82,120 @@ public class FirebaseKeyValueStorageAdapterBase<K, V> implements KeyValueStorage
         Gson gson,
         Function<String, K> stringToKeyTransformer,
         Function<K, String> keyToStringTransformer,
-        Function<JsonElement, V> deserializeFromJsonElement
+        Class<V> valueClass
+    ) {
+        this(
+            basePath,
+            db,
+            gson,
+            stringToKeyTransformer,
+            keyToStringTransformer,
+            valueClass,
+            FirebaseWriteMode.Echo
+        );
+    }
+
+    public FirebaseKeyValueStorageAdapterBase(
+        String basePath,
+        FirebaseRealtimeDatabase db,
+        Gson gson,
+        Function<String, K> stringToKeyTransformer,
+        Function<K, String> keyToStringTransformer,
+        Class<V> valueClass,
+        FirebaseWriteMode writeMode
+    ) {
+        this(
+            basePath,
+            db,
+            gson,
+            stringToKeyTransformer,
+            keyToStringTransformer,
+            valueClass,
+            writeMode,
+            WritePriority.Normal
+        );
+    }
+
+    public FirebaseKeyValueStorageAdapterBase(
+        String basePath,
+        FirebaseRealtimeDatabase db,
+        Gson gson,
+        Function<String, K> stringToKeyTransformer,
+        Function<K, String> keyToStringTransformer,
+        Class<V> valueClass,
+        FirebaseWriteMode writeMode,
+        WritePriority writePriority
+    ) {
+        this(
+            basePath,
+            db,
+            stringToKeyTransformer,
+            keyToStringTransformer,
+            gson.getAdapter(valueClass),
+            writeMode,
+            writePriority
+        );
+    }
+
+    public FirebaseKeyValueStorageAdapterBase(
+        String basePath,
+        FirebaseRealtimeDatabase db,
+        Function<String, K> stringToKeyTransformer,
+        Function<K, String> keyToStringTransformer,
+        TypeAdapter<V> valueAdapter,
+        FirebaseWriteMode writeMode,
+        WritePriority writePriority
     ) {
         // Base key should be of format
-        // '/Resource' // NOT -> or '/FirstLevel/SecondLevel'
+        // '/Resource' or, for a shard of a resource, '/Resource/Shard'
         if (basePath == null) {
             throw new IllegalArgumentException("basePath must not be null");
         }
         if (!basePath.startsWith("/")) {
             throw new IllegalArgumentException("basePath must start with '/'");
         }
-        int lastIndexOfForwardSlash = basePath.lastIndexOf("/");
-        if (lastIndexOfForwardSlash != 0) {
-            throw new IllegalArgumentException("basePath must only be a starting resource");
+        if (basePath.endsWith("/") || basePath.contains("//")) {
+            throw new IllegalArgumentException("basePath must not have empty segments");
         }
         this.basePath = basePath;
         this.db = db;
-        this.gson = gson;
+        this.writeMode = writeMode;
+        this.writePriority = writePriority;
         this.stringToKeyTransformer = stringToKeyTransformer;
         this.keyToStringTransformer = keyToStringTransformer;
-        this.deserializeFromJsonElement = deserializeFromJsonElement;
+        this.valueAdapter = valueAdapter.nullSafe();
+        this.recordAdapter = valueAdapter instanceof RecordAdapter
+            ? (RecordAdapter<V>) valueAdapter
+            : null;
+        this.deserializeFromJsonElement = jsonElement -> {
+            if (jsonElement == null || jsonElement.isJsonNull()) {
+                return null;
+            }
+            return valueAdapter.fromJsonTree(jsonElement);
+        };
 
-        FirebaseSSEStream stream = db.getStream();
-        stream.addServerSentEventListener(sseListener);
+        this.stream = db.createStream(basePath);
+        db.getRouter().register(basePath, routeHandler);
+        stream.addConnectedListener(streamConnectedListener);
+        stream.setResumeQuerySupplier(this::buildResumeQuery);
+        stream.setBeforeFirstConnect(this::bootstrap);
+        initialSnapshotFuture.thenRun(this::rewriteOutdatedRecords);
     }
 
     @Override
     public void close() throws Exception {
+        closed = true;
         listeners.clear();
+        log.debug(
+            "FirebaseKeyValueStorageAdapterBase ({}): {} writes sent, {} superseded before sending",
+            basePath,
+            writeScheduler.getSentCount(),
+            writeScheduler.getSupersededCount()
+        );
 
-        FirebaseSSEStream stream = db.getStream();
-        stream.removeServerSentEventListener(sseListener);
+        db.getRouter().unregister(basePath, routeHandler);
+        stream.removeConnectedListener(streamConnectedListener);
+        db.releaseStream(stream);
     }
 
     @Override
@@ -75,47 +207,194 @@ public class FirebaseKeyValueStorageAdapterBase<K, V> implements KeyValueStorage
 
     @Override
     public CompletableFuture<Map<K, V>> readAll() {
-        return db.get(basePath)
-            .thenApply(jsonElement -> {
-                if (jsonElement == null || jsonElement.isJsonNull()) {
-                    return Collections.emptyMap();
-                }
+        if (!stream.isRunning()) {
+            return readAllFromRemote();
+        }
 
-                JsonObject obj = jsonElement.getAsJsonObject();
-                HashMap<K, V> map = new HashMap<>();
+        // The stream starts with the full data of the base path, so there is no need to
+        // download it a second time
+        return readSnapshot();
+    }
 
-                for (Map.Entry<String, JsonElement> entry : obj.entrySet()) {
-                    K key = stringToKeyTransformer.apply(entry.getKey());
-                    JsonElement entryValue = entry.getValue();
-                    map.put(key, deserializeFromJsonElement.apply(entryValue));
+    private CompletableFuture<Map<K, V>> readSnapshot() {
+        // Should the stream not connect or its snapshot fail to decode, the data is read instead.
+        // A paged load that still receives pages is waited for.
+        return db.orFallbackWhenStalled(
+            initialSnapshotFuture.thenApply(__ -> {
+                synchronized (snapshotLock) {
+                    return new HashMap<>(snapshot);
                 }
+            }),
+            INITIAL_SNAPSHOT_TIMEOUT_MILLIS,
+            () -> lastPageNanos,
+            this::readAllFromRemote
+        );
+    }
 
+    // Plain GET, Firebase ignores If-None-Match on reads and always sends the whole body
+    private CompletableFuture<Map<K, V>> readAllFromRemote() {
+        return db.get(basePath).thenApply(jsonElement -> new HashMap<>(deserializeMap(jsonElement)));
+    }
+
+    @Override
+    public CompletableFuture<Map<K, V>> readAllPaged(Consumer<Map<K, V>> pageConsumer) {
+        Map<K, V> loadedSoFar = null;
+        synchronized (snapshotLock) {
+            if (bootstrapping) {
+                pageConsumers.add(pageConsumer);
+                loadedSoFar = snapshot == null ? null : new HashMap<>(snapshot);
+            }
+        }
+        if (loadedSoFar == null) {
+            return readAll().thenApply(map -> {
+                pageConsumer.accept(Collections.unmodifiableMap(map));
                 return map;
             });
+        }
+
+        if (!loadedSoFar.isEmpty()) {
+            pageConsumer.accept(Collections.unmodifiableMap(loadedSoFar));
+        }
+        return readSnapshot();
+    }
+
+    @Override
+    public CompletableFuture<Map<K, V>> readRange(K fromKey, K toKey) {
+        String strFromKey = keyToStringTransformer.apply(fromKey);
+        String strToKey = toKey == null ? null : keyToStringTransformer.apply(toKey);
+        String query;
+        try {
+            query = "orderBy=" + URLEncoder.encode("\"$key\"", "UTF-8")
+                + "&startAt=" + URLEncoder.encode("\"" + strFromKey + "\"", "UTF-8")
+                + (strToKey == null
+                ? ""
+                : "&endAt=" + URLEncoder.encode("\"" + strToKey + "\"", "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            CompletableFuture<Map<K, V>> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        return db.get(basePath + "?" + query).thenApply(jsonElement -> {
+            Map<K, V> map = new HashMap<>(deserializeMap(jsonElement));
+            map.values().removeIf(Objects::isNull);
+            // Fresher than the mirror for this range, which may have missed stream events. Keys
+            // with a write of ours still pending keep the value that write is sending.
+            Map<K, V> updated = new HashMap<>();
+            Set<K> deleted = new HashSet<>();
+            Map<K, V> repairedSnapshot;
+            synchronized (snapshotLock) {
+                if (snapshot == null || !initialSnapshotFuture.isDone()) {
+                    return map;
+                }
+                for (K key : snapshot.keySet()) {
+                    if (!map.containsKey(key)
+                        && isInRange(keyToStringTransformer.apply(key), strFromKey, strToKey)
+                        && !hasPendingWrite(key)) {
+                        deleted.add(key);
+                    }
+                }
+                for (Map.Entry<K, V> entry : map.entrySet()) {
+                    if (!isSameValue(snapshot.get(entry.getKey()), entry.getValue())
+                        && !hasPendingWrite(entry.getKey())) {
+                        updated.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                snapshot.keySet().removeAll(deleted);
+                snapshot.putAll(updated);
+                repairedSnapshot = new HashMap<>(snapshot);
+            }
+            // Not new changes but missed ones, so listeners replace their data instead of
+            // handling each value as if it just happened
+            if (!updated.isEmpty() || !deleted.isEmpty()) {
+                notifyListenersOnFullUpdate(repairedSnapshot);
+            }
+            return map;
+        });
+    }
+
+    private static boolean isInRange(String strKey, String strFromKey, String strToKey) {
+        return compareKeys(strKey, strFromKey) >= 0
+            && (strToKey == null || compareKeys(strKey, strToKey) <= 0);
     }
 
     @Override
     public CompletableFuture<Void> update(K key, V value) {
         String path = basePath + "/" + keyToStringTransformer.apply(key);
-        JsonElement jsonElement = gson.toJsonTree(value);
-        return db.put(path, jsonElement).thenApply(__ -> null);
+        // Sent as journaled, in the format of the value adapter
+        JsonElement jsonValue = valueAdapter.toJsonTree(value);
+        return writeScheduler.submit(path, () -> db.writeDurably(
+            Collections.singletonMap(path, jsonValue),
+            writePriority,
+            () -> db.put(path, jsonValue, writeMode)
+        ));
     }
 
     @Override
     public CompletableFuture<Void> updateAll(Map<K, V> map) {
-        Map<K, JsonElement> jsonElementMap = new HashMap<>();
+        JsonObject jsonValues = new JsonObject();
         for (Map.Entry<K, V> entry : map.entrySet()) {
-            jsonElementMap.put(entry.getKey(), gson.toJsonTree(entry.getValue()));
+            String strKey = keyToStringTransformer.apply(entry.getKey());
+            jsonValues.add(strKey, valueAdapter.toJsonTree(entry.getValue()));
         }
-        JsonElement jsonElement = gson.toJsonTree(jsonElementMap);
 
-        return db.put(basePath, jsonElement).thenApply(__ -> null);
+        // Replaces every value, so it is ordered against the writes of every key
+        return writeScheduler.submitToAllKeys(() -> db.writeDurably(
+            Collections.singletonMap(basePath, jsonValues),
+            writePriority,
+            () -> db.put(basePath, jsonValues, writeMode)
+        ));
     }
 
     @Override
     public CompletableFuture<Void> delete(K key) {
         String path = basePath + "/" + keyToStringTransformer.apply(key);
-        return db.delete(path);
+        return writeScheduler.submit(path, () -> db.writeDurably(
+            Collections.singletonMap(path, JsonNull.INSTANCE),
+            writePriority,
+            () -> db.delete(path, writeMode)
+        ));
+    }
+
+    @Override
+    public CompletableFuture<Void> updateMany(Map<K, V> map) {
+        return patch(map, Collections.emptySet());
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteMany(Collection<K> keys) {
+        return patch(Collections.emptyMap(), keys);
+    }
+
+    private CompletableFuture<Void> patch(Map<K, V> updated, Collection<K> deleted) {
+        if (updated.isEmpty() && deleted.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        Map<String, JsonElement> valuesByKey = new HashMap<>();
+        Map<String, JsonElement> journaledValuesByPath = new HashMap<>();
+        for (K key : deleted) {
+            String strKey = keyToStringTransformer.apply(key);
+            valuesByKey.put(strKey, JsonNull.INSTANCE);
+            journaledValuesByPath.put(basePath + "/" + strKey, JsonNull.INSTANCE);
+        }
+        for (Map.Entry<K, V> entry : updated.entrySet()) {
+            String strKey = keyToStringTransformer.apply(entry.getKey());
+            JsonElement jsonValue = valueAdapter.toJsonTree(entry.getValue());
+            valuesByKey.put(strKey, jsonValue);
+            journaledValuesByPath.put(basePath + "/" + strKey, jsonValue);
+        }
+        // Ordered against the single key writes of the same keys
+        return writeScheduler.submitMany(journaledValuesByPath.keySet(), () -> db.writeDurably(
+            journaledValuesByPath,
+            writePriority,
+            () -> db.patch(basePath, valuesByKey, writeMode)
+        ));
+    }
+
+    @Override
+    public boolean hasPendingWrite(K key) {
+        return db.hasPendingWrite(basePath + "/" + keyToStringTransformer.apply(key));
     }
 
     @Override
@@ -128,79 +407,573 @@ public class FirebaseKeyValueStorageAdapterBase<K, V> implements KeyValueStorage
         listeners.remove(listener);
     }
 
-    private void sseListener(FirebaseSSE event) {
-        FirebaseSSEType type = event.getType();
-        if (type != FirebaseSSEType.Put) {
+    // Values per page to load before the stream connects, 0 to have the stream send all at once
+    protected int bootstrapPageSize() {
+        return 0;
+    }
+
+    /**
+     * Completes once the data may be loaded, e.g. after it was migrated. The stream connects and
+     * the values are loaded afterwards, whether it failed or not.
+     */
+    protected CompletableFuture<Void> beforeFirstLoad() {
+        return CompletableFuture.completedFuture(null);
+    }
+
+    // Rewrite values of an older record format once loaded, only when writing the compact one
+    protected boolean rewritesOutdatedRecords() {
+        return false;
+    }
+
+    private void rewriteOutdatedRecords() {
+        if (recordAdapter == null || !recordAdapter.isWriteCompact()
+            || !rewritesOutdatedRecords()) {
             return;
         }
+        rewriteOutdatedRecordsPage(0);
+    }
 
-        String path = event.getPath();
-        if (!path.startsWith(basePath)) {
+    private void rewriteOutdatedRecordsPage(int rewrittenSoFar) {
+        if (closed) {
             return;
         }
-        String[] pathParts = Arrays.stream(path.split("/"))
-            .filter(part -> !part.isEmpty())
-            .toArray(String[]::new);
-        int pathPartsLength = pathParts.length;
-        if (pathPartsLength == 1) {
-            // Full update
-            JsonElement jsonElement = event.getData();
-            Map<K, V> map = null;
-            if (jsonElement != null && !jsonElement.isJsonNull()) {
-                JsonObject obj = jsonElement.getAsJsonObject();
-                map = new HashMap<>();
-                for (Map.Entry<String, JsonElement> entry : obj.entrySet()) {
-                    K key = stringToKeyTransformer.apply(entry.getKey());
-                    JsonElement entryValue = entry.getValue();
-                    V value;
+        String query;
+        try {
+            // Records without a version sort first, those are the outdated ones. Rewritten
+            // records drop out of the query, so the next page starts at the front again.
+            query = "orderBy=" + URLEncoder.encode("\"" + RecordAdapter.VERSION_KEY + "\"", "UTF-8")
+                + "&endAt=" + (RecordAdapter.COMPACT_VERSION - 1)
+                + "&limitToFirst=" + RECORD_REWRITE_PAGE_SIZE;
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+
+        int[] received = new int[1];
+        int[] rewritten = new int[1];
+        // Only the rewrites go through the write scheduler, a slow read must not hold up the
+        // writes of other keys
+        db.get(basePath + "?" + query).thenCompose(jsonElement -> {
+            Map<String, V> outdatedValuesByKey = new HashMap<>();
+            if (jsonElement != null && jsonElement.isJsonObject()) {
+                for (Map.Entry<String, JsonElement> entry : jsonElement.getAsJsonObject()
+                    .entrySet()) {
+                    received[0]++;
+                    if (RecordAdapter.isCompact(entry.getValue())) {
+                        continue;
+                    }
+                    V value = deserializeFromJsonElement.apply(entry.getValue());
+                    if (value != null) {
+                        outdatedValuesByKey.put(entry.getKey(), value);
+                    }
+                }
+            }
+            if (outdatedValuesByKey.isEmpty()) {
+                return CompletableFuture.<Void>completedFuture(null);
+            }
+            List<String> paths = new ArrayList<>(outdatedValuesByKey.size());
+            for (String strKey : outdatedValuesByKey.keySet()) {
+                paths.add(basePath + "/" + strKey);
+            }
+            // Runs after the writes of these keys submitted before it, those are not overwritten
+            return writeScheduler.submitMany(paths, () -> {
+                Map<String, JsonElement> compactValuesByKey = new HashMap<>();
+                Map<String, JsonElement> journaledValuesByPath = new HashMap<>();
+                for (Map.Entry<String, V> entry : outdatedValuesByKey.entrySet()) {
+                    String path = basePath + "/" + entry.getKey();
+                    if (hasNewerValue(path, entry.getKey(), entry.getValue())) {
+                        continue;
+                    }
+                    JsonElement compactValue = recordAdapter.toCompactTree(entry.getValue());
+                    compactValuesByKey.put(entry.getKey(), compactValue);
+                    journaledValuesByPath.put(path, compactValue);
+                }
+                rewritten[0] = compactValuesByKey.size();
+                if (compactValuesByKey.isEmpty()) {
+                    return CompletableFuture.<Void>completedFuture(null);
+                }
+                return db.writeDurably(
+                    journaledValuesByPath,
+                    WritePriority.Background,
+                    () -> db.patch(basePath, compactValuesByKey, FirebaseWriteMode.Silent)
+                );
+            });
+        }).whenComplete((__, throwable) -> {
+            if (throwable != null) {
+                log.warn(
+                    "FirebaseKeyValueStorageAdapterBase ({}): rewriting outdated records failed, is there an .indexOn rule for \"{}\"?",
+                    basePath,
+                    RecordAdapter.VERSION_KEY,
+                    throwable
+                );
+                return;
+            }
+            int rewrittenCount = rewrittenSoFar + rewritten[0];
+            if (rewritten[0] > 0 && received[0] >= RECORD_REWRITE_PAGE_SIZE) {
+                rewriteOutdatedRecordsPage(rewrittenCount);
+                return;
+            }
+            if (rewrittenCount > 0) {
+                log.info(
+                    "FirebaseKeyValueStorageAdapterBase ({}): rewrote {} outdated records",
+                    basePath,
+                    rewrittenCount
+                );
+            }
+        });
+    }
+
+    // Whether the value read for a rewrite was changed since, by a write of ours or another client
+    private boolean hasNewerValue(String path, String strKey, V readValue) {
+        // A write journaled in an earlier session is replayed with a newer value
+        if (db.hasPendingWrite(path)) {
+            return true;
+        }
+        K key = toKey(strKey);
+        if (key == null) {
+            return true;
+        }
+        synchronized (snapshotLock) {
+            return snapshot != null && !isSameValue(snapshot.get(key), readValue);
+        }
+    }
+
+    private CompletableFuture<Void> bootstrap() {
+        return beforeFirstLoad()
+            .handle((__, throwable) -> null)
+            .thenCompose(__ -> loadPages());
+    }
+
+    private CompletableFuture<Void> loadPages() {
+        int pageSize = bootstrapPageSize();
+        if (pageSize <= 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+        synchronized (snapshotLock) {
+            bootstrapping = true;
+            snapshot = new HashMap<>();
+        }
+        log.debug(
+            "FirebaseKeyValueStorageAdapterBase ({}): loading in pages of {}",
+            basePath,
+            pageSize
+        );
+        final long startNanos = System.nanoTime();
+        lastPageNanos = startNanos;
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        loadPage(pageSize, null, 1, future);
+        return future.whenComplete((__, throwable) -> {
+            synchronized (snapshotLock) {
+                bootstrapping = false;
+                pageConsumers.clear();
+                if (throwable != null) {
+                    // The stream then starts with the full data, as if there was no bootstrap
+                    snapshot = null;
+                }
+            }
+            if (throwable != null) {
+                log.warn(
+                    "FirebaseKeyValueStorageAdapterBase ({}): paged load failed",
+                    basePath,
+                    throwable
+                );
+                return;
+            }
+            int size;
+            synchronized (snapshotLock) {
+                size = snapshot.size();
+            }
+            log.debug(
+                "FirebaseKeyValueStorageAdapterBase ({}): loaded {} values in pages in {} ms",
+                basePath,
+                size,
+                (System.nanoTime() - startNanos) / 1_000_000
+            );
+            initialSnapshotFuture.complete(null);
+        });
+    }
+
+    private void loadPage(int pageSize, String afterKey, int pageNumber,
+        CompletableFuture<Void> future) {
+        String query;
+        try {
+            // startAt is inclusive, so the page after a key asks for one extra value
+            query = "orderBy=" + URLEncoder.encode("\"$key\"", "UTF-8")
+                + "&limitToFirst=" + (afterKey == null ? pageSize : pageSize + 1)
+                + (afterKey == null
+                ? ""
+                : "&startAt=" + URLEncoder.encode("\"" + afterKey + "\"", "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            future.completeExceptionally(e);
+            return;
+        }
+
+        db.get(basePath + "?" + query).whenComplete((jsonElement, throwable) -> {
+            if (throwable != null) {
+                future.completeExceptionally(throwable);
+                return;
+            }
+            // Only this page is held as a tree, it is dropped once read into the values
+            Map<K, V> page = new HashMap<>();
+            String lastKey = null;
+            int received = 0;
+            if (jsonElement != null && jsonElement.isJsonObject()) {
+                for (Map.Entry<String, JsonElement> entry : jsonElement.getAsJsonObject()
+                    .entrySet()) {
+                    String strKey = entry.getKey();
+                    // Firebase does not keep the order in the response, the last key is looked up
+                    if (lastKey == null || compareKeys(strKey, lastKey) > 0) {
+                        lastKey = strKey;
+                    }
+                    if (strKey.equals(afterKey)) {
+                        continue;
+                    }
+                    received++;
+                    K key = toKey(strKey);
+                    V value = deserializeFromJsonElement.apply(entry.getValue());
+                    if (key != null && value != null) {
+                        page.put(key, value);
+                    }
+                }
+            }
+
+            lastPageNanos = System.nanoTime();
+            List<Consumer<Map<K, V>>> consumers;
+            synchronized (snapshotLock) {
+                snapshot.putAll(page);
+                consumers = new ArrayList<>(pageConsumers);
+            }
+            if (!page.isEmpty()) {
+                Map<K, V> unmodifiablePage = Collections.unmodifiableMap(page);
+                for (Consumer<Map<K, V>> consumer : consumers) {
                     try {
-                        value = deserializeFromJsonElement.apply(entryValue);
+                        consumer.accept(unmodifiablePage);
                     } catch (Exception e) {
-                        log.error(
-                            "RepositoryFirebaseStorageAdapterbase ({}): failed to deserialize value in full update for key ({}): {}",
-                            basePath,
-                            keyToStringTransformer.apply(key),
-                            jsonElement,
-                            e
-                        );
-                        return;
+                        log.error("Failed to hand over page", e);
                     }
-                    map.put(key, value);
                 }
             }
+            log.debug(
+                "FirebaseKeyValueStorageAdapterBase ({}): page {} with {} values",
+                basePath,
+                pageNumber,
+                page.size()
+            );
+
+            if (received < pageSize || lastKey == null) {
+                future.complete(null);
+                return;
+            }
+            loadPage(pageSize, lastKey, pageNumber + 1, future);
+        });
+    }
+
+    // Firebase orders keys that are 32-bit integers first and numerically, then other keys as text
+    static int compareKeys(String a, String b) {
+        Integer intA = parseIntKey(a);
+        Integer intB = parseIntKey(b);
+        if (intA != null && intB != null) {
+            return Integer.compare(intA, intB);
+        }
+        if (intA != null) {
+            return -1;
+        }
+        if (intB != null) {
+            return 1;
+        }
+        return a.compareTo(b);
+    }
+
+    private static Integer parseIntKey(String key) {
+        try {
+            return Integer.parseInt(key);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private void streamConnectedListener() {
+        connectionFiltered = stream.isCurrentConnectionFiltered();
+        awaitingInitialSnapshot = true;
+    }
+
+    // Query parameters selecting the values that may have changed since these were received,
+    // null reconnects with everything
+    protected String resumeQuery(Collection<V> values) {
+        return null;
+    }
+
+    private String buildResumeQuery() {
+        List<V> values;
+        synchronized (snapshotLock) {
+            if (snapshot == null) {
+                // Nothing to resume from yet
+                return null;
+            }
+            values = new ArrayList<>(snapshot.values());
+        }
+        return resumeQuery(values);
+    }
+
+    private void mergeResumedValues(Map<K, V> map) {
+        // Only values matching the resume query were sent, anything else is kept as is
+        Map<K, V> updated = new HashMap<>();
+        Map<K, V> resumedSnapshot;
+        synchronized (snapshotLock) {
+            for (Map.Entry<K, V> entry : map.entrySet()) {
+                if (isSameValue(snapshot.get(entry.getKey()), entry.getValue())) {
+                    continue;
+                }
+                updated.put(entry.getKey(), entry.getValue());
+            }
+            snapshot.putAll(updated);
+            resumedSnapshot = new HashMap<>(snapshot);
+        }
+        log.debug(
+            "FirebaseKeyValueStorageAdapterBase ({}): resumed with {} values, {} changed",
+            basePath,
+            map.size(),
+            updated.size()
+        );
+        // What changed while disconnected is caught up on, like a full update
+        if (!updated.isEmpty()) {
+            notifyListenersOnFullUpdate(resumedSnapshot);
+        }
+    }
+
+    private StreamEvent<K, V> decodeStreamEvent(FirebaseSSEType type, String[] pathParts,
+        JsonReader reader) throws IOException {
+        // Values are read straight into the model, no JSON tree is built in between
+        StreamEvent<K, V> event = new StreamEvent<>();
+        if (type == FirebaseSSEType.Put && pathParts.length == 0) {
+            event.values = readValues(reader, null);
+        } else if (type == FirebaseSSEType.Put && pathParts.length == 1) {
+            event.value = valueAdapter.read(reader);
+        } else if (type == FirebaseSSEType.Patch && pathParts.length == 0
+            && reader.peek() == JsonToken.BEGIN_OBJECT) {
+            event.partiallyUpdatedKeys = new HashSet<>();
+            event.values = readValues(reader, event.partiallyUpdatedKeys);
+        } else {
+            reader.skipValue();
+        }
+        return event;
+    }
+
+    private Map<K, V> readValues(JsonReader reader, Set<String> partiallyUpdatedKeys)
+        throws IOException {
+        // Null values are kept, a null in a patch is a delete
+        Map<K, V> values = new HashMap<>();
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return values;
+        }
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String strKey = reader.nextName();
+            int indexOfForwardSlash = strKey.indexOf('/');
+            if (indexOfForwardSlash >= 0 && partiallyUpdatedKeys != null) {
+                partiallyUpdatedKeys.add(strKey.substring(0, indexOfForwardSlash));
+                reader.skipValue();
+                continue;
+            }
+            K key = toKey(strKey);
+            if (key == null) {
+                reader.skipValue();
+                continue;
+            }
+            values.put(key, valueAdapter.read(reader));
+        }
+        reader.endObject();
+        return values;
+    }
+
+    private void onStreamEvent(FirebaseSSEType type, String[] pathParts, StreamEvent<K, V> data) {
+        if (type != FirebaseSSEType.Put && type != FirebaseSSEType.Patch) {
+            return;
+        }
+
+        // Path parts are relative to the base path, none being the base path itself
+        int pathPartsLength = pathParts.length;
+        boolean isInitialSnapshot = awaitingInitialSnapshot;
+        awaitingInitialSnapshot = false;
+
+        if (type == FirebaseSSEType.Patch) {
+            handlePatch(pathParts, data);
+            return;
+        }
+
+        if (pathPartsLength == 0) {
+            // Full update
+            Map<K, V> map = data.values;
+            map.values().removeIf(Objects::isNull);
+
+            if (connectionFiltered && initialSnapshotFuture.isDone()) {
+                mergeResumedValues(map);
+                return;
+            }
+
+            synchronized (snapshotLock) {
+                snapshot = new HashMap<>(map);
+            }
+            if (isInitialSnapshot && !initialSnapshotFuture.isDone()) {
+                // Served to readAll instead of being a change
+                initialSnapshotFuture.complete(null);
+                return;
+            }
+            // Either a write to the whole base path or the snapshot after a reconnect, in which
+            // case listeners catch up on whatever they missed
             notifyListenersOnFullUpdate(map);
-        } else if (pathPartsLength == 2) {
-            String strKey = pathParts[1];
-            K key = stringToKeyTransformer.apply(strKey);
+        } else if (pathPartsLength == 1) {
+            K key = toKey(pathParts[0]);
+            if (key == null) {
+                return;
+            }
+            V value = data.value;
 
-            JsonElement jsonElement = event.getData();
-            V value;
-            try {
-                value = deserializeFromJsonElement.apply(jsonElement);
-            } catch (Exception e) {
+            synchronized (snapshotLock) {
+                if (snapshot != null) {
+                    if (value == null) {
+                        snapshot.remove(key);
+                    } else {
+                        snapshot.put(key, value);
+                    }
+                }
+            }
+
+            if (value == null) {
+                // Value deleted
+                notifyListenersOnDelete(key);
+            } else {
+                // Value
+                notifyListenersOnUpdate(key, value);
+            }
+        } else {
+            log.info(
+                "FirebaseKeyValueStorageAdapterBase ({}): too many path parts for sse event, ignoring: {}",
+                basePath,
+                String.join("/", pathParts)
+            );
+        }
+    }
+
+    private void handlePatch(String[] pathParts, StreamEvent<K, V> data) {
+        if (pathParts.length > 0) {
+            // Only part of a single value changed
+            refreshKey(pathParts[0]);
+            return;
+        }
+        if (data.values == null) {
+            log.warn(
+                "FirebaseKeyValueStorageAdapterBase ({}): patch without an object as data, ignoring",
+                basePath
+            );
+            return;
+        }
+
+        // A multi-key write, every entry is either a full value or null for a delete
+        Map<K, V> updated = new HashMap<>();
+        Set<K> deleted = new HashSet<>();
+        for (Map.Entry<K, V> entry : data.values.entrySet()) {
+            if (entry.getValue() == null) {
+                deleted.add(entry.getKey());
+            } else {
+                updated.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        synchronized (snapshotLock) {
+            if (snapshot != null) {
+                // Rewrites of a value in another format change nothing for listeners
+                updated.entrySet()
+                    .removeIf(entry -> isSameValue(snapshot.get(entry.getKey()), entry.getValue()));
+                snapshot.putAll(updated);
+                snapshot.keySet().removeAll(deleted);
+            }
+        }
+        if (!updated.isEmpty() || !deleted.isEmpty()) {
+            notifyListenersOnBatchUpdate(updated, deleted);
+        }
+
+        for (String strKey : data.partiallyUpdatedKeys) {
+            refreshKey(strKey);
+        }
+    }
+
+    private void refreshKey(String strKey) {
+        K key = toKey(strKey);
+        if (key == null) {
+            return;
+        }
+        read(key).whenComplete((value, throwable) -> {
+            if (throwable != null) {
                 log.error(
-                    "RepositoryFirebaseStorageAdapterbase ({}): failed to deserialize value for key ({}): {}",
+                    "FirebaseKeyValueStorageAdapterBase ({}): failed to refresh key ({}) after partial write",
                     basePath,
                     strKey,
-                    jsonElement,
-                    e
+                    throwable
                 );
                 return;
             }
 
+            synchronized (snapshotLock) {
+                if (snapshot != null) {
+                    if (value == null) {
+                        snapshot.remove(key);
+                    } else {
+                        snapshot.put(key, value);
+                    }
+                }
+            }
             if (value == null) {
-                // Value deleted
                 notifyListenersOnDelete(key);
             } else {
-                // Value
                 notifyListenersOnUpdate(key, value);
             }
-        } else {
-            log.info(
-                "RepositoryFirebaseStorageAdapterbase ({}): too many path parts for unlocked items sse event, will ignored: {}",
+        });
+    }
+
+    // Compares values as stored, a record is compared in one format whichever it was read from
+    private boolean isSameValue(V current, V value) {
+        if (current == null || value == null) {
+            return current == value;
+        }
+        if (recordAdapter != null) {
+            return recordAdapter.toCompactTree(current).equals(recordAdapter.toCompactTree(value));
+        }
+        return valueAdapter.toJsonTree(current).equals(valueAdapter.toJsonTree(value));
+    }
+
+    private Map<K, V> deserializeMap(JsonElement jsonElement) {
+        if (jsonElement == null || jsonElement.isJsonNull()) {
+            return Collections.emptyMap();
+        }
+
+        JsonObject obj = jsonElement.getAsJsonObject();
+        HashMap<K, V> map = new HashMap<>();
+
+        for (Map.Entry<String, JsonElement> entry : obj.entrySet()) {
+            K key = toKey(entry.getKey());
+            if (key == null) {
+                continue;
+            }
+            JsonElement entryValue = entry.getValue();
+            map.put(key, deserializeFromJsonElement.apply(entryValue));
+        }
+
+        return map;
+    }
+
+    // Null for a key that is not one of ours, e.g. a stray child written by hand
+    private K toKey(String strKey) {
+        try {
+            return stringToKeyTransformer.apply(strKey);
+        } catch (RuntimeException e) {
+            log.warn(
+                "FirebaseKeyValueStorageAdapterBase ({}): skipping unexpected key ({})",
                 basePath,
-                path
+                strKey,
+                e
             );
+            return null;
         }
     }
 
@@ -233,4 +1006,23 @@ public class FirebaseKeyValueStorageAdapterBase<K, V> implements KeyValueStorage
             }
         }
     }
+
+    private void notifyListenersOnBatchUpdate(Map<K, V> updated, Set<K> deleted) {
+        Map<K, V> unmodifiableUpdated = Collections.unmodifiableMap(updated);
+        Set<K> unmodifiableDeleted = Collections.unmodifiableSet(deleted);
+        for (Listener<K, V> listener : listeners) {
+            try {
+                listener.onBatchUpdate(unmodifiableUpdated, unmodifiableDeleted);
+            } catch (Exception e) {
+                log.error("Failed to notify listener on batch update", e);
+            }
+        }
+    }
+
+    private static final class StreamEvent<K, V> {
+
+        private Map<K, V> values;
+        private V value;
+        private Set<String> partiallyUpdatedKeys;
+    }
 }
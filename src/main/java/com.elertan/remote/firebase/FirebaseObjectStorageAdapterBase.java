@@ -1,29 +1,69 @@
 package com.elertan.remote.firebase;
 
 import com.elertan.remote.ObjectStoragePort;
+import com.elertan.remote.WritePriority;
 import com.google.gson.JsonElement;
-import java.util.Arrays;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.function.Consumer;
 import java.util.function.Function;
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
 public class FirebaseObjectStorageAdapterBase<T> implements ObjectStoragePort<T> {
 
+    // Reads waiting for the initial snapshot fall back to a request after this long
+    private static final long INITIAL_SNAPSHOT_TIMEOUT_MILLIS = 15_000;
+
     private final String path;
     private final FirebaseRealtimeDatabase db;
     private final Function<T, JsonElement> serializer;
     private final Function<JsonElement, T> deserializer;
+    private final WritePriority writePriority;
     private final ConcurrentLinkedQueue<Listener<T>> listeners = new ConcurrentLinkedQueue<>();
-    private final Consumer<FirebaseSSE> sseListener = this::sseListener;
+    private final FirebaseSSEStream stream;
+    private final FirebaseSSERouter.Handler<JsonElement> routeHandler = new FirebaseSSERouter.Handler<JsonElement>() {
+        @Override
+        public JsonElement decode(FirebaseSSEType type, String[] keySegments, JsonReader reader) {
+            // Kept as a tree, partial writes are merged into it and values such as events are
+            // only deserializable from a tree
+            return new JsonParser().parse(reader);
+        }
+
+        @Override
+        public void onEvent(FirebaseSSEType type, String[] keySegments, JsonElement data) {
+            onStreamEvent(type, keySegments, data);
+        }
+    };
+    private final Runnable streamConnectedListener = this::streamConnectedListener;
+    private volatile boolean awaitingInitialSnapshot;
+    private final CompletableFuture<Void> initialSnapshotFuture = new CompletableFuture<>();
+    private final Object snapshotLock = new Object();
+    // Last streamed value, kept so read can be served without a request
+    private JsonElement snapshotJson;
+    private T snapshotValue;
 
     public FirebaseObjectStorageAdapterBase(
         String path,
         FirebaseRealtimeDatabase db,
         Function<T, JsonElement> serializer,
         Function<JsonElement, T> deserializer
+    ) {
+        this(path, db, serializer, deserializer, WritePriority.Normal);
+    }
+
+    public FirebaseObjectStorageAdapterBase(
+        String path,
+        FirebaseRealtimeDatabase db,
+        Function<T, JsonElement> serializer,
+        Function<JsonElement, T> deserializer,
+        WritePriority writePriority
     ) {
         // Base key should be of format
         // '/Resource' // NOT -> or '/FirstLevel/SecondLevel'
@@ -42,19 +82,39 @@ public class FirebaseObjectStorageAdapterBase<T> implements ObjectStoragePort<T>
         this.db = db;
         this.serializer = serializer;
         this.deserializer = deserializer;
+        this.writePriority = writePriority;
 
-        FirebaseSSEStream stream = db.getStream();
-        stream.addServerSentEventListener(sseListener);
+        this.stream = db.createStream(path);
+        db.getRouter().register(path, routeHandler);
+        stream.addConnectedListener(streamConnectedListener);
     }
 
     @Override
     public void close() throws Exception {
-        FirebaseSSEStream stream = db.getStream();
-        stream.removeServerSentEventListener(sseListener);
+        db.getRouter().unregister(path, routeHandler);
+        stream.removeConnectedListener(streamConnectedListener);
+        db.releaseStream(stream);
     }
 
     @Override
     public CompletableFuture<T> read() {
+        if (stream.isRunning()) {
+            // The stream starts with the current value, so there is no need to download it again.
+            // Should the stream not connect, the value is read instead.
+            return db.orFallbackAfter(
+                initialSnapshotFuture.thenApply(__ -> {
+                    synchronized (snapshotLock) {
+                        return snapshotValue;
+                    }
+                }),
+                INITIAL_SNAPSHOT_TIMEOUT_MILLIS,
+                this::readFromRemote
+            );
+        }
+        return readFromRemote();
+    }
+
+    private CompletableFuture<T> readFromRemote() {
         CompletableFuture<T> future = new CompletableFuture<>();
         db.get(path).whenComplete((jsonElement, throwable) -> {
             if (throwable != null) {
@@ -86,7 +146,11 @@ public class FirebaseObjectStorageAdapterBase<T> implements ObjectStoragePort<T>
             return future;
         }
 
-        db.put(path, jsonElement).whenComplete((__, throwable) -> {
+        db.writeDurably(
+            Collections.singletonMap(path, jsonElement),
+            writePriority,
+            () -> db.put(path, jsonElement).thenApply(__ -> null)
+        ).whenComplete((__, throwable) -> {
             if (throwable != null) {
                 future.completeExceptionally(throwable);
                 return;
@@ -100,7 +164,11 @@ public class FirebaseObjectStorageAdapterBase<T> implements ObjectStoragePort<T>
 
     @Override
     public CompletableFuture<Void> delete() {
-        return db.delete(path);
+        return db.writeDurably(
+            Collections.singletonMap(path, JsonNull.INSTANCE),
+            writePriority,
+            () -> db.delete(path)
+        );
     }
 
     @Override
@@ -113,33 +181,123 @@ public class FirebaseObjectStorageAdapterBase<T> implements ObjectStoragePort<T>
         listeners.remove(listener);
     }
 
-    private void sseListener(FirebaseSSE event) {
-        FirebaseSSEType type = event.getType();
-        if (type != FirebaseSSEType.Put) {
+    private void streamConnectedListener() {
+        awaitingInitialSnapshot = true;
+    }
+
+    private void onStreamEvent(FirebaseSSEType type, String[] pathParts, JsonElement data) {
+        if (type != FirebaseSSEType.Put && type != FirebaseSSEType.Patch) {
             return;
         }
 
-        String path = event.getPath();
-        if (!path.startsWith(this.path)) {
+        // Path parts are relative to the path of this adapter, none being the object itself
+        int pathPartsLength = pathParts.length;
+        boolean isInitialSnapshot = awaitingInitialSnapshot;
+        awaitingInitialSnapshot = false;
+
+        if (type == FirebaseSSEType.Put && pathPartsLength == 0) {
+            applyValue(data, isInitialSnapshot);
             return;
         }
-        String[] pathParts = Arrays.stream(path.split("/"))
-            .filter(part -> !part.isEmpty())
-            .toArray(String[]::new);
-        int pathPartsLength = pathParts.length;
-        if (pathPartsLength != 1) {
-            log.warn("put received but at a deeper level than just the object store, ignoring");
+
+        // A partial write, merge it into the value we have
+        JsonElement merged;
+        synchronized (snapshotLock) {
+            merged = snapshotJson != null && snapshotJson.isJsonObject()
+                ? snapshotJson.deepCopy()
+                : null;
+        }
+        if (merged == null) {
+            refresh();
             return;
         }
+        if (type == FirebaseSSEType.Put) {
+            setAtPath(merged.getAsJsonObject(), pathParts, data);
+        } else {
+            JsonElement patch = data;
+            if (patch == null || !patch.isJsonObject()) {
+                log.warn("patch received without an object as data, ignoring");
+                return;
+            }
+            for (Map.Entry<String, JsonElement> entry : patch.getAsJsonObject().entrySet()) {
+                String[] entryPathParts = FirebaseSSERouter.splitPath(entry.getKey());
+                String[] fullPathParts = new String[pathPartsLength + entryPathParts.length];
+                System.arraycopy(pathParts, 0, fullPathParts, 0, pathPartsLength);
+                System.arraycopy(
+                    entryPathParts,
+                    0,
+                    fullPathParts,
+                    pathPartsLength,
+                    entryPathParts.length
+                );
+                setAtPath(merged.getAsJsonObject(), fullPathParts, entry.getValue());
+            }
+        }
+        applyValue(merged, false);
+    }
 
-        JsonElement jsonElement = event.getData();
+    private void refresh() {
+        db.get(path).whenComplete((jsonElement, throwable) -> {
+            if (throwable != null) {
+                log.error("failed to refresh value of {} after partial write", path, throwable);
+                return;
+            }
+            applyValue(jsonElement, false);
+        });
+    }
 
-        if (jsonElement == null || jsonElement.isJsonNull()) {
+    private static void setAtPath(JsonObject root, String[] pathParts, JsonElement value) {
+        if (pathParts.length == 0) {
+            return;
+        }
+        JsonObject parent = root;
+        for (int i = 0; i < pathParts.length - 1; i++) {
+            JsonElement child = parent.get(pathParts[i]);
+            if (child == null || !child.isJsonObject()) {
+                if (value == null || value.isJsonNull()) {
+                    return;
+                }
+                child = new JsonObject();
+                parent.add(pathParts[i], child);
+            }
+            parent = child.getAsJsonObject();
+        }
+        String lastPart = pathParts[pathParts.length - 1];
+        if (value == null || value.isJsonNull()) {
+            parent.remove(lastPart);
+        } else {
+            parent.add(lastPart, value);
+        }
+    }
+
+    private void applyValue(JsonElement jsonElement, boolean isInitialSnapshot) {
+        boolean isJsonNull = jsonElement == null || jsonElement.isJsonNull();
+        T value = isJsonNull ? null : this.deserializer.apply(jsonElement);
+
+        JsonElement previousJson;
+        synchronized (snapshotLock) {
+            previousJson = snapshotJson;
+            snapshotJson = jsonElement;
+            snapshotValue = value;
+        }
+
+        if (isInitialSnapshot) {
+            if (!initialSnapshotFuture.isDone()) {
+                // Served to read instead of being a change
+                initialSnapshotFuture.complete(null);
+                return;
+            }
+            if (Objects.equals(previousJson, jsonElement)) {
+                // Reconnected, but nothing changed in the meantime
+                return;
+            }
+        }
+
+        if (isJsonNull) {
             notifyListenersOnDelete();
             return;
         }
 
-        T value = this.deserializer.apply(jsonElement);
         notifyListenersOnUpdate(value);
     }
 
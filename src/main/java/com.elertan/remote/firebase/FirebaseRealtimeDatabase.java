@@ -1,15 +1,37 @@
 package com.elertan.remote.firebase;
 
+import com.elertan.remote.HedgedReads;
+import com.elertan.remote.PathRateLimiter;
+import com.elertan.remote.PrioritizedWriteDispatcher;
+import com.elertan.remote.RemoteWriteOutbox;
+import com.elertan.remote.WritePriority;
 import com.google.gson.Gson;
 import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import okhttp3.Call;
+import okhttp3.Dispatcher;
 import okhttp3.HttpUrl;
-import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
@@ -18,23 +40,77 @@ import okhttp3.ResponseBody;
 @Slf4j
 public class FirebaseRealtimeDatabase implements AutoCloseable {
 
-    private static final MediaType JSON_MEDIA_TYPE = MediaType.parse(
-        "application/json; charset=utf-8");
+    // Around 8 KiB of records, from where compressing a body pays off
+    private static final int BUFFERED_BODY_MIN_ENTRIES = 64;
 
     private final OkHttpClient httpClient;
+    private final OkHttpClient sseClient;
+    // Writes have their own OkHttp dispatcher, so reads and other plugins can not hold up a
+    // critical write and the write lanes alone decide what is sent first
+    private final OkHttpClient writeClient;
+    private final GzipRequestInterceptor gzipRequestInterceptor = new GzipRequestInterceptor();
+    private final PrioritizedWriteDispatcher writeDispatcher = new PrioritizedWriteDispatcher();
+    @Getter
+    private final PathRateLimiter rateLimiter = new PathRateLimiter();
+    @Getter
+    private final FirebaseUsage usage = new FirebaseUsage();
     private final Gson gson;
 
     @Getter
     private final FirebaseRealtimeDatabaseURL databaseURL;
+    private final CopyOnWriteArrayList<FirebaseSSEStream> streams = new CopyOnWriteArrayList<>();
+    private final RemoteWriteOutbox outbox;
+    // Storage paths whose writes go through the outbox, the others are not worth replaying
+    private final Set<String> journaledStoragePaths = ConcurrentHashMap.newKeySet();
+    private final Runnable streamConnectedListener = this::replayOutbox;
+    private final SleepDetector sleepDetector = new SleepDetector();
+    private final Runnable wakeListener = this::onWake;
     @Getter
-    private final FirebaseSSEStream stream;
+    private final FirebaseSSERouter router = new FirebaseSSERouter();
+    // Reads on the wire by request, identical reads made meanwhile share them
+    private final ConcurrentHashMap<String, CompletableFuture<?>> inFlightReads =
+        new ConcurrentHashMap<>();
+    private final AtomicLong mergedReadCount = new AtomicLong();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "bu-firebase-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Null when reads are not hedged
+    private volatile HedgedReads hedgedReads;
 
     public FirebaseRealtimeDatabase(OkHttpClient httpClient, Gson gson,
         FirebaseRealtimeDatabaseURL databaseURL) {
-        this.httpClient = httpClient;
+        this(httpClient, gson, databaseURL, null);
+    }
+
+    // Without an outbox journal file writes that fail are not kept
+    public FirebaseRealtimeDatabase(OkHttpClient httpClient, Gson gson,
+        FirebaseRealtimeDatabaseURL databaseURL, File outboxJournalFile) {
+        // Every request to this database is counted, streams included
+        this.httpClient = httpClient.newBuilder()
+            .addInterceptor(usage.getApplicationInterceptor())
+            .addNetworkInterceptor(usage)
+            .build();
+        this.sseClient = FirebaseSSEStream.createClient(this.httpClient);
+        this.writeClient = createWriteClient(this.httpClient, gzipRequestInterceptor);
         this.gson = gson;
         this.databaseURL = databaseURL;
-        this.stream = new FirebaseSSEStream(httpClient, gson, databaseURL);
+        this.outbox = outboxJournalFile == null ? null : new RemoteWriteOutbox(
+            outboxJournalFile,
+            gson,
+            this::writeOutboxBatch,
+            FirebaseRealtimeDatabase::isRetryableFailure
+        );
+    }
+
+    // Network failures and server side errors, not a write Firebase refused
+    public static boolean isRetryableFailure(Throwable throwable) {
+        if (throwable instanceof FirebaseHttpException) {
+            int code = ((FirebaseHttpException) throwable).getCode();
+            return code >= 500 || code == 429;
+        }
+        return throwable instanceof IOException;
     }
 
     public static CompletableFuture<Boolean> canConnectTo(OkHttpClient httpClient,
@@ -53,6 +129,46 @@ public class FirebaseRealtimeDatabase implements AutoCloseable {
         });
     }
 
+    private static OkHttpClient createWriteClient(OkHttpClient httpClient,
+        GzipRequestInterceptor gzipRequestInterceptor) {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(WritePriority.getTotalMaxInFlight());
+        dispatcher.setMaxRequestsPerHost(WritePriority.getTotalMaxInFlight());
+        // Writes carry the large bodies, runs after the usage interceptor so savings are counted
+        return httpClient.newBuilder()
+            .dispatcher(dispatcher)
+            .addInterceptor(gzipRequestInterceptor)
+            .build();
+    }
+
+    /**
+     * Opens a connection to the database with a read of a path that does not exist, so later
+     * requests on the same connection pool skip DNS, TCP and TLS setup.
+     */
+    public static CompletableFuture<Void> warmUp(OkHttpClient httpClient,
+        FirebaseRealtimeDatabaseURL url) {
+        final String strUrl =
+            url.getBaseUrl() + "/__BRONZEMAN_UNLEASHED_WARM_UP.json?print=silent";
+        Request request = FirebaseRealtimeDatabase.getRequestBuilder(strUrl).get().build();
+        final long startNanos = System.nanoTime();
+
+        return enqueueAsync(httpClient, request).handle((response, error) -> {
+            if (error != null) {
+                log.debug("Warming up {} failed", url.getBaseUrl(), error);
+                return null;
+            }
+            try (okhttp3.Response res = response) {
+                log.debug(
+                    "Warmed up {} in {} ms (HTTP {})",
+                    url.getBaseUrl(),
+                    (System.nanoTime() - startNanos) / 1_000_000,
+                    res.code()
+                );
+            }
+            return null;
+        });
+    }
+
     public static Request.Builder getRequestBuilder(String url) {
         return new Request.Builder().url(url)
             .header("User-Agent", "BronzemanUnleashedPlugin");
@@ -89,24 +205,282 @@ public class FirebaseRealtimeDatabase implements AutoCloseable {
 
     @Override
     public void close() throws Exception {
-        FirebaseSSEStream stream = getStream();
+        timer.shutdownNow();
+        sleepDetector.removeWakeListener(wakeListener);
+        sleepDetector.stop();
+        for (FirebaseSSEStream stream : streams) {
+            stream.stop();
+        }
+        streams.clear();
+        if (outbox != null) {
+            outbox.close();
+        }
+        log.debug("{} reads were merged into requests already in flight", mergedReadCount.get());
+        writeDispatcher.logStats();
+        rateLimiter.close();
+        usage.logUsage();
+        if (hedgedReads != null) {
+            hedgedReads.close();
+        }
+    }
+
+    // Completes with the fallback instead when the future did not complete in time
+    <T> CompletableFuture<T> orFallbackAfter(CompletableFuture<T> future, long timeoutMillis,
+        Supplier<CompletableFuture<T>> fallback) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        future.whenComplete((value, throwable) -> complete(result, value, throwable));
+        try {
+            timer.schedule(() -> {
+                if (result.isDone()) {
+                    return;
+                }
+                fallback.get().whenComplete((value, throwable) -> complete(result, value, throwable));
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Closed, the future is all there is
+        }
+        return result;
+    }
+
+    // Like orFallbackAfter, but the timeout starts over whenever progress is made, so a slow load
+    // that is still going is not read a second time
+    <T> CompletableFuture<T> orFallbackWhenStalled(CompletableFuture<T> future, long timeoutMillis,
+        LongSupplier lastProgressNanos, Supplier<CompletableFuture<T>> fallback) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        future.whenComplete((value, throwable) -> complete(result, value, throwable));
+        scheduleStallCheck(
+            result,
+            System.nanoTime(),
+            timeoutMillis,
+            timeoutMillis,
+            lastProgressNanos,
+            fallback
+        );
+        return result;
+    }
+
+    private <T> void scheduleStallCheck(CompletableFuture<T> result, long sinceNanos,
+        long delayMillis, long timeoutMillis, LongSupplier lastProgressNanos,
+        Supplier<CompletableFuture<T>> fallback) {
+        try {
+            timer.schedule(() -> {
+                if (result.isDone()) {
+                    return;
+                }
+                long progressNanos = lastProgressNanos.getAsLong();
+                long lastNanos = progressNanos - sinceNanos > 0 ? progressNanos : sinceNanos;
+                long idleMillis = (System.nanoTime() - lastNanos) / 1_000_000;
+                if (idleMillis < timeoutMillis) {
+                    scheduleStallCheck(
+                        result,
+                        lastNanos,
+                        timeoutMillis - idleMillis,
+                        timeoutMillis,
+                        lastProgressNanos,
+                        fallback
+                    );
+                    return;
+                }
+                fallback.get().whenComplete((value, throwable) -> complete(result, value, throwable));
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Closed, the future is all there is
+        }
+    }
+
+    private static <T> void complete(CompletableFuture<T> future, T value, Throwable throwable) {
+        if (throwable != null) {
+            future.completeExceptionally(throwable);
+        } else {
+            future.complete(value);
+        }
+    }
+
+    public FirebaseSSEStream createStream(String path) {
+        // Every storage path gets its own stream, so it only receives the writes it cares about
+        // and reconnects with its own backoff.
+        FirebaseSSEStream stream = new FirebaseSSEStream(
+            sseClient,
+            databaseURL,
+            path,
+            router
+        );
+        // Connecting means Firebase is reachable again, a good moment to send what is pending
+        stream.addConnectedListener(streamConnectedListener);
+        streams.add(stream);
+        return stream;
+    }
+
+    public void releaseStream(FirebaseSSEStream stream) {
+        stream.removeConnectedListener(streamConnectedListener);
         stream.stop();
+        streams.remove(stream);
+    }
+
+    public void startStreams() {
+        for (FirebaseSSEStream stream : streams) {
+            stream.start();
+        }
+        // A stream can sit on a dead socket for a long time after the system slept
+        sleepDetector.addWakeListener(wakeListener);
+        sleepDetector.start();
+    }
+
+    private void onWake() {
+        // Pooled connections did not survive the sleep either
+        httpClient.connectionPool().evictAll();
+        for (FirebaseSSEStream stream : streams) {
+            stream.reconnectAfterWake();
+        }
+    }
+
+    public CompletableFuture<Void> writeDurably(Map<String, JsonElement> valuesByPath,
+        Supplier<CompletableFuture<Void>> send) {
+        return writeDurably(valuesByPath, WritePriority.Normal, send);
+    }
+
+    // Writes of the storage path, e.g. '/Members', are journaled in the outbox from now on
+    public void journalWritesTo(String storagePath) {
+        journaledStoragePaths.add(storagePath);
+    }
+
+    // Sent in the lane of its priority once the rate limit allows, journaled first when the
+    // storage path is. JsonNull values are deletes.
+    public CompletableFuture<Void> writeDurably(Map<String, JsonElement> valuesByPath,
+        WritePriority priority, Supplier<CompletableFuture<Void>> send) {
+        // Paths of one write share a storage path
+        String storagePath = valuesByPath.isEmpty()
+            ? "/"
+            : FirebaseUsage.getStoragePath(valuesByPath.keySet().iterator().next());
+        Supplier<CompletableFuture<Void>> prioritizedSend = () -> rateLimiter
+            .acquire(storagePath, priority)
+            .thenCompose(__ -> writeDispatcher.submit(priority, send));
+        if (outbox == null || !journaledStoragePaths.contains(storagePath)) {
+            return prioritizedSend.get();
+        }
+        return outbox.submit(valuesByPath, prioritizedSend);
+    }
+
+    // Pending writes of the storage path are sent to the path mapPath gives instead
+    public void reroutePendingWrites(String storagePath, UnaryOperator<String> mapPath) {
+        if (outbox != null) {
+            outbox.reroute(storagePath, mapPath);
+        }
+    }
+
+    // Whether a journaled write of the path or of one of its parents did not reach Firebase yet
+    public boolean hasPendingWrite(String path) {
+        return outbox != null && outbox.hasPendingWrite(path);
     }
 
+    private void replayOutbox() {
+        if (outbox == null) {
+            return;
+        }
+        outbox.replay().whenComplete((__, throwable) -> {
+            if (throwable != null) {
+                log.debug("outbox replay did not complete", throwable);
+            }
+        });
+    }
+
+    private CompletableFuture<Void> writeOutboxBatch(Map<String, JsonElement> valuesByPath) {
+        // One multi-location update at the root, keys are paths relative to it
+        Map<String, JsonElement> valuesByRelativePath = new LinkedHashMap<>();
+        Set<String> storagePaths = new LinkedHashSet<>();
+        for (Map.Entry<String, JsonElement> entry : valuesByPath.entrySet()) {
+            String path = entry.getKey();
+            valuesByRelativePath.put(
+                path.startsWith("/") ? path.substring(1) : path,
+                entry.getValue()
+            );
+            storagePaths.add(FirebaseUsage.getStoragePath(path));
+        }
+        // A replay is catching up, it waits for the budget of every storage path it writes and
+        // does not get ahead of live writes
+        CompletableFuture<?>[] acquired = new CompletableFuture<?>[storagePaths.size()];
+        int i = 0;
+        for (String storagePath : storagePaths) {
+            acquired[i++] = rateLimiter.acquire(storagePath, WritePriority.Background);
+        }
+        return CompletableFuture.allOf(acquired).thenCompose(__ -> writeDispatcher.submit(
+            WritePriority.Background,
+            () -> patch("/", valuesByRelativePath, FirebaseWriteMode.Silent)
+        ));
+    }
+
+    // Compresses large write bodies, off by default as Firebase does not document compressed bodies
+    public void setCompressRequestBodies(boolean compressRequestBodies) {
+        gzipRequestInterceptor.setEnabled(compressRequestBodies);
+    }
+
+    /**
+     * Sends reads a second time when they are slow to answer, null to turn it off. Writes are
+     * never hedged.
+     */
+    public void setHedgedReads(HedgedReads hedgedReads) {
+        this.hedgedReads = hedgedReads;
+    }
+
+    // Reads that did not send a request of their own because an identical one was in flight
+    public long getMergedReadCount() {
+        return mergedReadCount.get();
+    }
+
+    /**
+     * Callers reading the same path at the same time share one request, and so the same
+     * JsonElement, which must therefore not be modified.
+     */
     public CompletableFuture<JsonElement> get(String path) {
         String url = getUrlForPath(path);
-        Request request = getRequestBuilder(url)
-            .get()
-            .build();
-        return executeJsonRequest(request);
+        return singleFlight("GET " + url, () -> hedged(path, () -> {
+            Request request = getRequestBuilder(url)
+                .get()
+                .build();
+            return executeJsonRequest(httpClient, request);
+        }));
     }
 
-    public CompletableFuture<JsonElement> post(String path, JsonElement data) {
-        return executeJsonRequest(buildJsonRequestWithBody(path, "POST", data));
+    /**
+     * @param data a model or JSON tree, serialized while the request is written
+     */
+    public CompletableFuture<JsonElement> post(String path, Object data) {
+        return executeJsonRequest(writeClient, buildJsonRequestWithBody(path, "POST", data));
     }
 
-    public CompletableFuture<JsonElement> put(String path, JsonElement data) {
-        return executeJsonRequest(buildJsonRequestWithBody(path, "PUT", data));
+    /**
+     * @param data a model or JSON tree, serialized while the request is written
+     */
+    public CompletableFuture<JsonElement> put(String path, Object data) {
+        return executeJsonRequest(writeClient, buildJsonRequestWithBody(path, "PUT", data));
+    }
+
+    /**
+     * Put that does not download the written data again, use on paths where nobody needs it.
+     */
+    public CompletableFuture<Void> put(String path, Object data, FirebaseWriteMode mode) {
+        if (mode == FirebaseWriteMode.Echo) {
+            return put(path, data).thenApply(__ -> null);
+        }
+        return executeVoidRequest(buildJsonRequestWithBody(mode.applyToPath(path), "PUT", data));
+    }
+
+    /**
+     * Multi-location update, every key of data is a path relative to path and a null value
+     * deletes it.
+     */
+    public CompletableFuture<Void> patch(String path, Map<String, ?> data,
+        FirebaseWriteMode mode) {
+        String url = getUrlForPath(mode.applyToPath(path));
+        Request request = getRequestBuilder(url)
+            .header("Content-Type", "application/json")
+            .patch(createJsonBody(data, true))
+            .build();
+        return executeVoidRequest(request);
+    }
+
+    public CompletableFuture<Void> delete(String path, FirebaseWriteMode mode) {
+        return delete(mode.applyToPath(path));
     }
 
     public CompletableFuture<Void> delete(String path) {
@@ -117,10 +491,11 @@ public class FirebaseRealtimeDatabase implements AutoCloseable {
         return executeVoidRequest(request);
     }
 
-    private CompletableFuture<JsonElement> executeJsonRequest(Request request) {
+    private CompletableFuture<JsonElement> executeJsonRequest(OkHttpClient client,
+        Request request) {
         final long startNanos = System.nanoTime();
         final CompletableFuture<JsonElement> future = new CompletableFuture<>();
-        final okhttp3.Call call = httpClient.newCall(request);
+        final okhttp3.Call call = client.newCall(request);
 
         future.whenComplete((r, t) -> {
             if (future.isCancelled()) {
@@ -160,7 +535,7 @@ public class FirebaseRealtimeDatabase implements AutoCloseable {
                         );
                         if (!future.isDone()) {
                             log.error(msg);
-                            future.completeExceptionally(new IOException(msg));
+                            future.completeExceptionally(new FirebaseHttpException(res.code(), msg));
                         }
                         return;
                     }
@@ -196,10 +571,11 @@ public class FirebaseRealtimeDatabase implements AutoCloseable {
         return future;
     }
 
+    // Only used for writes
     private CompletableFuture<Void> executeVoidRequest(Request request) {
         final long startNanos = System.nanoTime();
         final CompletableFuture<Void> future = new CompletableFuture<>();
-        final okhttp3.Call call = httpClient.newCall(request);
+        final okhttp3.Call call = writeClient.newCall(request);
 
         future.whenComplete((r, t) -> {
             if (future.isCancelled()) {
@@ -239,7 +615,7 @@ public class FirebaseRealtimeDatabase implements AutoCloseable {
                         );
                         if (!future.isDone()) {
                             log.error(msg);
-                            future.completeExceptionally(new IOException(msg));
+                            future.completeExceptionally(new FirebaseHttpException(res.code(), msg));
                         }
                         return;
                     }
@@ -255,16 +631,87 @@ public class FirebaseRealtimeDatabase implements AutoCloseable {
         return future;
     }
 
-    private Request buildJsonRequestWithBody(String path, String method, JsonElement data) {
+    private Request buildJsonRequestWithBody(String path, String method, Object data) {
         String url = getUrlForPath(path);
-        String jsonPayload = gson.toJson(data);
-        RequestBody body = RequestBody.create(JSON_MEDIA_TYPE, jsonPayload);
+        RequestBody body = createJsonBody(data, false);
         return getRequestBuilder(url)
             .header("Content-Type", "application/json")
             .method(method, body)
             .build();
     }
 
+    private RequestBody createJsonBody(Object data, boolean serializeNulls) {
+        // Writes of many entries are buffered so their size is known and they can be compressed
+        if (!gzipRequestInterceptor.isEnabled()) {
+            return new JsonRequestBody(gson, data, serializeNulls);
+        }
+        int entries = data instanceof Map ? ((Map<?, ?>) data).size()
+            : data instanceof JsonObject ? ((JsonObject) data).size()
+            : 0;
+        if (entries >= BUFFERED_BODY_MIN_ENTRIES) {
+            return JsonRequestBody.buffered(gson, data, serializeNulls);
+        }
+        return new JsonRequestBody(gson, data, serializeNulls);
+    }
+
+    private <T> CompletableFuture<T> hedged(String path, Supplier<CompletableFuture<T>> read) {
+        HedgedReads hedging = hedgedReads;
+        return hedging == null ? read.get() : hedging.read(getReadKind(path), read);
+    }
+
+    // Reads of the same size class, e.g. '/UnlockedItems/*' for any single item or
+    // '/UnlockedItems?orderBy&startAt&limitToFirst' for any page
+    static String getReadKind(String path) {
+        int queryStart = path.indexOf('?');
+        String resourcePath = queryStart == -1 ? path : path.substring(0, queryStart);
+        StringBuilder kind = new StringBuilder();
+        String[] segments = resourcePath.split("/");
+        for (int i = 1; i < segments.length; i++) {
+            kind.append('/').append(i == 1 ? segments[i] : "*");
+        }
+        if (queryStart != -1) {
+            char separator = '?';
+            for (String parameter : path.substring(queryStart + 1).split("&")) {
+                int valueStart = parameter.indexOf('=');
+                kind.append(separator)
+                    .append(valueStart == -1 ? parameter : parameter.substring(0, valueStart));
+                separator = '&';
+            }
+        }
+        return kind.toString();
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> CompletableFuture<T> singleFlight(String key,
+        Supplier<CompletableFuture<T>> request) {
+        CompletableFuture<T> shared = new CompletableFuture<>();
+        CompletableFuture<?> inFlight = inFlightReads.putIfAbsent(key, shared);
+        if (inFlight != null) {
+            long merged = mergedReadCount.incrementAndGet();
+            log.debug("{} merged into the request in flight, {} merged so far", key, merged);
+            // A copy, so a caller completing or cancelling its future can not affect the others
+            return ((CompletableFuture<T>) inFlight).thenApply(Function.identity());
+        }
+
+        CompletableFuture<T> requestFuture;
+        try {
+            requestFuture = request.get();
+        } catch (Exception e) {
+            requestFuture = new CompletableFuture<>();
+            requestFuture.completeExceptionally(e);
+        }
+        requestFuture.whenComplete((value, throwable) -> {
+            // Removed before completing, a read made from a callback must send a new request
+            inFlightReads.remove(key, shared);
+            if (throwable != null) {
+                shared.completeExceptionally(throwable);
+            } else {
+                shared.complete(value);
+            }
+        });
+        return shared.thenApply(Function.identity());
+    }
+
     private String getUrlForPath(String path) {
         HttpUrl base = HttpUrl.parse(databaseURL.getBaseUrl());
         if (base == null) {
@@ -0,0 +1,102 @@
+package com.elertan.remote.firebase;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ByteString;
+
+// Reads server-sent events straight from the response source. The data of an event is moved into
+// its own buffer undecoded, so it can be parsed straight from the bytes. Firebase sends a
+// keep-alive every 30 seconds, hitting the source timeout means the connection is dead.
+final class FirebaseSSEReader {
+
+    private static final ByteString EVENT_FIELD = ByteString.encodeUtf8("event:");
+    private static final ByteString DATA_FIELD = ByteString.encodeUtf8("data:");
+    private static final byte LF = '\n';
+    private static final byte CR = '\r';
+    private static final byte SPACE = ' ';
+
+    private final BufferedSource source;
+    private final Buffer buffer;
+
+    private final Buffer data = new Buffer();
+    private String eventName;
+    private boolean hasData;
+
+    FirebaseSSEReader(BufferedSource source, long idleTimeout, TimeUnit unit) {
+        this.source = source;
+        this.buffer = source.getBuffer();
+        source.timeout().timeout(idleTimeout, unit);
+    }
+
+    /**
+     * Blocks until the next event is complete and hands it to the handler.
+     *
+     * @return false when the server closed the stream
+     */
+    boolean readEvent(EventHandler handler) throws Exception {
+        while (true) {
+            long lineEnd = source.indexOf(LF);
+            if (lineEnd == -1) {
+                return false;
+            }
+
+            long contentEnd = lineEnd;
+            if (contentEnd > 0 && buffer.getByte(contentEnd - 1) == CR) {
+                contentEnd--;
+            }
+
+            if (contentEnd == 0) {
+                // A blank line dispatches the event
+                source.skip(lineEnd + 1);
+                if (eventName == null && !hasData) {
+                    continue;
+                }
+                String name = eventName;
+                eventName = null;
+                hasData = false;
+                try {
+                    handler.onEvent(name, data);
+                } finally {
+                    data.clear();
+                }
+                return true;
+            }
+
+            if (source.rangeEquals(0, EVENT_FIELD)) {
+                long valueLength = skipFieldName(EVENT_FIELD.size(), contentEnd);
+                eventName = source.readUtf8(valueLength);
+                source.skip(lineEnd - contentEnd + 1);
+            } else if (source.rangeEquals(0, DATA_FIELD)) {
+                long valueLength = skipFieldName(DATA_FIELD.size(), contentEnd);
+                if (hasData) {
+                    data.writeByte(LF);
+                }
+                hasData = true;
+                // Moves the segments over instead of copying them where it can
+                source.readFully(data, valueLength);
+                source.skip(lineEnd - contentEnd + 1);
+            } else {
+                // Comments and fields Firebase does not use
+                source.skip(lineEnd + 1);
+            }
+        }
+    }
+
+    // Skips the field name and the space after it, returns the length of the value
+    private long skipFieldName(int fieldLength, long contentEnd) throws IOException {
+        long valueStart = fieldLength;
+        if (valueStart < contentEnd && buffer.getByte(valueStart) == SPACE) {
+            valueStart++;
+        }
+        source.skip(valueStart);
+        return contentEnd - valueStart;
+    }
+
+    interface EventHandler {
+
+        // The data is empty when the event has none, it is cleared once the handler returns
+        void onEvent(String eventName, Buffer data) throws Exception;
+    }
+}
@@ -0,0 +1,205 @@
+package com.elertan.remote.firebase;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import lombok.extern.slf4j.Slf4j;
+
+// Routes stream events to the handler of the longest matching base path, kept in a trie of path
+// segments
+@Slf4j
+public class FirebaseSSERouter {
+
+    private static final String[] NO_SEGMENTS = new String[0];
+
+    private final Object lock = new Object();
+    private volatile Node root = new Node();
+
+    static String[] splitPath(String path) {
+        if (path == null || path.isEmpty()) {
+            return NO_SEGMENTS;
+        }
+        List<String> segments = new ArrayList<>();
+        int length = path.length();
+        int start = 0;
+        for (int i = 0; i <= length; i++) {
+            if (i == length || path.charAt(i) == '/') {
+                if (i > start) {
+                    segments.add(path.substring(start, i));
+                }
+                start = i + 1;
+            }
+        }
+        return segments.isEmpty() ? NO_SEGMENTS : segments.toArray(NO_SEGMENTS);
+    }
+
+    public void register(String basePath, Handler<?> handler) {
+        if (basePath == null || !basePath.startsWith("/")) {
+            throw new IllegalArgumentException("basePath must start with '/'");
+        }
+        String[] segments = splitPath(basePath);
+        synchronized (lock) {
+            // Copy on write, routing never takes the lock
+            Node newRoot = root.copy();
+            Node node = newRoot;
+            for (String segment : segments) {
+                Node child = node.children.get(segment);
+                child = child == null ? new Node() : child.copy();
+                node.children.put(segment, child);
+                node = child;
+            }
+            if (node.handler != null) {
+                throw new IllegalStateException("a handler is already registered for " + basePath);
+            }
+            node.handler = handler;
+            root = newRoot;
+        }
+    }
+
+    public void unregister(String basePath, Handler<?> handler) {
+        String[] segments = splitPath(basePath);
+        synchronized (lock) {
+            Node newRoot = root.copy();
+            Node node = newRoot;
+            for (String segment : segments) {
+                Node child = node.children.get(segment);
+                if (child == null) {
+                    return;
+                }
+                child = child.copy();
+                node.children.put(segment, child);
+                node = child;
+            }
+            if (node.handler != handler) {
+                return;
+            }
+            node.handler = null;
+            root = newRoot;
+        }
+    }
+
+    /**
+     * Reads a data line of the form {"path": ..., "data": ...} and lets the matching handler
+     * decode the data straight from the reader.
+     *
+     * @param streamPath path of the stream the event arrived on, event paths are relative to it
+     */
+    public void route(FirebaseSSEType type, String streamPath, JsonReader reader)
+        throws IOException {
+        String eventPath = null;
+        JsonElement bufferedData = null;
+        boolean dispatched = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("path".equals(name)) {
+                eventPath = reader.nextString();
+            } else if ("data".equals(name)) {
+                if (eventPath != null) {
+                    dispatch(type, streamPath + eventPath, reader);
+                    dispatched = true;
+                } else {
+                    // Firebase sends the path first, this is only here to not depend on it
+                    bufferedData = new JsonParser().parse(reader);
+                }
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (dispatched) {
+            return;
+        }
+        if (eventPath == null) {
+            log.warn("Firebase {} event without a path", type.raw());
+            return;
+        }
+        String data = bufferedData == null ? "null" : bufferedData.toString();
+        try (JsonReader dataReader = new JsonReader(new StringReader(data))) {
+            dispatch(type, streamPath + eventPath, dataReader);
+        }
+    }
+
+    private void dispatch(FirebaseSSEType type, String path, JsonReader reader)
+        throws IOException {
+        String[] segments = splitPath(path);
+
+        Node node = root;
+        Handler<?> handler = node.handler;
+        int handlerDepth = 0;
+        for (int i = 0; i < segments.length; i++) {
+            node = node.children.get(segments[i]);
+            if (node == null) {
+                break;
+            }
+            if (node.handler != null) {
+                handler = node.handler;
+                handlerDepth = i + 1;
+            }
+        }
+
+        if (handler == null) {
+            log.debug("No route for Firebase {} event at {}", type.raw(), path);
+            reader.skipValue();
+            return;
+        }
+
+        String[] keySegments = handlerDepth == 0
+            ? segments
+            : Arrays.copyOfRange(segments, handlerDepth, segments.length);
+        decodeAndHandle(handler, type, keySegments, reader, path);
+    }
+
+    private static <T> void decodeAndHandle(Handler<T> handler, FirebaseSSEType type,
+        String[] keySegments, JsonReader reader, String path) throws IOException {
+        T data;
+        try {
+            data = handler.decode(type, keySegments, reader);
+        } catch (RuntimeException e) {
+            // The reader is somewhere inside the value, the rest of the event can not be read
+            throw new IOException("Firebase route handler failed to decode " + path, e);
+        }
+        try {
+            handler.onEvent(type, keySegments, data);
+        } catch (Exception e) {
+            log.warn("Firebase route handler failed for {}", path, e);
+        }
+    }
+
+    /**
+     * @param <T> what the handler decodes event data into
+     */
+    public interface Handler<T> {
+
+        /**
+         * Reads the data value of an event, the reader is positioned at its first token. The
+         * whole value must be consumed.
+         */
+        T decode(FirebaseSSEType type, String[] keySegments, JsonReader reader)
+            throws IOException;
+
+        void onEvent(FirebaseSSEType type, String[] keySegments, T data);
+    }
+
+    private static final class Node {
+
+        private final Map<String, Node> children = new HashMap<>();
+        private Handler<?> handler;
+
+        private Node copy() {
+            Node node = new Node();
+            node.children.putAll(children);
+            node.handler = handler;
+            return node;
+        }
+    }
+}
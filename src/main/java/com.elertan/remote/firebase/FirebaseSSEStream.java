@@ -1,18 +1,18 @@
 package com.elertan.remote.firebase;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonElement;
-import java.io.BufferedReader;
+import com.google.gson.stream.JsonReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
-import java.util.function.Consumer;
+import java.util.function.Supplier;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import okhttp3.Call;
@@ -20,40 +20,59 @@ import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSource;
 
 @Slf4j
 public class FirebaseSSEStream {
 
     private static final int READ_TIMEOUT_SECONDS = 90;
 
-    private static final String EVENT_PREFIX = "event:";
-    private static final int EVENT_PREFIX_LENGTH = EVENT_PREFIX.length();
-    private static final String DATA_PREFIX = "data:";
-    private static final int DATA_PREFIX_LENGTH = DATA_PREFIX.length();
-
-    private final Gson gson;
     private final FirebaseRealtimeDatabaseURL databaseURL;
+    @Getter
+    private final String path;
 
-    private final CopyOnWriteArrayList<Consumer<FirebaseSSE>> serverSentEventListeners = new CopyOnWriteArrayList<>();
     private final CopyOnWriteArrayList<Runnable> isRunningListeners = new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<Runnable> connectedListeners = new CopyOnWriteArrayList<>();
     private final OkHttpClient sseClient;
+    private final FirebaseSSERouter router;
     private ExecutorService streamExecutor;
-    private ExecutorService readExecutor;
     private volatile Call currentCall;
 
     @Getter
     private volatile boolean isRunning = false;
+    // Query for reconnects, so only what changed while disconnected is sent again
+    private volatile Supplier<String> resumeQuerySupplier;
+    private volatile boolean resumeQueryRejected;
+    // The first connection receives all data, unless the data was loaded before the first connect,
+    // and so does the one after an event that could not be decoded. Changes a filtered connection
+    // misses, such as deletes, are up to the owner to reconcile.
+    private volatile boolean nextConnectionUnfiltered = true;
+    private volatile Supplier<CompletableFuture<Void>> beforeFirstConnect;
+    // Whether the current connection only receives the data matching the resume query
+    @Getter
+    private volatile boolean currentConnectionFiltered;
+    private volatile boolean reconnectRequested;
+    // When the system woke up, 0 once the first event after it arrived
+    private volatile long wakeNanos;
+    // Time from the last wake until events arrived again, -1 before the first wake
+    @Getter
+    private volatile long lastWakeToFirstEventMillis = -1;
 
-    // Watchdog: reconnect if no successful read for this long
-    private static final long WATCHDOG_IDLE_NANOS = TimeUnit.MINUTES.toNanos(5);
-    // Tracks last successful line read time for watchdog
-    private volatile long lastReadNano = System.nanoTime();
-
-    public FirebaseSSEStream(OkHttpClient httpClient, Gson gson,
-        FirebaseRealtimeDatabaseURL databaseURL) {
-        this.gson = gson;
+    public FirebaseSSEStream(OkHttpClient sseClient, FirebaseRealtimeDatabaseURL databaseURL,
+        String path, FirebaseSSERouter router) {
+        // Path should be of format '/Resource', events are then relative to that resource
+        if (path == null || !path.startsWith("/")) {
+            throw new IllegalArgumentException("path must start with '/'");
+        }
         this.databaseURL = databaseURL;
-        this.sseClient = httpClient.newBuilder()
+        this.path = path;
+        this.sseClient = sseClient;
+        this.router = router;
+    }
+
+    public static OkHttpClient createClient(OkHttpClient httpClient) {
+        return httpClient.newBuilder()
             .retryOnConnectionFailure(true)
             // Keep the TCP/TLS connection alive and detect dead HTTP/2 sockets after sleep
             .pingInterval(Duration.ofSeconds(30))
@@ -70,26 +89,11 @@ public class FirebaseSSEStream {
         });
     }
 
-    private synchronized ExecutorService ensureReadExecutor() {
-        if (readExecutor == null || readExecutor.isShutdown()) {
-            readExecutor = newSingleThreadExecutor("firebase-sse-read");
-        }
-        return readExecutor;
-    }
-
-    private synchronized void recreateReadExecutor() {
-        if (readExecutor != null) {
-            readExecutor.shutdownNow();
-        }
-        readExecutor = newSingleThreadExecutor("firebase-sse-read");
-        log.warn("Firebase read executor recreated");
-    }
-
     private void sleepWithJitterSeconds(int baseSeconds) {
         long jitterMillis = ThreadLocalRandom.current().nextLong(250, 1250);
         long totalMillis = baseSeconds * 1000L + jitterMillis;
         long deadline = System.currentTimeMillis() + totalMillis;
-        while (isRunning && System.currentTimeMillis() < deadline) {
+        while (isRunning && !reconnectRequested && System.currentTimeMillis() < deadline) {
             long remaining = deadline - System.currentTimeMillis();
             try {
                 Thread.sleep(Math.min(250L, Math.max(1L, remaining)));
@@ -100,14 +104,6 @@ public class FirebaseSSEStream {
         }
     }
 
-    public void addServerSentEventListener(Consumer<FirebaseSSE> listener) {
-        serverSentEventListeners.add(listener);
-    }
-
-    public void removeServerSentEventListener(Consumer<FirebaseSSE> listener) {
-        serverSentEventListeners.remove(listener);
-    }
-
     public void addIsRunningListener(Runnable listener) {
         isRunningListeners.add(listener);
     }
@@ -116,14 +112,34 @@ public class FirebaseSSEStream {
         isRunningListeners.remove(listener);
     }
 
+    /**
+     * @param resumeQuerySupplier called on reconnects, returns query parameters such as
+     *                            orderBy/startAt or null to receive everything
+     */
+    public void setResumeQuerySupplier(Supplier<String> resumeQuerySupplier) {
+        this.resumeQuerySupplier = resumeQuerySupplier;
+    }
+
+    // Run once on start, the stream connects when its future completes, e.g. after a paged load
+    public void setBeforeFirstConnect(Supplier<CompletableFuture<Void>> beforeFirstConnect) {
+        this.beforeFirstConnect = beforeFirstConnect;
+    }
+
+    public void addConnectedListener(Runnable listener) {
+        connectedListeners.add(listener);
+    }
+
+    public void removeConnectedListener(Runnable listener) {
+        connectedListeners.remove(listener);
+    }
+
     public synchronized void start() {
         if (isRunning) {
             return;
         }
         if (streamExecutor == null || streamExecutor.isShutdown()) {
-            streamExecutor = newSingleThreadExecutor("firebase-sse-stream");
+            streamExecutor = newSingleThreadExecutor("firebase-sse-stream" + path);
         }
-        ensureReadExecutor();
         setIsRunning(true);
         streamExecutor.submit(this::loop);
     }
@@ -141,12 +157,25 @@ public class FirebaseSSEStream {
             streamExecutor.shutdownNow();
             streamExecutor = null;
         }
-        if (readExecutor != null) {
-            readExecutor.shutdownNow();
-            readExecutor = null;
-        }
 
-        log.info("Firebase SSE stream stopped");
+        log.info("Firebase SSE stream stopped for {}", path);
+    }
+
+    /**
+     * Drops the current connection and connects again right away, for when the connection is
+     * likely dead without the socket knowing, e.g. after the system slept. The reconnect resumes
+     * with the resume query, so only what changed meanwhile is sent.
+     */
+    public void reconnectAfterWake() {
+        if (!isRunning) {
+            return;
+        }
+        wakeNanos = System.nanoTime();
+        reconnectRequested = true;
+        Call call = currentCall;
+        if (call != null) {
+            call.cancel();
+        }
     }
 
     private void setIsRunning(boolean running) {
@@ -164,13 +193,31 @@ public class FirebaseSSEStream {
         }
     }
 
+    private void notifyConnected() {
+        for (Runnable listener : connectedListeners) {
+            try {
+                listener.run();
+            } catch (Throwable t) {
+                log.warn("connected listener error", t);
+            }
+        }
+    }
+
     private void loop() {
         int backoffSeconds = 1;       // start small
         final int maxBackoffSeconds = 30;
         boolean loggedStart = false;
 
+        if (!runBeforeFirstConnect()) {
+            setIsRunning(false);
+            return;
+        }
+
         while (isRunning) {
-            final String url = databaseURL.getBaseUrl() + "/.json";
+            reconnectRequested = false;
+            String query = getResumeQuery();
+            final String url = databaseURL.getBaseUrl() + path + ".json"
+                + (query != null ? "?" + query : "");
 
             Request request = FirebaseRealtimeDatabase.getRequestBuilder(url)
                 .header("Accept", "text/event-stream")
@@ -182,8 +229,21 @@ public class FirebaseSSEStream {
                 Call call = sseClient.newCall(request);
                 currentCall = call;
                 try (Response response = call.execute()) {
+                    if (!response.isSuccessful() && query != null && response.code() == 400) {
+                        // Most likely the database has no .indexOn rule for the query
+                        log.warn(
+                            "Firebase stream {} resume query rejected, falling back to full snapshots",
+                            path
+                        );
+                        resumeQueryRejected = true;
+                        continue;
+                    }
                     if (!response.isSuccessful()) {
-                        log.warn("Firebase stream HTTP {}. Will retry.", response.code());
+                        log.warn(
+                            "Firebase stream {} HTTP {}. Will retry.",
+                            path,
+                            response.code()
+                        );
                         if (!isRunning) {
                             break;
                         }
@@ -195,7 +255,7 @@ public class FirebaseSSEStream {
                     }
 
                     if (!loggedStart) {
-                        log.debug("Firebase SSE stream connected");
+                        log.debug("Firebase SSE stream connected for {}", path);
                         loggedStart = true;
                     }
 
@@ -211,11 +271,20 @@ public class FirebaseSSEStream {
                         continue;
                     }
 
-                    lastReadNano = System.nanoTime();
-
-                    try (BufferedReader reader = new BufferedReader(new InputStreamReader(body.byteStream()))) {
-                        // read loop; timeouts are treated as keep-alives
-                        readStream(reader);
+                    // Firebase starts every connection with a put of the full data at '/', or of
+                    // the data matching the query
+                    currentConnectionFiltered = query != null;
+                    if (query == null) {
+                        nextConnectionUnfiltered = false;
+                    }
+                    notifyConnected();
+
+                    try (BufferedSource source = body.source()) {
+                        readStream(new FirebaseSSEReader(
+                            source,
+                            READ_TIMEOUT_SECONDS,
+                            TimeUnit.SECONDS
+                        ));
                     }
 
                     // successful session; reset backoff
@@ -225,7 +294,14 @@ public class FirebaseSSEStream {
                 if (!isRunning) {
                     break;
                 }
-                log.warn("Firebase stream error. Will retry.", e);
+                if (reconnectRequested) {
+                    reconnectRequested = false;
+                    log.info("Firebase stream {} reconnecting after wake", path);
+                    sseClient.connectionPool().evictAll();
+                    backoffSeconds = 1;
+                    continue;
+                }
+                log.warn("Firebase stream {} error. Will retry.", path, e);
                 // After sleep, TLS sockets in the pool may be invalid. Clear them.
                 sseClient.connectionPool().evictAll();
                 sleepWithJitterSeconds(backoffSeconds);
@@ -237,88 +313,67 @@ public class FirebaseSSEStream {
         setIsRunning(false);
     }
 
-    private void readStream(BufferedReader reader) throws Exception {
-        FirebaseSSEType eventType = null;
-        int consecutiveTimeouts = 0;
+    // False when the stream was stopped meanwhile
+    private boolean runBeforeFirstConnect() {
+        Supplier<CompletableFuture<Void>> supplier = beforeFirstConnect;
+        beforeFirstConnect = null;
+        if (supplier == null) {
+            return true;
+        }
+        try {
+            supplier.get().get();
+            // Only what changed since the load is needed, the resume query is null without data
+            nextConnectionUnfiltered = false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (Exception e) {
+            // Connecting still works, it just starts with the full data
+            log.warn("Firebase stream {} before connect failed", path, e);
+        }
+        return isRunning;
+    }
 
+    private String getResumeQuery() {
+        Supplier<String> supplier = resumeQuerySupplier;
+        if (supplier == null || resumeQueryRejected || nextConnectionUnfiltered) {
+            return null;
+        }
+        try {
+            return supplier.get();
+        } catch (Exception e) {
+            log.warn("Firebase stream {} failed to build resume query", path, e);
+            return null;
+        }
+    }
+
+    private void readStream(FirebaseSSEReader reader) throws Exception {
         while (isRunning) {
+            boolean hasEvent;
             try {
-                String line = readLineWithTimeout(reader, READ_TIMEOUT_SECONDS);
-                if (line == null) {
-                    log.warn("Firebase stream closed by server");
+                hasEvent = reader.readEvent(this::handleEvent);
+            } catch (InterruptedIOException e) {
+                if (!isRunning) {
                     break;
                 }
-
-                // successful read
-                consecutiveTimeouts = 0;
-                lastReadNano = System.nanoTime();
-
-                if (line.startsWith(EVENT_PREFIX)) {
-                    eventType = parseEventType(line);
-                    if (eventType == null) {
-                        break;
-                    }
-                    continue;
-                }
-
-                if (line.startsWith(DATA_PREFIX)) {
-                    handleDataLine(line, eventType);
-                }
-            } catch (TimeoutException te) {
-                consecutiveTimeouts++;
-                // expected idle timeout; treat as liveness check
-                log.debug("Firebase stream read timeout; continuing");
-
-                // Watchdog: if no successful read for too long, force reconnect
-                long idle = System.nanoTime() - lastReadNano;
-                if (idle > WATCHDOG_IDLE_NANOS) {
-                    log.warn(
-                        "Firebase stream watchdog tripped after {} ms idle; reconnecting",
-                        TimeUnit.NANOSECONDS.toMillis(idle)
-                    );
-                    Call call = currentCall;
-                    if (call != null) {
-                        call.cancel();
-                    }
-                    // Ensure we do not reuse a stale connection after system sleep
-                    sseClient.connectionPool().evictAll();
-                    break; // exit read loop to allow outer loop to reconnect
-                }
-
-                // Harden: if the read executor is misbehaving, recreate it
-                if (consecutiveTimeouts >= 4) { // ~6 minutes with 90s timeouts
-                    log.warn(
-                        "Firebase read timeouts consecutive={} – recreating read executor",
-                        consecutiveTimeouts
-                    );
-                    recreateReadExecutor();
-                    consecutiveTimeouts = 0;
-                }
-                continue;
+                // Not even a keep-alive for the whole timeout, the connection is dead
+                log.warn(
+                    "Firebase stream {} idle for {} seconds; reconnecting",
+                    path,
+                    READ_TIMEOUT_SECONDS
+                );
+                // Ensure we do not reuse a stale connection after system sleep
+                sseClient.connectionPool().evictAll();
+                break;
+            }
+            if (!hasEvent) {
+                log.warn("Firebase stream closed by server");
+                break;
             }
         }
     }
 
-    private String readLineWithTimeout(BufferedReader reader, int timeoutSeconds) throws Exception {
-        ExecutorService exec = ensureReadExecutor();
-        Future<String> futureLine;
-        try {
-            futureLine = exec.submit(reader::readLine);
-        } catch (java.util.concurrent.RejectedExecutionException rex) {
-            log.warn("Firebase read executor rejected task; recreating and retrying once");
-            recreateReadExecutor();
-            futureLine = readExecutor.submit(reader::readLine);
-        }
-        try {
-            return futureLine.get(timeoutSeconds, TimeUnit.SECONDS);
-        } catch (TimeoutException e) {
-            futureLine.cancel(true);
-            throw new TimeoutException("Firebase stream read timeout");
-        }
-    }
-
-    private FirebaseSSEType parseEventType(String line) {
-        String eventTypeString = line.substring(EVENT_PREFIX_LENGTH).trim();
+    private FirebaseSSEType parseEventType(String eventTypeString) {
         FirebaseSSEType type = FirebaseSSEType.fromRaw(eventTypeString);
         if (type == null) {
             log.error("Unknown Firebase event type: {}", eventTypeString);
@@ -326,11 +381,26 @@ public class FirebaseSSEStream {
         return type;
     }
 
-    private void handleDataLine(String line, FirebaseSSEType eventType) {
-        if (eventType == null) {
+    private void handleEvent(String eventName, Buffer data) {
+        if (eventName == null) {
             log.warn("Received data before event type");
             return;
         }
+        FirebaseSSEType eventType = parseEventType(eventName);
+        if (eventType == null) {
+            throw new IllegalStateException("Unknown Firebase event type: " + eventName);
+        }
+
+        long wokeAtNanos = wakeNanos;
+        if (wokeAtNanos != 0) {
+            wakeNanos = 0;
+            lastWakeToFirstEventMillis = (System.nanoTime() - wokeAtNanos) / 1_000_000;
+            log.info(
+                "Firebase stream {} live again {} ms after wake",
+                path,
+                lastWakeToFirstEventMillis
+            );
+        }
 
         switch (eventType) {
             case KeepAlive:
@@ -346,36 +416,21 @@ public class FirebaseSSEStream {
                 break;
         }
 
-        String jsonStr = line.substring(DATA_PREFIX_LENGTH).trim();
-        if (jsonStr.isEmpty()) {
+        if (data.size() == 0) {
             log.warn("Firebase data line empty");
             return;
         }
 
-        FirebaseSSEDataLine dataLine = gson.fromJson(jsonStr, FirebaseSSEDataLine.class);
-        if (dataLine == null) {
-            log.error("Failed to parse firebase data line");
-            return;
-        }
-
-        FirebaseSSE eventData = new FirebaseSSE(eventType, dataLine.path, dataLine.data);
-        for (Consumer<FirebaseSSE> listener : serverSentEventListeners) {
-            try {
-                listener.accept(eventData);
-            } catch (Exception e) {
-                log.warn("Firebase listener failed", e);
-            }
-        }
-    }
-
-    private class FirebaseSSEDataLine {
-
-        private final String path;
-        private final JsonElement data;
-
-        public FirebaseSSEDataLine(String path, JsonElement data) {
-            this.path = path;
-            this.data = data;
+        // Parsed from the event bytes, the data is never held as one string
+        try (JsonReader reader = new JsonReader(
+            new InputStreamReader(data.inputStream(), StandardCharsets.UTF_8))) {
+            router.route(eventType, path, reader);
+        } catch (IOException | RuntimeException e) {
+            // The data would silently fall behind without this event, so it is received again
+            // from a connection that starts with everything
+            log.error("Failed to parse firebase data line for {}, reconnecting", path, e);
+            nextConnectionUnfiltered = true;
+            throw new IllegalStateException("Undecodable Firebase event", e);
         }
     }
 
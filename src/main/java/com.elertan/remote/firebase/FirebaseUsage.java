@@ -0,0 +1,234 @@
+package com.elertan.remote.firebase;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.ForwardingSink;
+import okio.ForwardingSource;
+import okio.Okio;
+
+/**
+ * Counts requests and bytes on the wire per storage path, so it is known which data uses up the
+ * database plan. Installed as a network interceptor, so compressed bodies are counted as sent.
+ * <p>
+ * Its {@link #getApplicationInterceptor() application interceptor} counts the same bodies before
+ * compression and after decompression, which tells how much compression saved.
+ * <p>
+ * Stream bytes are counted as they arrive, a stream counts as one request per connection.
+ */
+@Slf4j
+public class FirebaseUsage implements Interceptor {
+
+    private final Map<String, PathUsage> usageByPath = new ConcurrentHashMap<>();
+    private final Interceptor applicationInterceptor = this::interceptApplication;
+
+    static String getStoragePath(String urlPath) {
+        String[] segments = FirebaseSSERouter.splitPath(urlPath);
+        if (segments.length == 0) {
+            return "/";
+        }
+        String first = segments[0];
+        if (first.endsWith(".json")) {
+            first = first.substring(0, first.length() - ".json".length());
+        }
+        return first.isEmpty() ? "/" : "/" + first;
+    }
+
+    // Must run before anything that compresses request bodies
+    public Interceptor getApplicationInterceptor() {
+        return applicationInterceptor;
+    }
+
+    public Map<String, PathUsage> getUsageByPath() {
+        return Collections.unmodifiableMap(usageByPath);
+    }
+
+    public void logUsage() {
+        for (Map.Entry<String, PathUsage> entry : usageByPath.entrySet()) {
+            PathUsage usage = entry.getValue();
+            log.debug(
+                "{}: {} requests, {} bytes sent, {} bytes received, {} bytes saved by compression ({} gzip responses, {} gzip requests)",
+                entry.getKey(),
+                usage.getRequestCount(),
+                usage.getBytesSent(),
+                usage.getBytesReceived(),
+                usage.getBytesSaved(),
+                usage.getGzipResponseCount(),
+                usage.getGzipRequestCount()
+            );
+        }
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        PathUsage usage = getPathUsage(request);
+        usage.requestCount.incrementAndGet();
+        if ("gzip".equalsIgnoreCase(request.header("Content-Encoding"))) {
+            usage.gzipRequestCount.incrementAndGet();
+        }
+
+        RequestBody body = request.body();
+        if (body != null) {
+            request = request.newBuilder()
+                .method(request.method(), new CountingRequestBody(body, usage.bytesSent))
+                .build();
+        }
+        Response response = chain.proceed(request);
+        if ("gzip".equalsIgnoreCase(response.header("Content-Encoding"))) {
+            usage.gzipResponseCount.incrementAndGet();
+        }
+        ResponseBody responseBody = response.body();
+        if (responseBody == null) {
+            return response;
+        }
+        return response.newBuilder()
+            .body(new CountingResponseBody(responseBody, usage.bytesReceived))
+            .build();
+    }
+
+    private Response interceptApplication(Chain chain) throws IOException {
+        Request request = chain.request();
+        PathUsage usage = getPathUsage(request);
+        RequestBody body = request.body();
+        if (body != null) {
+            request = request.newBuilder()
+                .method(request.method(), new CountingRequestBody(body, usage.bytesSentUncompressed))
+                .build();
+        }
+        Response response = chain.proceed(request);
+        ResponseBody responseBody = response.body();
+        if (responseBody == null) {
+            return response;
+        }
+        return response.newBuilder()
+            .body(new CountingResponseBody(responseBody, usage.bytesReceivedDecompressed))
+            .build();
+    }
+
+    private PathUsage getPathUsage(Request request) {
+        return usageByPath.computeIfAbsent(
+            getStoragePath(request.url().encodedPath()),
+            __ -> new PathUsage()
+        );
+    }
+
+    public static final class PathUsage {
+
+        private final AtomicLong requestCount = new AtomicLong();
+        private final AtomicLong bytesSent = new AtomicLong();
+        private final AtomicLong bytesReceived = new AtomicLong();
+        private final AtomicLong bytesSentUncompressed = new AtomicLong();
+        private final AtomicLong bytesReceivedDecompressed = new AtomicLong();
+        private final AtomicLong gzipRequestCount = new AtomicLong();
+        private final AtomicLong gzipResponseCount = new AtomicLong();
+
+        public long getRequestCount() {
+            return requestCount.get();
+        }
+
+        public long getBytesSent() {
+            return bytesSent.get();
+        }
+
+        public long getBytesReceived() {
+            return bytesReceived.get();
+        }
+
+        public long getGzipRequestCount() {
+            return gzipRequestCount.get();
+        }
+
+        // Responses that were compressed, the others were sent as is although gzip was accepted
+        public long getGzipResponseCount() {
+            return gzipResponseCount.get();
+        }
+
+        // Bytes that did not go over the wire thanks to compression, both ways
+        public long getBytesSaved() {
+            return (bytesSentUncompressed.get() - bytesSent.get())
+                + (bytesReceivedDecompressed.get() - bytesReceived.get());
+        }
+    }
+
+    private static final class CountingRequestBody extends RequestBody {
+
+        private final RequestBody delegate;
+        private final AtomicLong counter;
+
+        private CountingRequestBody(RequestBody delegate, AtomicLong counter) {
+            this.delegate = delegate;
+            this.counter = counter;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return delegate.contentType();
+        }
+
+        @Override
+        public long contentLength() throws IOException {
+            return delegate.contentLength();
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            BufferedSink countingSink = Okio.buffer(new ForwardingSink(sink) {
+                @Override
+                public void write(Buffer source, long byteCount) throws IOException {
+                    super.write(source, byteCount);
+                    counter.addAndGet(byteCount);
+                }
+            });
+            delegate.writeTo(countingSink);
+            countingSink.emit();
+        }
+    }
+
+    private static final class CountingResponseBody extends ResponseBody {
+
+        private final ResponseBody delegate;
+        private final BufferedSource source;
+
+        private CountingResponseBody(ResponseBody delegate, AtomicLong counter) {
+            this.delegate = delegate;
+            this.source = Okio.buffer(new ForwardingSource(delegate.source()) {
+                @Override
+                public long read(Buffer sink, long byteCount) throws IOException {
+                    long read = super.read(sink, byteCount);
+                    if (read > 0) {
+                        counter.addAndGet(read);
+                    }
+                    return read;
+                }
+            });
+        }
+
+        @Override
+        public MediaType contentType() {
+            return delegate.contentType();
+        }
+
+        @Override
+        public long contentLength() {
+            return delegate.contentLength();
+        }
+
+        @Override
+        public BufferedSource source() {
+            return source;
+        }
+    }
+}
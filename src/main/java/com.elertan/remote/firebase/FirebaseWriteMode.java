@@ -0,0 +1,15 @@
+package com.elertan.remote.firebase;
+
+public enum FirebaseWriteMode {
+    // Firebase responds with the written data
+    Echo,
+    // Firebase responds with 204 No Content (print=silent), the write resolves on the status alone
+    Silent;
+
+    String applyToPath(String path) {
+        if (this != Silent) {
+            return path;
+        }
+        return path + (path.indexOf('?') >= 0 ? "&" : "?") + "print=silent";
+    }
+}
@@ -0,0 +1,93 @@
+package com.elertan.remote.firebase;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
+
+// Sends request bodies of a known size above a threshold gzip compressed, once turned on. The
+// REST API does not document compressed bodies, so a refused one is sent again uncompressed.
+@Slf4j
+class GzipRequestInterceptor implements Interceptor {
+
+    // Smaller bodies barely shrink and are not worth the CPU time
+    private static final long MIN_COMPRESS_BYTES = 8 * 1024;
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    private final AtomicBoolean enabled = new AtomicBoolean(false);
+
+    void setEnabled(boolean enabled) {
+        this.enabled.set(enabled);
+    }
+
+    boolean isEnabled() {
+        return enabled.get();
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        RequestBody body = request.body();
+        // Bodies of unknown size are streamed as they are, they would have to be buffered first
+        if (!enabled.get()
+            || body == null
+            || body.contentLength() < MIN_COMPRESS_BYTES
+            || request.header("Content-Encoding") != null) {
+            return chain.proceed(request);
+        }
+
+        Request compressedRequest = request.newBuilder()
+            .header("Content-Encoding", "gzip")
+            .method(request.method(), new GzipRequestBody(body))
+            .build();
+        Response response = chain.proceed(compressedRequest);
+        int code = response.code();
+        if (code < 400 || code >= 500 || code == TOO_MANY_REQUESTS) {
+            return response;
+        }
+        // Any refusal may be the compression, the write is only judged on the uncompressed one
+        response.close();
+        Response retryResponse = chain.proceed(request);
+        if (retryResponse.code() != code && enabled.compareAndSet(true, false)) {
+            log.warn(
+                "Compressed request body refused with HTTP {}, sending bodies uncompressed from now on",
+                code
+            );
+        }
+        return retryResponse;
+    }
+
+    // Compresses while OkHttp writes the request, the size is only known afterwards
+    private static final class GzipRequestBody extends RequestBody {
+
+        private final RequestBody body;
+
+        private GzipRequestBody(RequestBody body) {
+            this.body = body;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return body.contentType();
+        }
+
+        @Override
+        public long contentLength() {
+            return -1;
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            BufferedSink gzipSink = Okio.buffer(new GzipSink(sink));
+            body.writeTo(gzipSink);
+            gzipSink.close();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.elertan.remote.firebase;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+
+/**
+ * Request body that serializes its value while OkHttp writes the request, instead of building a
+ * JSON string (and for models, a JSON tree) up front.
+ * <p>
+ * Its size is not known before it is written, see {@link #buffered} for bodies that should be
+ * compressed.
+ */
+final class JsonRequestBody extends RequestBody {
+
+    static final MediaType JSON_MEDIA_TYPE = MediaType.parse("application/json; charset=utf-8");
+
+    private final Gson gson;
+    private final Object value;
+    private final boolean serializeNulls;
+
+    JsonRequestBody(Gson gson, Object value) {
+        this(gson, value, false);
+    }
+
+    /**
+     * @param serializeNulls write null values, which Firebase treats as deletes. Gson resets the
+     * writer to its own setting for every toJson call, so values are written through their type
+     * adapters instead.
+     */
+    JsonRequestBody(Gson gson, Object value, boolean serializeNulls) {
+        this.gson = gson;
+        this.value = value;
+        this.serializeNulls = serializeNulls;
+    }
+
+    /**
+     * Serializes the value right away, for large bodies that are worth compressing and so need
+     * their size up front.
+     */
+    static RequestBody buffered(Gson gson, Object value, boolean serializeNulls) {
+        Buffer buffer = new Buffer();
+        try {
+            new JsonRequestBody(gson, value, serializeNulls).writeTo(buffer);
+        } catch (IOException e) {
+            // A buffer in memory does not fail to write
+            throw new IllegalStateException(e);
+        }
+        return RequestBody.create(JSON_MEDIA_TYPE, buffer.readByteString());
+    }
+
+    @Override
+    public MediaType contentType() {
+        return JSON_MEDIA_TYPE;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        // Not closed, that would close the sink which belongs to OkHttp
+        JsonWriter jsonWriter = gson.newJsonWriter(new SinkWriter(sink));
+        if (serializeNulls) {
+            jsonWriter.setSerializeNulls(true);
+            writeValue(jsonWriter, value);
+        } else if (value == null) {
+            gson.toJson(JsonNull.INSTANCE, jsonWriter);
+        } else if (value instanceof JsonElement) {
+            gson.toJson((JsonElement) value, jsonWriter);
+        } else {
+            gson.toJson(value, value.getClass(), jsonWriter);
+        }
+        jsonWriter.flush();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void writeValue(JsonWriter jsonWriter, Object value) throws IOException {
+        if (value == null) {
+            jsonWriter.nullValue();
+        } else if (value instanceof Map) {
+            jsonWriter.beginObject();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                jsonWriter.name(String.valueOf(entry.getKey()));
+                writeValue(jsonWriter, entry.getValue());
+            }
+            jsonWriter.endObject();
+        } else {
+            TypeAdapter<Object> adapter = (TypeAdapter<Object>) gson.getAdapter(value.getClass());
+            adapter.write(jsonWriter, value);
+        }
+    }
+
+    // Encodes straight into the sink, an OutputStreamWriter allocates on every small write
+    private static final class SinkWriter extends Writer {
+
+        private final BufferedSink sink;
+
+        private SinkWriter(BufferedSink sink) {
+            this.sink = sink;
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            sink.writeUtf8CodePoint(c);
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            sink.writeUtf8(str, off, off + len);
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            sink.writeUtf8(new String(cbuf, off, len));
+        }
+
+        @Override
+        public void flush() {
+            // OkHttp flushes the sink once the body is written
+        }
+
+        @Override
+        public void close() {
+            // The sink belongs to OkHttp
+        }
+    }
+}
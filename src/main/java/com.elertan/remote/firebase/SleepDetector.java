@@ -0,0 +1,87 @@
+package com.elertan.remote.firebase;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import lombok.extern.slf4j.Slf4j;
+
+// Notices a sleep or clock jump as a tick that arrived late on either clock
+@Slf4j
+public class SleepDetector {
+
+    private static final long TICK_MILLIS = 2_000;
+    // Gaps below this are normal scheduling delays or small NTP corrections
+    private static final long JUMP_THRESHOLD_MILLIS = 10_000;
+
+    private final CopyOnWriteArrayList<Runnable> wakeListeners = new CopyOnWriteArrayList<>();
+    private Thread thread;
+    private long lastNanos;
+    private long lastMillis;
+
+    public void addWakeListener(Runnable listener) {
+        wakeListeners.add(listener);
+    }
+
+    public void removeWakeListener(Runnable listener) {
+        wakeListeners.remove(listener);
+    }
+
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread(this::loop, "bu-sleep-detector");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        if (thread == null) {
+            return;
+        }
+        thread.interrupt();
+        thread = null;
+    }
+
+    private void loop() {
+        reset(System.nanoTime(), System.currentTimeMillis());
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(TICK_MILLIS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            tick(System.nanoTime(), System.currentTimeMillis());
+        }
+    }
+
+    void reset(long nowNanos, long nowMillis) {
+        lastNanos = nowNanos;
+        lastMillis = nowMillis;
+    }
+
+    // Called every TICK_MILLIS with both clocks, true when the listeners were told about a wake
+    boolean tick(long nowNanos, long nowMillis) {
+        long monotonicElapsed = (nowNanos - lastNanos) / 1_000_000;
+        long wallElapsed = nowMillis - lastMillis;
+        reset(nowNanos, nowMillis);
+
+        boolean scheduleGap = monotonicElapsed - TICK_MILLIS > JUMP_THRESHOLD_MILLIS;
+        boolean clockJump = Math.abs(wallElapsed - monotonicElapsed) > JUMP_THRESHOLD_MILLIS;
+        if (!scheduleGap && !clockJump) {
+            return false;
+        }
+        log.info(
+            "Sleep or clock jump detected, a {} ms tick took {} ms monotonic and {} ms wall",
+            TICK_MILLIS,
+            monotonicElapsed,
+            wallElapsed
+        );
+        for (Runnable listener : wakeListeners) {
+            try {
+                listener.run();
+            } catch (Exception e) {
+                log.warn("wake listener error", e);
+            }
+        }
+        return true;
+    }
+}
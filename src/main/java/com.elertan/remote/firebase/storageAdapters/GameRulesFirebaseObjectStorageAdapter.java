@@ -1,6 +1,7 @@
 package com.elertan.remote.firebase.storageAdapters;
 
 import com.elertan.models.GameRules;
+import com.elertan.remote.WritePriority;
 import com.elertan.remote.firebase.FirebaseObjectStorageAdapterBase;
 import com.elertan.remote.firebase.FirebaseRealtimeDatabase;
 import com.google.gson.Gson;
@@ -15,7 +16,8 @@ public class GameRulesFirebaseObjectStorageAdapter extends
             PATH,
             db,
             gson::toJsonTree,
-            jsonElement -> gson.fromJson(jsonElement, GameRules.class)
+            jsonElement -> gson.fromJson(jsonElement, GameRules.class),
+            WritePriority.Critical
         );
     }
 }
@@ -1,10 +1,12 @@
 package com.elertan.remote.firebase.storageAdapters;
 
+import com.elertan.gson.GroundItemOwnedByDataRecordAdapter;
 import com.elertan.models.GroundItemOwnedByData;
 import com.elertan.models.GroundItemOwnedByKey;
+import com.elertan.remote.WritePriority;
 import com.elertan.remote.firebase.FirebaseKeyValueStorageAdapterBase;
 import com.elertan.remote.firebase.FirebaseRealtimeDatabase;
-import com.google.gson.Gson;
+import com.elertan.remote.firebase.FirebaseWriteMode;
 import java.util.function.Function;
 import lombok.extern.slf4j.Slf4j;
 
@@ -17,15 +19,18 @@ public class GroundItemOwnedByKeyValueStorageAdapter
     private final static Function<String, GroundItemOwnedByKey> stringToKey = GroundItemOwnedByKey::fromKey;
     private final static Function<GroundItemOwnedByKey, String> keyToString = GroundItemOwnedByKey::toKey;
 
-    public GroundItemOwnedByKeyValueStorageAdapter(FirebaseRealtimeDatabase db, Gson gson) {
+    // Older records are not rewritten, they are gone once the item despawned
+    public GroundItemOwnedByKeyValueStorageAdapter(FirebaseRealtimeDatabase db,
+        boolean compactRecords) {
+        // Ownership changes on every drop and pickup, nobody needs the written data echoed back
         super(
-            BASE_PATH, db, gson, stringToKey, keyToString, (jsonElement) -> {
-                if (jsonElement == null || jsonElement.isJsonNull()) {
-                    return null;
-                }
-
-                return gson.fromJson(jsonElement, GroundItemOwnedByData.class);
-            }
+            BASE_PATH,
+            db,
+            stringToKey,
+            keyToString,
+            new GroundItemOwnedByDataRecordAdapter(compactRecords),
+            FirebaseWriteMode.Silent,
+            WritePriority.Background
         );
     }
 }
@@ -2,6 +2,7 @@ package com.elertan.remote.firebase.storageAdapters;
 
 import com.elertan.event.BUEvent;
 import com.elertan.event.BUEventGson;
+import com.elertan.remote.WritePriority;
 import com.elertan.remote.firebase.FirebaseObjectStorageAdapterBase;
 import com.elertan.remote.firebase.FirebaseRealtimeDatabase;
 import com.google.gson.Gson;
@@ -17,7 +18,8 @@ public class LastEventFirebaseObjectStorageAdapter extends
             PATH,
             db,
             buEvent -> BUEventGson.serialize(gson, buEvent),
-            jsonElement -> BUEventGson.deserialize(gson, jsonElement)
+            jsonElement -> BUEventGson.deserialize(gson, jsonElement),
+            WritePriority.Background
         );
     }
 }
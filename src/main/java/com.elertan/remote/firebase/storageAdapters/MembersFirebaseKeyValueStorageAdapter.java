@@ -1,9 +1,11 @@
 package com.elertan.remote.firebase.storageAdapters;
 
+import com.elertan.gson.MemberRecordAdapter;
 import com.elertan.models.Member;
 import com.elertan.remote.firebase.FirebaseKeyValueStorageAdapterBase;
+import com.elertan.remote.WritePriority;
 import com.elertan.remote.firebase.FirebaseRealtimeDatabase;
-import com.google.gson.Gson;
+import com.elertan.remote.firebase.FirebaseWriteMode;
 import java.util.function.Function;
 
 
@@ -14,15 +16,21 @@ public class MembersFirebaseKeyValueStorageAdapter extends
     private final static Function<String, Long> stringToKey = Long::parseLong;
     private final static Function<Long, String> keyToString = Object::toString;
 
-    public MembersFirebaseKeyValueStorageAdapter(FirebaseRealtimeDatabase db, Gson gson) {
+    public MembersFirebaseKeyValueStorageAdapter(FirebaseRealtimeDatabase db,
+        boolean compactRecords) {
         super(
-            BASE_PATH, db, gson, stringToKey, keyToString, (jsonElement) -> {
-                if (jsonElement == null || jsonElement.isJsonNull()) {
-                    return null;
-                }
-
-                return gson.fromJson(jsonElement, Member.class);
-            }
+            BASE_PATH,
+            db,
+            stringToKey,
+            keyToString,
+            new MemberRecordAdapter(compactRecords),
+            FirebaseWriteMode.Echo,
+            WritePriority.Critical
         );
     }
+
+    @Override
+    protected boolean rewritesOutdatedRecords() {
+        return true;
+    }
 }
@@ -0,0 +1,79 @@
+package com.elertan.remote.firebase.storageAdapters;
+
+import com.elertan.remote.BucketDigestStoragePort;
+import com.elertan.remote.KeyedWriteScheduler;
+import com.elertan.remote.WritePriority;
+import com.elertan.remote.firebase.FirebaseRealtimeDatabase;
+import com.elertan.remote.firebase.FirebaseWriteMode;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Digests of the unlocked items at /UnlockedItemsDigest/b{bucket}. Not streamed, they are only
+ * read now and then to check the unlocked items for drift.
+ */
+@Slf4j
+public class UnlockedItemsDigestFirebaseStorageAdapter implements BucketDigestStoragePort {
+
+    public final static String BASE_PATH = "/UnlockedItemsDigest";
+    // Not a plain number, Firebase would return the digests as an array
+    private final static String BUCKET_PREFIX = "b";
+
+    private final FirebaseRealtimeDatabase db;
+    private final KeyedWriteScheduler<Integer> writeScheduler = new KeyedWriteScheduler<>();
+
+    public UnlockedItemsDigestFirebaseStorageAdapter(FirebaseRealtimeDatabase db) {
+        this.db = db;
+    }
+
+    @Override
+    public void close() throws Exception {
+        log.debug(
+            "UnlockedItemsDigestFirebaseStorageAdapter: {} digests written, {} superseded before sending",
+            writeScheduler.getSentCount(),
+            writeScheduler.getSupersededCount()
+        );
+    }
+
+    @Override
+    public CompletableFuture<Map<Integer, String>> readAll() {
+        return db.get(BASE_PATH).thenApply(UnlockedItemsDigestFirebaseStorageAdapter::parseDigests);
+    }
+
+    @Override
+    public CompletableFuture<Void> update(int bucket, String digest) {
+        String path = BASE_PATH + "/" + BUCKET_PREFIX + bucket;
+        // Only the latest digest of a bucket matters, older ones still waiting are dropped
+        return writeScheduler.submit(bucket, () -> db.writeDurably(
+            Collections.singletonMap(path, new JsonPrimitive(digest)),
+            WritePriority.Background,
+            () -> db.put(path, digest, FirebaseWriteMode.Silent)
+        ));
+    }
+
+    private static Map<Integer, String> parseDigests(JsonElement jsonElement) {
+        if (jsonElement == null || !jsonElement.isJsonObject()) {
+            return Collections.emptyMap();
+        }
+        Map<Integer, String> digests = new HashMap<>();
+        for (Map.Entry<String, JsonElement> entry : jsonElement.getAsJsonObject().entrySet()) {
+            String key = entry.getKey();
+            JsonElement value = entry.getValue();
+            if (!key.startsWith(BUCKET_PREFIX) || !value.isJsonPrimitive()) {
+                continue;
+            }
+            try {
+                int bucket = Integer.parseInt(key.substring(BUCKET_PREFIX.length()));
+                digests.put(bucket, value.getAsString());
+            } catch (NumberFormatException e) {
+                log.warn("Ignoring unlocked items digest with key {}", key);
+            }
+        }
+        return Collections.unmodifiableMap(digests);
+    }
+}
@@ -1,9 +1,30 @@
 package com.elertan.remote.firebase.storageAdapters;
 
+import com.elertan.gson.UnlockedItemRecordAdapter;
+import com.elertan.models.ISOOffsetDateTime;
 import com.elertan.models.UnlockedItem;
+import com.elertan.remote.ShardedKeyValueStoragePort;
 import com.elertan.remote.firebase.FirebaseKeyValueStorageAdapterBase;
+import com.elertan.remote.WritePriority;
 import com.elertan.remote.firebase.FirebaseRealtimeDatabase;
-import com.google.gson.Gson;
+import com.elertan.remote.firebase.FirebaseWriteMode;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Function;
 import lombok.extern.slf4j.Slf4j;
 
@@ -14,16 +35,302 @@ public class UnlockedItemsFirebaseKeyValueStorageAdapter
     private final static String BASE_PATH = "/UnlockedItems";
     private final static Function<String, Integer> stringToKey = Integer::parseInt;
     private final static Function<Integer, String> keyToString = Object::toString;
+    private final static Duration RESUME_MARGIN = Duration.ofHours(24);
+    private final static int BOOTSTRAP_PAGE_SIZE = 500;
 
-    public UnlockedItemsFirebaseKeyValueStorageAdapter(FirebaseRealtimeDatabase db, Gson gson) {
+    // Sharded layout, /UnlockedItemsSharded/b{n}/{id}. A root of its own, so clients that do not
+    // shard never read a bucket as an item.
+    public final static String SHARDED_BASE_PATH = "/UnlockedItemsSharded";
+    // When items were last copied into the shards, and back out of them. The shards never stream
+    // these.
+    private final static String COPIED_TO_SHARDS_AT_KEY = "migratedAt";
+    private final static String COPIED_FROM_SHARDS_AT_KEY = "copiedBackAt";
+    private final static int ITEM_IDS_PER_SHARD = 4096;
+    // The last shard takes every item ID above the others
+    public final static int SHARD_COUNT = 8;
+
+    private final CompletableFuture<Void> beforeFirstLoad;
+
+    // Items unlocked in the sharded layout are copied back before the items load
+    public UnlockedItemsFirebaseKeyValueStorageAdapter(FirebaseRealtimeDatabase db,
+        boolean compactRecords) {
+        this(BASE_PATH, db, compactRecords, copyLayout(db, false));
+    }
+
+    private UnlockedItemsFirebaseKeyValueStorageAdapter(String basePath,
+        FirebaseRealtimeDatabase db, boolean compactRecords,
+        CompletableFuture<Void> beforeFirstLoad) {
         super(
-            BASE_PATH, db, gson, stringToKey, keyToString, (jsonElement) -> {
-                if (jsonElement == null || jsonElement.isJsonNull()) {
-                    return null;
+            basePath,
+            db,
+            stringToKey,
+            keyToString,
+            new UnlockedItemRecordAdapter(compactRecords),
+            FirebaseWriteMode.Echo,
+            WritePriority.Critical
+        );
+        this.beforeFirstLoad = beforeFirstLoad;
+    }
+
+    /**
+     * Unlocked items spread over shards by item ID range, each loaded and streamed on its own.
+     * Items of the unsharded layout are copied over before the shards load.
+     */
+    public static ShardedKeyValueStoragePort<Integer, UnlockedItem> createSharded(
+        FirebaseRealtimeDatabase db, boolean compactRecords) {
+        CompletableFuture<Void> copy = copyLayout(db, true);
+        List<String> shardNames = new ArrayList<>(SHARD_COUNT);
+        for (int shard = 0; shard < SHARD_COUNT; shard++) {
+            shardNames.add(getShardName(shard));
+        }
+        return new ShardedKeyValueStoragePort<>(
+            shardNames,
+            itemId -> getShardName(getShard(itemId)),
+            shardName -> new UnlockedItemsFirebaseKeyValueStorageAdapter(
+                SHARDED_BASE_PATH + "/" + shardName,
+                db,
+                compactRecords,
+                copy
+            )
+        );
+    }
+
+    public static int getShard(int itemId) {
+        return Math.min(Math.max(itemId, 0) / ITEM_IDS_PER_SHARD, SHARD_COUNT - 1);
+    }
+
+    // Not a plain number, Firebase would return the shards as an array
+    public static String getShardName(int shard) {
+        return "b" + shard;
+    }
+
+    // Path of an item write in the sharded layout, the path itself when it is not one
+    public static String toShardedPath(String path) {
+        String[] parts = path.split("/", 4);
+        if (parts.length < 3 || !("/" + parts[1]).equals(BASE_PATH)) {
+            return path;
+        }
+        Integer itemId = parseItemId(parts[2]);
+        if (itemId == null) {
+            return path;
+        }
+        return SHARDED_BASE_PATH + "/" + getShardName(getShard(itemId)) + "/" + parts[2]
+            + (parts.length > 3 ? "/" + parts[3] : "");
+    }
+
+    // Path of an item write in the unsharded layout, the path itself when it is not one
+    public static String toUnshardedPath(String path) {
+        String[] parts = path.split("/", 5);
+        if (parts.length < 4 || !("/" + parts[1]).equals(SHARDED_BASE_PATH)
+            || parseItemId(parts[3]) == null) {
+            return path;
+        }
+        return BASE_PATH + "/" + parts[3] + (parts.length > 4 ? "/" + parts[4] : "");
+    }
+
+    private static Integer parseItemId(String strItemId) {
+        try {
+            return stringToKey.apply(strItemId);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // Copies the items of the other layout that this one does not have, nothing is ever deleted
+    // so the group can switch back. After the first copy only items unlocked since the last one
+    // are read, which picks up unlocks of members that did not switch yet.
+    private static CompletableFuture<Void> copyLayout(FirebaseRealtimeDatabase db,
+        boolean toShards) {
+        String markerPath = SHARDED_BASE_PATH + "/"
+            + (toShards ? COPIED_TO_SHARDS_AT_KEY : COPIED_FROM_SHARDS_AT_KEY);
+        // Taken before reading, so the next copy covers items unlocked during this one
+        Instant copyStartedAt = Instant.now();
+        CompletableFuture<JsonElement> copiedToShardsAt =
+            db.get(SHARDED_BASE_PATH + "/" + COPIED_TO_SHARDS_AT_KEY);
+        CompletableFuture<JsonElement> lastCopiedAt = toShards
+            ? copiedToShardsAt
+            : db.get(markerPath);
+        return CompletableFuture.allOf(copiedToShardsAt, lastCopiedAt)
+            .thenCompose(__ -> {
+                if (!toShards && !isSet(copiedToShardsAt.join())) {
+                    // The shards were never used, there is nothing to copy back
+                    return CompletableFuture.<Void>completedFuture(null);
+                }
+                JsonElement marker = lastCopiedAt.join();
+                Long sinceMillis = isSet(marker) ? parseEpochMillis(marker.getAsString()) : null;
+                List<String> sourcePaths = toShards
+                    ? Collections.singletonList(BASE_PATH)
+                    : getShardPaths();
+                return readItems(db, sourcePaths, sinceMillis)
+                    .thenCompose(items -> copyMissingItems(db, items, toShards))
+                    .thenCompose(copied -> db.put(
+                        markerPath,
+                        new JsonPrimitive(copyStartedAt.toString()),
+                        FirebaseWriteMode.Silent
+                    ).thenRun(() -> {
+                        if (copied > 0) {
+                            log.info(
+                                "Copied {} unlocked items {} the sharded layout",
+                                copied,
+                                toShards ? "to" : "from"
+                            );
+                        }
+                    }));
+            })
+            .whenComplete((__, throwable) -> {
+                if (throwable != null) {
+                    // Tried again on the next login, the items load what they have meanwhile
+                    log.error(
+                        "Failed to copy unlocked items {} the sharded layout",
+                        toShards ? "to" : "from",
+                        throwable
+                    );
+                }
+            });
+    }
+
+    private static boolean isSet(JsonElement marker) {
+        return marker != null && marker.isJsonPrimitive();
+    }
+
+    private static Long parseEpochMillis(String instant) {
+        try {
+            // The margin covers clocks that are off
+            return Instant.parse(instant).minus(RESUME_MARGIN).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    private static List<String> getShardPaths() {
+        List<String> shardPaths = new ArrayList<>(SHARD_COUNT);
+        for (int shard = 0; shard < SHARD_COUNT; shard++) {
+            shardPaths.add(SHARDED_BASE_PATH + "/" + getShardName(shard));
+        }
+        return shardPaths;
+    }
+
+    // Items by item ID, only those unlocked since sinceMillis unless it is null
+    private static CompletableFuture<Map<String, JsonElement>> readItems(
+        FirebaseRealtimeDatabase db, List<String> paths, Long sinceMillis) {
+        List<CompletableFuture<JsonElement>> reads = new ArrayList<>(paths.size());
+        for (String path : paths) {
+            if (sinceMillis == null) {
+                reads.add(db.get(path));
+                continue;
+            }
+            // Without an .indexOn rule for the query every item is read instead
+            reads.add(db.get(path + "?" + acquiredSince(sinceMillis)).handle(
+                (jsonElement, throwable) -> throwable == null
+                    ? CompletableFuture.completedFuture(jsonElement)
+                    : db.get(path)
+            ).thenCompose(read -> read));
+        }
+        return CompletableFuture.allOf(reads.toArray(new CompletableFuture[0])).thenApply(__ -> {
+            Map<String, JsonElement> items = new HashMap<>();
+            for (CompletableFuture<JsonElement> read : reads) {
+                JsonElement jsonElement = read.join();
+                if (jsonElement == null || !jsonElement.isJsonObject()) {
+                    continue;
+                }
+                for (Map.Entry<String, JsonElement> entry : jsonElement.getAsJsonObject()
+                    .entrySet()) {
+                    if (parseItemId(entry.getKey()) != null) {
+                        items.put(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+            return items;
+        });
+    }
+
+    // Only the keys of the other layout are read, an item it has already is newer or the same
+    private static CompletableFuture<Integer> copyMissingItems(FirebaseRealtimeDatabase db,
+        Map<String, JsonElement> items, boolean toShards) {
+        if (items.isEmpty()) {
+            return CompletableFuture.<Integer>completedFuture(0);
+        }
+        Set<String> targetPaths = new HashSet<>();
+        for (String strItemId : items.keySet()) {
+            targetPaths.add(toShards
+                ? SHARDED_BASE_PATH + "/" + getShardName(getShard(parseItemId(strItemId)))
+                : BASE_PATH);
+        }
+        Map<String, CompletableFuture<JsonElement>> keyReads = new HashMap<>();
+        for (String targetPath : targetPaths) {
+            keyReads.put(targetPath, db.get(targetPath + "?shallow=true"));
+        }
+        return CompletableFuture.allOf(keyReads.values().toArray(new CompletableFuture[0]))
+            .thenCompose(__ -> {
+                Map<String, JsonElement> patch = new HashMap<>();
+                for (Map.Entry<String, JsonElement> item : items.entrySet()) {
+                    String itemPath = toShards
+                        ? toShardedPath(BASE_PATH + "/" + item.getKey())
+                        : BASE_PATH + "/" + item.getKey();
+                    JsonElement keys = keyReads.get(
+                        itemPath.substring(0, itemPath.lastIndexOf('/'))).join();
+                    if (keys != null && keys.isJsonObject()
+                        && keys.getAsJsonObject().has(item.getKey())) {
+                        continue;
+                    }
+                    patch.put(itemPath.substring(1), item.getValue());
                 }
+                if (patch.isEmpty()) {
+                    return CompletableFuture.<Integer>completedFuture(0);
+                }
+                // One multi-location write, only adds items
+                return db.patch("/", patch, FirebaseWriteMode.Silent)
+                    .thenApply(___ -> patch.size());
+            });
+    }
+
+    private static String acquiredSince(long startAtMillis) {
+        try {
+            return "orderBy=" + URLEncoder.encode(
+                "\"" + UnlockedItemRecordAdapter.ACQUIRED_AT_ORDER_KEY + "\"",
+                "UTF-8"
+            ) + "&startAt=" + startAtMillis;
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    protected CompletableFuture<Void> beforeFirstLoad() {
+        return beforeFirstLoad;
+    }
 
-                return gson.fromJson(jsonElement, UnlockedItem.class);
+    @Override
+    protected boolean rewritesOutdatedRecords() {
+        return true;
+    }
+
+    @Override
+    protected int bootstrapPageSize() {
+        // Groups unlock thousands of items over time, the resume query then only streams the
+        // recent ones
+        return BOOTSTRAP_PAGE_SIZE;
+    }
+
+    @Override
+    protected String resumeQuery(Collection<UnlockedItem> unlockedItems) {
+        OffsetDateTime newestAcquiredAt = null;
+        for (UnlockedItem unlockedItem : unlockedItems) {
+            ISOOffsetDateTime acquiredAt = unlockedItem.getAcquiredAt();
+            if (acquiredAt == null) {
+                continue;
             }
-        );
+            if (newestAcquiredAt == null || acquiredAt.getValue().isAfter(newestAcquiredAt)) {
+                newestAcquiredAt = acquiredAt.getValue();
+            }
+        }
+        if (newestAcquiredAt == null) {
+            return null;
+        }
+        // Both record versions store acquiredAt as epoch milliseconds under the same key. Items
+        // written before it was there come with the paged load, deletes and older edits with the
+        // bucket digest drift check. The margin covers clocks that are off and unlocks replayed
+        // late from an outbox.
+        return acquiredSince(newestAcquiredAt.minus(RESUME_MARGIN).toInstant().toEpochMilli());
     }
 }
@@ -0,0 +1,132 @@
+package com.elertan.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.elertan.gson.UnlockedItemRecordAdapter;
+import com.elertan.models.ISOOffsetDateTime;
+import com.elertan.models.UnlockedItem;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+public class UnlockedItemsDigestTest {
+
+    @Test
+    public void bucketsCoverEveryItemId() {
+        assertEquals(0, UnlockedItemsDigest.getBucket(0));
+        assertEquals(0, UnlockedItemsDigest.getBucket(511));
+        assertEquals(1, UnlockedItemsDigest.getBucket(512));
+        assertEquals(0, UnlockedItemsDigest.getBucket(-1));
+        int lastBucket = UnlockedItemsDigest.BUCKET_COUNT - 1;
+        assertEquals(lastBucket, UnlockedItemsDigest.getBucket(Integer.MAX_VALUE));
+
+        for (int bucket = 0; bucket < lastBucket; bucket++) {
+            int firstItemId = UnlockedItemsDigest.getFirstItemId(bucket);
+            int lastItemId = UnlockedItemsDigest.getLastItemId(bucket);
+            assertEquals(bucket, UnlockedItemsDigest.getBucket(firstItemId));
+            assertEquals(bucket, UnlockedItemsDigest.getBucket(lastItemId));
+            assertEquals(lastItemId + 1, UnlockedItemsDigest.getFirstItemId(bucket + 1));
+        }
+        assertNull(UnlockedItemsDigest.getLastItemId(lastBucket));
+    }
+
+    @Test
+    public void digestDoesNotDependOnOrder() {
+        List<UnlockedItem> unlockedItems = Arrays.asList(
+            unlockedItem(1, "Bronze sword"),
+            unlockedItem(2, "Iron sword"),
+            unlockedItem(3, "Steel sword")
+        );
+        List<UnlockedItem> reversed = new ArrayList<>(unlockedItems);
+        Collections.reverse(reversed);
+
+        assertEquals(
+            UnlockedItemsDigest.digest(unlockedItems),
+            UnlockedItemsDigest.digest(reversed)
+        );
+    }
+
+    @Test
+    public void digestChangesWithAnyItem() {
+        String digest = UnlockedItemsDigest.digest(Arrays.asList(
+            unlockedItem(1, "Bronze sword"),
+            unlockedItem(2, "Iron sword")
+        ));
+
+        assertNotEquals(digest, UnlockedItemsDigest.digest(Arrays.asList(
+            unlockedItem(1, "Bronze sword")
+        )));
+        assertNotEquals(digest, UnlockedItemsDigest.digest(Arrays.asList(
+            unlockedItem(1, "Bronze sword"),
+            unlockedItem(2, "Iron sword (broken)")
+        )));
+        assertEquals(16, digest.length());
+    }
+
+    @Test
+    public void digestDoesNotDependOnTheRecordFormat() {
+        UnlockedItem unlockedItem = unlockedItem(4151, "Abyssal whip");
+        UnlockedItemRecordAdapter fullAdapter = new UnlockedItemRecordAdapter(false);
+        UnlockedItemRecordAdapter compactAdapter = new UnlockedItemRecordAdapter(true);
+        UnlockedItem readFromFull = fullAdapter.fromJsonTree(fullAdapter.toJsonTree(unlockedItem));
+        UnlockedItem readFromCompact = compactAdapter.fromJsonTree(
+            compactAdapter.toJsonTree(unlockedItem));
+
+        assertTrue(UnlockedItemsDigest.isSameItem(readFromFull, readFromCompact));
+        assertEquals(
+            UnlockedItemsDigest.digest(Collections.singletonList(readFromFull)),
+            UnlockedItemsDigest.digest(Collections.singletonList(readFromCompact))
+        );
+        assertFalse(UnlockedItemsDigest.isSameItem(
+            unlockedItem,
+            unlockedItem(4151, "Abyssal tentacle")
+        ));
+    }
+
+    @Test
+    public void digestAllHasEveryBucket() {
+        Map<Integer, UnlockedItem> unlockedItemsMap = new HashMap<>();
+        unlockedItemsMap.put(1, unlockedItem(1, "Bronze sword"));
+        unlockedItemsMap.put(4151, unlockedItem(4151, "Abyssal whip"));
+
+        Map<Integer, String> digests = UnlockedItemsDigest.digestAll(unlockedItemsMap);
+
+        assertEquals(UnlockedItemsDigest.BUCKET_COUNT, digests.size());
+        assertEquals(
+            UnlockedItemsDigest.digest(Collections.singletonList(unlockedItemsMap.get(1))),
+            digests.get(0)
+        );
+        int whipBucket = UnlockedItemsDigest.getBucket(4151);
+        assertEquals(
+            UnlockedItemsDigest.digest(Collections.singletonList(unlockedItemsMap.get(4151))),
+            digests.get(whipBucket)
+        );
+        for (Map.Entry<Integer, String> entry : digests.entrySet()) {
+            if (entry.getKey() != 0 && entry.getKey() != whipBucket) {
+                assertEquals(UnlockedItemsDigest.EMPTY_DIGEST, entry.getValue());
+            }
+        }
+        assertEquals(UnlockedItemsDigest.EMPTY_DIGEST,
+            UnlockedItemsDigest.digest(Collections.emptyList()));
+    }
+
+    private static UnlockedItem unlockedItem(int id, String name) {
+        return new UnlockedItem(
+            id,
+            name,
+            1234567890123L,
+            new ISOOffsetDateTime(OffsetDateTime.of(2025, 1, 1, 12, 0, 0, 0, ZoneOffset.ofHours(2))),
+            null
+        );
+    }
+}
@@ -0,0 +1,154 @@
+package com.elertan.gson;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.elertan.models.ISOOffsetDateTime;
+import com.elertan.models.UnlockedItem;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class UnlockedItemRecordAdapterTest {
+
+    private static final int ITEM_COUNT = 5000;
+    private static final int ITERATIONS = 20;
+
+    private final UnlockedItemRecordAdapter fullAdapter = new UnlockedItemRecordAdapter(false);
+    private final UnlockedItemRecordAdapter compactAdapter = new UnlockedItemRecordAdapter(true);
+
+    @Test
+    public void readsBothFormats() {
+        UnlockedItem unlockedItem = unlockedItem(4151);
+
+        JsonElement full = fullAdapter.toJsonTree(unlockedItem);
+        JsonElement compact = compactAdapter.toJsonTree(unlockedItem);
+
+        assertFalse(RecordAdapter.isCompact(full));
+        assertTrue(RecordAdapter.isCompact(compact));
+        assertEquals(
+            compactAdapter.toCompactTree(unlockedItem),
+            compactAdapter.toCompactTree(fullAdapter.fromJsonTree(compact))
+        );
+        assertEquals(
+            compactAdapter.toCompactTree(unlockedItem),
+            compactAdapter.toCompactTree(compactAdapter.fromJsonTree(full))
+        );
+    }
+
+    @Test
+    public void bothFormatsWriteTheOrderKey() {
+        UnlockedItem unlockedItem = unlockedItem(4151);
+        long acquiredAtMillis = unlockedItem.getAcquiredAt().getValue().toInstant().toEpochMilli();
+
+        for (UnlockedItemRecordAdapter adapter : new UnlockedItemRecordAdapter[]{
+            fullAdapter,
+            compactAdapter
+        }) {
+            JsonObject record = adapter.toJsonTree(unlockedItem).getAsJsonObject();
+            assertEquals(
+                acquiredAtMillis,
+                record.get(UnlockedItemRecordAdapter.ACQUIRED_AT_ORDER_KEY).getAsLong()
+            );
+        }
+    }
+
+    @Test
+    public void keepsTheOffsetOfVersion1() {
+        // Firebase returns keys sorted, "t" comes after "acquiredAt"
+        JsonElement record = new JsonParser().parse(
+            "{\"acquiredAt\":\"2025-01-01T12:00:00+02:00\",\"id\":1,\"t\":1735725600000}");
+
+        UnlockedItem unlockedItem = fullAdapter.fromJsonTree(record);
+
+        assertEquals(ZoneOffset.ofHours(2), unlockedItem.getAcquiredAt().getValue().getOffset());
+    }
+
+    // Size and parse time of the unlocked items of a large group in both formats. Run with the
+    // tests so a regression shows up in the numbers.
+    @Test
+    public void compactRecordsAreSmallerAndFasterToRead() throws IOException {
+        List<UnlockedItem> unlockedItems = new ArrayList<>(ITEM_COUNT);
+        for (int i = 0; i < ITEM_COUNT; i++) {
+            unlockedItems.add(unlockedItem(i));
+        }
+        String full = toJson(fullAdapter, unlockedItems);
+        String compact = toJson(compactAdapter, unlockedItems);
+
+        // Warm up, so class loading and the JIT are not measured
+        readAll(fullAdapter, full);
+        readAll(compactAdapter, compact);
+        long fullNanos = bestReadNanos(fullAdapter, full);
+        long compactNanos = bestReadNanos(compactAdapter, compact);
+
+        int fullBytes = full.getBytes(StandardCharsets.UTF_8).length;
+        int compactBytes = compact.getBytes(StandardCharsets.UTF_8).length;
+        System.out.printf(
+            "%d unlocked items: version 1 %d bytes read in %d us, version 2 %d bytes read in %d us%n",
+            ITEM_COUNT,
+            fullBytes,
+            fullNanos / 1_000,
+            compactBytes,
+            compactNanos / 1_000
+        );
+
+        assertEquals(ITEM_COUNT, readAll(compactAdapter, compact).size());
+        assertTrue("version 2 is " + compactBytes + " bytes", compactBytes * 10 < fullBytes * 6);
+        assertTrue("version 2 read in " + compactNanos + " ns", compactNanos < fullNanos);
+    }
+
+    private static String toJson(UnlockedItemRecordAdapter adapter,
+        List<UnlockedItem> unlockedItems) {
+        JsonObject values = new JsonObject();
+        for (UnlockedItem unlockedItem : unlockedItems) {
+            values.add(String.valueOf(unlockedItem.getId()), adapter.toJsonTree(unlockedItem));
+        }
+        return values.toString();
+    }
+
+    private static long bestReadNanos(UnlockedItemRecordAdapter adapter, String json)
+        throws IOException {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < ITERATIONS; i++) {
+            long startNanos = System.nanoTime();
+            readAll(adapter, json);
+            best = Math.min(best, System.nanoTime() - startNanos);
+        }
+        return best;
+    }
+
+    private static List<UnlockedItem> readAll(UnlockedItemRecordAdapter adapter, String json)
+        throws IOException {
+        List<UnlockedItem> unlockedItems = new ArrayList<>();
+        try (JsonReader reader = new JsonReader(new StringReader(json))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                reader.nextName();
+                unlockedItems.add(adapter.read(reader));
+            }
+            reader.endObject();
+        }
+        return unlockedItems;
+    }
+
+    private static UnlockedItem unlockedItem(int id) {
+        return new UnlockedItem(
+            id,
+            "Item " + id,
+            1234567890123L + id,
+            new ISOOffsetDateTime(
+                OffsetDateTime.of(2025, 1, 1, 12, 0, 0, 0, ZoneOffset.UTC).plusMinutes(id)),
+            id % 3 == 0 ? null : id * 7
+        );
+    }
+}
@@ -0,0 +1,65 @@
+package com.elertan.remote;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+
+public class HedgedReadsTest {
+
+    private final HedgedReads hedgedReads = new HedgedReads(0.95, 1);
+    private final ScheduledExecutorService remote = Executors.newSingleThreadScheduledExecutor();
+
+    @After
+    public void tearDown() {
+        hedgedReads.close();
+        remote.shutdownNow();
+    }
+
+    @Test
+    public void slowReadIsHedgedAfterTheLatencyOfItsOwnKind() throws Exception {
+        for (int i = 0; i < 32; i++) {
+            hedgedReads.read("/Members", () -> CompletableFuture.completedFuture("fast")).get();
+        }
+
+        hedgedReads.read("/Members", () -> answerAfter(300)).get(5, TimeUnit.SECONDS);
+
+        assertEquals(1, hedgedReads.getHedgeCount());
+    }
+
+    @Test
+    public void latencyOfOtherKindsDoesNotHedgeARead() throws Exception {
+        for (int i = 0; i < 32; i++) {
+            hedgedReads.read("/Members", () -> CompletableFuture.completedFuture("fast")).get();
+        }
+
+        // A large read is slow by nature, the small reads say nothing about it
+        hedgedReads.read("/UnlockedItems", () -> answerAfter(300)).get(5, TimeUnit.SECONDS);
+
+        assertEquals(0, hedgedReads.getHedgeCount());
+    }
+
+    @Test
+    public void firstReadOfAKindIsHedgedAfterTheInitialDelay() throws Exception {
+        HedgedReads coldHedgedReads = new HedgedReads(0.95, 1, 100);
+        try {
+            // No latencies yet, as for the reads at startup
+            coldHedgedReads.read("/UnlockedItems", () -> answerAfter(300))
+                .get(5, TimeUnit.SECONDS);
+
+            assertEquals(1, coldHedgedReads.getHedgeCount());
+        } finally {
+            coldHedgedReads.close();
+        }
+    }
+
+    private CompletableFuture<String> answerAfter(long millis) {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        remote.schedule(() -> future.complete("slow"), millis, TimeUnit.MILLISECONDS);
+        return future;
+    }
+}
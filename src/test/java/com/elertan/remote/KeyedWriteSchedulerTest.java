@@ -0,0 +1,92 @@
+package com.elertan.remote;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+import org.junit.Test;
+
+public class KeyedWriteSchedulerTest {
+
+    private final KeyedWriteScheduler<String> scheduler = new KeyedWriteScheduler<>();
+    // Writes sent so far, completed by the test in any order
+    private final List<String> sent = new ArrayList<>();
+    private final List<CompletableFuture<Void>> onTheWire = new ArrayList<>();
+
+    @Test
+    public void writesOfDifferentKeysAreSentTogether() {
+        scheduler.submit("a", write("a1"));
+        scheduler.submit("b", write("b1"));
+
+        assertEquals(Arrays.asList("a1", "b1"), sent);
+    }
+
+    @Test
+    public void waitingWriteOfAKeyIsSuperseded() {
+        scheduler.submit("a", write("a1"));
+        CompletableFuture<Void> superseded = scheduler.submit("a", write("a2"));
+        CompletableFuture<Void> latest = scheduler.submit("a", write("a3"));
+
+        complete(0);
+        assertEquals(Arrays.asList("a1", "a3"), sent);
+        complete(1);
+        assertTrue(latest.isDone());
+        assertTrue(superseded.isDone());
+        assertEquals(1, scheduler.getSupersededCount());
+    }
+
+    @Test
+    public void batchWaitsForTheWritesOfItsKeys() {
+        scheduler.submit("a", write("a1"));
+        scheduler.submitMany(Arrays.asList("a", "b"), write("ab"));
+        scheduler.submit("c", write("c1"));
+
+        assertEquals(Arrays.asList("a1", "c1"), sent);
+        complete(0);
+        assertEquals(Arrays.asList("a1", "c1", "ab"), sent);
+    }
+
+    @Test
+    public void writeAfterABatchLandsAfterIt() {
+        CompletableFuture<Void> batch = scheduler.submitMany(Arrays.asList("a", "b"), write("ab"));
+        scheduler.submit("b", write("b1"));
+
+        // Not superseded, the batch writes other keys as well
+        assertEquals(Arrays.asList("ab"), sent);
+        complete(0);
+        assertTrue(batch.isDone());
+        assertEquals(Arrays.asList("ab", "b1"), sent);
+        assertEquals(0, scheduler.getSupersededCount());
+    }
+
+    @Test
+    public void writeOfAllKeysIsOrderedAgainstEveryKey() {
+        scheduler.submit("a", write("a1"));
+        scheduler.submitToAllKeys(write("all"));
+        // A key without writes so far still waits for the write of all keys
+        scheduler.submit("b", write("b1"));
+
+        assertEquals(Arrays.asList("a1"), sent);
+        complete(0);
+        assertEquals(Arrays.asList("a1", "all"), sent);
+        complete(1);
+        assertEquals(Arrays.asList("a1", "all", "b1"), sent);
+    }
+
+    private Supplier<CompletableFuture<Void>> write(String name) {
+        return () -> {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            sent.add(name);
+            onTheWire.add(future);
+            return future;
+        };
+    }
+
+    private void complete(int index) {
+        onTheWire.get(index).complete(null);
+    }
+}
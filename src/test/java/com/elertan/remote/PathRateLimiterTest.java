@@ -0,0 +1,204 @@
+package com.elertan.remote;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.After;
+import org.junit.Test;
+
+public class PathRateLimiterTest {
+
+    private static final String PATH = "/GroundItemOwnedBy";
+
+    private final AtomicLong clockMillis = new AtomicLong(1_000_000);
+    private final PathRateLimiter rateLimiter = new PathRateLimiter(clockMillis::get);
+
+    @After
+    public void tearDown() {
+        rateLimiter.close();
+    }
+
+    @Test
+    public void pathsWithoutBudgetAreNotLimited() {
+        for (int i = 0; i < 1_000; i++) {
+            assertTrue(rateLimiter.acquire(PATH, WritePriority.Background).isDone());
+        }
+        assertTrue(rateLimiter.getBuckets().isEmpty());
+    }
+
+    @Test
+    public void burstIsSentRightAway() {
+        rateLimiter.setBudget(PATH, 5, 1);
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(rateLimiter.acquire(PATH, WritePriority.Background).isDone());
+        }
+        assertEquals(0, bucket().getDelayedCount());
+    }
+
+    @Test
+    public void backgroundWritesOverBudgetWait() {
+        rateLimiter.setBudget(PATH, 2, 1);
+        rateLimiter.acquire(PATH, WritePriority.Background);
+        rateLimiter.acquire(PATH, WritePriority.Background);
+
+        CompletableFuture<Void> delayed = rateLimiter.acquire(PATH, WritePriority.Background);
+
+        assertFalse(delayed.isDone());
+        assertEquals(1, bucket().getDelayedCount());
+        assertEquals(0, bucket().getOverBudgetCount());
+    }
+
+    @Test
+    public void otherWritesOverBudgetAreSentAndCounted() {
+        rateLimiter.setBudget(PATH, 2, 1);
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(rateLimiter.acquire(PATH, WritePriority.Normal).isDone());
+        }
+        assertEquals(3, bucket().getOverBudgetCount());
+        assertEquals(0, bucket().getDelayedCount());
+    }
+
+    @Test
+    public void tokensRefillOverTimeUpToTheBurst() {
+        rateLimiter.setBudget(PATH, 2, 2);
+        rateLimiter.acquire(PATH, WritePriority.Normal);
+        rateLimiter.acquire(PATH, WritePriority.Normal);
+
+        // Half a minute at two writes per minute is one token
+        clockMillis.addAndGet(30_000);
+        rateLimiter.acquire(PATH, WritePriority.Normal);
+        assertEquals(0, bucket().getOverBudgetCount());
+
+        // A long quiet period never gives more than the burst
+        clockMillis.addAndGet(3_600_000);
+        for (int i = 0; i < 3; i++) {
+            rateLimiter.acquire(PATH, WritePriority.Normal);
+        }
+        assertEquals(1, bucket().getOverBudgetCount());
+    }
+
+    @Test
+    public void clockGoingBackDoesNotStallWrites() {
+        rateLimiter.setBudget(PATH, 2, 120);
+        rateLimiter.acquire(PATH, WritePriority.Normal);
+
+        clockMillis.addAndGet(-3_600_000);
+        rateLimiter.acquire(PATH, WritePriority.Normal);
+        assertEquals(0, bucket().getOverBudgetCount());
+
+        // Refilling picks up from the clock as it is now
+        clockMillis.addAndGet(30_000);
+        for (int i = 0; i < 2; i++) {
+            assertTrue(rateLimiter.acquire(PATH, WritePriority.Background).isDone());
+        }
+        assertEquals(0, bucket().getDelayedCount());
+    }
+
+    @Test
+    public void removedBudgetIsNoLongerLimited() {
+        rateLimiter.setBudget(PATH, 1, 1);
+        rateLimiter.acquire(PATH, WritePriority.Background);
+        rateLimiter.removeBudget(PATH);
+
+        assertTrue(rateLimiter.acquire(PATH, WritePriority.Background).isDone());
+    }
+
+    @Test
+    public void concurrentWritesTakeEveryTokenOnce() throws Exception {
+        int threads = 8;
+        int writesPerThread = 500;
+        int burst = 100;
+        rateLimiter.setBudget(PATH, burst, 1);
+
+        runConcurrently(threads, writesPerThread, WritePriority.Normal, rateLimiter, null);
+
+        assertEquals(threads * writesPerThread - burst, bucket().getOverBudgetCount());
+    }
+
+    @Test
+    public void backgroundWritesUnderLoadKeepToTheBudget() throws Exception {
+        int threads = 8;
+        int writesPerThread = 25;
+        int burst = 10;
+        double writesPerSecond = 100;
+        PathRateLimiter realTimeLimiter = new PathRateLimiter();
+        realTimeLimiter.setBudget(PATH, burst, writesPerSecond * 60);
+        List<Long> sentAtNanos = Collections.synchronizedList(new ArrayList<>());
+
+        long startNanos = System.nanoTime();
+        try {
+            runConcurrently(threads, writesPerThread, WritePriority.Background, realTimeLimiter,
+                sentAtNanos);
+        } finally {
+            realTimeLimiter.close();
+        }
+
+        int writes = threads * writesPerThread;
+        assertEquals(writes, sentAtNanos.size());
+        double expectedSeconds = (writes - burst) / writesPerSecond;
+        double elapsedSeconds = (System.nanoTime() - startNanos) / 1e9;
+        assertTrue("took " + elapsedSeconds + " s", elapsedSeconds >= expectedSeconds * 0.9);
+        assertTrue("took " + elapsedSeconds + " s", elapsedSeconds <= expectedSeconds * 2);
+
+        // No half second sends more than the burst plus what the rate allows, give or take a
+        // few for scheduling
+        List<Long> sorted = new ArrayList<>(sentAtNanos);
+        Collections.sort(sorted);
+        long windowNanos = TimeUnit.MILLISECONDS.toNanos(500);
+        int maxInWindow = (int) (burst + writesPerSecond / 2) + 5;
+        for (int first = 0, last = 0; first < sorted.size(); first++) {
+            while (last < sorted.size() && sorted.get(last) - sorted.get(first) < windowNanos) {
+                last++;
+            }
+            assertTrue("sent " + (last - first) + " in half a second", last - first <= maxInWindow);
+        }
+    }
+
+    private PathRateLimiter.Bucket bucket() {
+        return rateLimiter.getBuckets().get(PATH);
+    }
+
+    private static void runConcurrently(int threads, int writesPerThread, WritePriority priority,
+        PathRateLimiter limiter, List<Long> sentAtNanos) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<CompletableFuture<Void>> futures = Collections.synchronizedList(new ArrayList<>());
+        List<Future<?>> submitted = new ArrayList<>();
+        try {
+            for (int t = 0; t < threads; t++) {
+                submitted.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < writesPerThread; i++) {
+                        CompletableFuture<Void> future = limiter.acquire(PATH, priority);
+                        if (sentAtNanos != null) {
+                            future = future.thenRun(() -> sentAtNanos.add(System.nanoTime()));
+                        }
+                        futures.add(future);
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : submitted) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
+                .get(10, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.elertan.remote;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+
+public class PrioritizedWriteDispatcherTest {
+
+    // Round trip of a single write to the database
+    private static final long WRITE_MILLIS = 50;
+    private static final int STORM_WRITES = 200;
+
+    private final PrioritizedWriteDispatcher dispatcher = new PrioritizedWriteDispatcher();
+    private final ScheduledExecutorService remote = Executors.newScheduledThreadPool(4);
+
+    @After
+    public void tearDown() {
+        remote.shutdownNow();
+    }
+
+    @Test
+    public void writesOfALaneAreSentInOrder() throws Exception {
+        List<Integer> sent = new ArrayList<>();
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            int index = i;
+            futures.add(dispatcher.submit(WritePriority.Background, () -> {
+                synchronized (sent) {
+                    sent.add(index);
+                }
+                return answerAfter(1);
+            }));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
+            .get(5, TimeUnit.SECONDS);
+
+        // Two on the wire at once, the second may be sent before the first
+        assertEquals(10, sent.size());
+        for (int i = 2; i < sent.size(); i++) {
+            assertTrue("sent " + sent, sent.get(i) > sent.get(i - 2));
+        }
+    }
+
+    @Test
+    public void criticalLatencyStaysFlatDuringABackgroundWriteStorm() throws Exception {
+        long quietMillis = criticalWriteMillis();
+
+        // Ground item ownership flooding in, far more than its lane can send at once
+        List<CompletableFuture<Void>> storm = new ArrayList<>();
+        for (int i = 0; i < STORM_WRITES; i++) {
+            storm.add(dispatcher.submit(WritePriority.Background, () -> answerAfter(WRITE_MILLIS)));
+        }
+        long stormMillis = criticalWriteMillis();
+        long criticalDoneNanos = System.nanoTime();
+        CompletableFuture.allOf(storm.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+        long drainMillis = (System.nanoTime() - criticalDoneNanos) / 1_000_000;
+
+        System.out.printf(
+            "Critical write: %d ms when quiet, %d ms during %d background writes that took %d ms more to drain%n",
+            quietMillis,
+            stormMillis,
+            STORM_WRITES,
+            drainMillis
+        );
+
+        // The background lane alone needs STORM_WRITES / 2 round trips
+        assertTrue("background drained in " + drainMillis + " ms", drainMillis > 10 * WRITE_MILLIS);
+        assertTrue(
+            "critical write took " + stormMillis + " ms, " + quietMillis + " ms when quiet",
+            stormMillis < quietMillis + 4 * WRITE_MILLIS
+        );
+    }
+
+    private long criticalWriteMillis() throws Exception {
+        long startNanos = System.nanoTime();
+        dispatcher.submit(WritePriority.Critical, () -> answerAfter(WRITE_MILLIS))
+            .get(5, TimeUnit.SECONDS);
+        return (System.nanoTime() - startNanos) / 1_000_000;
+    }
+
+    private CompletableFuture<Void> answerAfter(long millis) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        remote.schedule(() -> future.complete(null), millis, TimeUnit.MILLISECONDS);
+        return future;
+    }
+}
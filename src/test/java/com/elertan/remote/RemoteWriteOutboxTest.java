@@ -0,0 +1,354 @@
+package com.elertan.remote;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RemoteWriteOutboxTest {
+
+    private static final Supplier<CompletableFuture<Void>> SENT =
+        () -> CompletableFuture.completedFuture(null);
+    private static final Supplier<CompletableFuture<Void>> UNREACHABLE =
+        () -> failed(new IOException("network is unreachable"));
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Gson gson = new Gson();
+    private final List<Map<String, JsonElement>> batches =
+        Collections.synchronizedList(new ArrayList<>());
+    private Function<Map<String, JsonElement>, CompletableFuture<Void>> batchWriter;
+    private File journalFile;
+    private RemoteWriteOutbox outbox;
+
+    @Before
+    public void setUp() throws Exception {
+        journalFile = new File(folder.getRoot(), "outbox.jsonl");
+        batchWriter = valuesByPath -> CompletableFuture.completedFuture(null);
+        outbox = open();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        outbox.close();
+    }
+
+    @Test
+    public void acceptedWritesAreNotKept() throws Exception {
+        write("/UnlockedItems/b4151", 1, SENT);
+        write("/Members/1", 2, SENT);
+
+        assertEquals(0, outbox.getPendingCount());
+        outbox.replay().get(5, TimeUnit.SECONDS);
+        assertTrue(batches.isEmpty());
+    }
+
+    @Test
+    public void writesMadeWhileTheNetworkIsCutAreReplayed() throws Exception {
+        write("/UnlockedItems/b4151", 1, SENT);
+        write("/UnlockedItems/b995", 1, UNREACHABLE);
+        write("/UnlockedItems/b995", 2, UNREACHABLE);
+        write("/Members/1", 3, UNREACHABLE);
+
+        assertEquals(2, outbox.getPendingCount());
+        outbox.replay().get(5, TimeUnit.SECONDS);
+
+        assertEquals(1, batches.size());
+        Map<String, JsonElement> expected = new LinkedHashMap<>();
+        expected.put("/UnlockedItems/b995", new JsonPrimitive(2));
+        expected.put("/Members/1", new JsonPrimitive(3));
+        assertEquals(expected, batches.get(0));
+        assertEquals(0, outbox.getPendingCount());
+    }
+
+    @Test
+    public void pendingWritesAreReportedUntilReplayed() throws Exception {
+        write("/UnlockedItems/4151", 1, SENT);
+        write("/UnlockedItems/995", 1, UNREACHABLE);
+        write("/Members", 2, UNREACHABLE);
+
+        assertFalse(outbox.hasPendingWrite("/UnlockedItems/4151"));
+        assertTrue(outbox.hasPendingWrite("/UnlockedItems/995"));
+        assertFalse(outbox.hasPendingWrite("/UnlockedItems/99"));
+        assertFalse(outbox.hasPendingWrite("/UnlockedItems"));
+        // Written as a whole
+        assertTrue(outbox.hasPendingWrite("/Members/1"));
+
+        outbox.replay().get(5, TimeUnit.SECONDS);
+        assertFalse(outbox.hasPendingWrite("/UnlockedItems/995"));
+        assertFalse(outbox.hasPendingWrite("/Members/1"));
+    }
+
+    @Test
+    public void refusedWritesAreNotKept() throws Exception {
+        CompletableFuture<Void> future = outbox.submit(
+            Collections.singletonMap("/UnlockedItems/b1", new JsonPrimitive(1)),
+            () -> failed(new IllegalStateException("permission denied"))
+        );
+
+        assertTrue(future.isCompletedExceptionally() || waitFailed(future));
+        assertEquals(0, outbox.getPendingCount());
+    }
+
+    @Test
+    public void pendingWritesSurviveACrash() throws Exception {
+        write("/UnlockedItems/b4151", 1, UNREACHABLE);
+        write("/UnlockedItems/b4151", 2, UNREACHABLE);
+        write("/Members/1", 3, UNREACHABLE);
+        write("/Members/2", 4, SENT);
+        // The crash happened halfway through appending a line
+        try (OutputStream out = new FileOutputStream(journalFile, true)) {
+            out.write("{\"op\":\"write\",\"id\":99,\"pa".getBytes(StandardCharsets.UTF_8));
+        }
+
+        // Not closed, as after a crash
+        RemoteWriteOutbox restarted = open();
+        try {
+            assertEquals(2, restarted.getPendingCount());
+            restarted.replay().get(5, TimeUnit.SECONDS);
+            assertEquals(0, restarted.getPendingCount());
+        } finally {
+            restarted.close();
+        }
+
+        Map<String, JsonElement> expected = new LinkedHashMap<>();
+        expected.put("/UnlockedItems/b4151", new JsonPrimitive(2));
+        expected.put("/Members/1", new JsonPrimitive(3));
+        assertEquals(Collections.singletonList(expected), batches);
+
+        // Acknowledged by the replay, nothing is left for the next start
+        RemoteWriteOutbox againRestarted = open();
+        try {
+            assertEquals(0, againRestarted.getPendingCount());
+        } finally {
+            againRestarted.close();
+        }
+    }
+
+    @Test
+    public void ancestorsAndDescendantsAreReplayedInSeparateBatchesInOrder() throws Exception {
+        write("/UnlockedItems/b1", 1, UNREACHABLE);
+        write("/UnlockedItems", 2, UNREACHABLE);
+        write("/UnlockedItems/b2", 3, UNREACHABLE);
+        write("/Members/1", 4, UNREACHABLE);
+        write("/UnlockedItemsSharded/b0", 5, UNREACHABLE);
+
+        outbox.replay().get(5, TimeUnit.SECONDS);
+
+        assertEquals(3, batches.size());
+        assertEquals(
+            listOf("/UnlockedItems/b1", "/Members/1", "/UnlockedItemsSharded/b0"),
+            new ArrayList<>(batches.get(0).keySet())
+        );
+        assertEquals(listOf("/UnlockedItems"), new ArrayList<>(batches.get(1).keySet()));
+        assertEquals(listOf("/UnlockedItems/b2"), new ArrayList<>(batches.get(2).keySet()));
+    }
+
+    @Test
+    public void refusedWriteIsDroppedWithoutTheRestOfItsBatch() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            write("/UnlockedItems/b" + i, i, UNREACHABLE);
+        }
+        List<String> written = Collections.synchronizedList(new ArrayList<>());
+        batchWriter = valuesByPath -> {
+            if (valuesByPath.containsKey("/UnlockedItems/b7")) {
+                return failed(new IllegalStateException("400 invalid data"));
+            }
+            written.addAll(valuesByPath.keySet());
+            return CompletableFuture.completedFuture(null);
+        };
+
+        outbox.replay().get(5, TimeUnit.SECONDS);
+
+        assertEquals(9, written.size());
+        assertFalse(written.contains("/UnlockedItems/b7"));
+        assertEquals(0, outbox.getPendingCount());
+    }
+
+    @Test
+    public void unreachableRemoteDuringReplayKeepsTheWrites() throws Exception {
+        write("/UnlockedItems/b1", 1, UNREACHABLE);
+        batchWriter = valuesByPath -> failed(new IOException("timeout"));
+
+        assertTrue(waitFailed(outbox.replay()));
+        assertEquals(1, outbox.getPendingCount());
+
+        batchWriter = valuesByPath -> CompletableFuture.completedFuture(null);
+        outbox.replay().get(5, TimeUnit.SECONDS);
+        assertEquals(0, outbox.getPendingCount());
+    }
+
+    @Test
+    public void failedWritesAreReplayedWithoutAReconnect() throws Exception {
+        outbox.close();
+        outbox = open(50);
+        AtomicInteger attempts = new AtomicInteger();
+        // The remote answers 503 twice, then accepts the write
+        batchWriter = valuesByPath -> attempts.incrementAndGet() <= 2
+            ? failed(new IOException("HTTP 503"))
+            : CompletableFuture.completedFuture(null);
+
+        write("/UnlockedItems/b1", 1, UNREACHABLE);
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (outbox.getPendingCount() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, outbox.getPendingCount());
+        assertEquals(3, attempts.get());
+        assertEquals(1, batches.size());
+    }
+
+    @Test
+    public void writeMadeDuringReplayIsNotOverwrittenByTheReplay() throws Exception {
+        // Two batches, the second one is superseded while the first is sent
+        for (int i = 0; i < 300; i++) {
+            write("/UnlockedItems/b" + i, i, UNREACHABLE);
+        }
+        AtomicInteger batchCount = new AtomicInteger();
+        batchWriter = valuesByPath -> {
+            if (batchCount.incrementAndGet() == 1) {
+                outbox.submit(
+                    Collections.singletonMap("/UnlockedItems/b299", new JsonPrimitive(-1)),
+                    SENT
+                ).join();
+            }
+            return CompletableFuture.completedFuture(null);
+        };
+
+        outbox.replay().get(5, TimeUnit.SECONDS);
+
+        assertEquals(2, batches.size());
+        assertEquals(250, batches.get(0).size());
+        assertEquals(49, batches.get(1).size());
+        assertFalse(batches.get(1).containsKey("/UnlockedItems/b299"));
+        assertEquals(0, outbox.getPendingCount());
+    }
+
+    @Test
+    public void reroutedWritesAreReplayedToTheirNewPath() throws Exception {
+        write("/UnlockedItems/4151", 1, UNREACHABLE);
+        write("/UnlockedItems/995", 2, UNREACHABLE);
+        write("/UnlockedItemsSharded/b0/995", 3, UNREACHABLE);
+        write("/Members/1", 4, UNREACHABLE);
+
+        outbox.reroute(
+            "/UnlockedItems",
+            path -> path.replace("/UnlockedItems/", "/UnlockedItemsSharded/b0/")
+        ).get(5, TimeUnit.SECONDS);
+
+        // Not closed, the journal alone has to tell where the writes went
+        RemoteWriteOutbox restarted = open();
+        try {
+            assertEquals(3, restarted.getPendingCount());
+            restarted.replay().get(5, TimeUnit.SECONDS);
+        } finally {
+            restarted.close();
+        }
+
+        Map<String, JsonElement> expected = new LinkedHashMap<>();
+        // The write made to the new path is newer than the one moved there
+        expected.put("/UnlockedItemsSharded/b0/995", new JsonPrimitive(3));
+        expected.put("/Members/1", new JsonPrimitive(4));
+        expected.put("/UnlockedItemsSharded/b0/4151", new JsonPrimitive(1));
+        assertEquals(1, batches.size());
+        assertEquals(expected, batches.get(0));
+    }
+
+    @Test
+    public void journalsAndReplaysTenThousandWritesWithinTwoSecondsEach() throws Exception {
+        int writes = 10_000;
+        List<CompletableFuture<Void>> futures = new ArrayList<>(writes);
+
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < writes; i++) {
+            futures.add(outbox.submit(
+                Collections.singletonMap("/UnlockedItems/b" + i, new JsonPrimitive(i)),
+                UNREACHABLE
+            ));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
+            .get(10, TimeUnit.SECONDS);
+        long journalMillis = (System.nanoTime() - startNanos) / 1_000_000;
+        assertEquals(writes, outbox.getPendingCount());
+
+        startNanos = System.nanoTime();
+        outbox.replay().get(10, TimeUnit.SECONDS);
+        long replayMillis = (System.nanoTime() - startNanos) / 1_000_000;
+
+        assertEquals(0, outbox.getPendingCount());
+        assertEquals(writes / 250, batches.size());
+        assertTrue("journaling took " + journalMillis + " ms", journalMillis < 2_000);
+        assertTrue("replay took " + replayMillis + " ms", replayMillis < 2_000);
+    }
+
+    private RemoteWriteOutbox open() {
+        // Replayed by the tests themselves
+        return open(TimeUnit.HOURS.toMillis(1));
+    }
+
+    private RemoteWriteOutbox open(long retryMinMillis) {
+        return new RemoteWriteOutbox(
+            journalFile,
+            gson,
+            valuesByPath -> {
+                // Only the batches the remote accepted are recorded
+                Map<String, JsonElement> batch = new LinkedHashMap<>(valuesByPath);
+                return batchWriter.apply(batch).thenRun(() -> batches.add(batch));
+            },
+            throwable -> throwable instanceof IOException,
+            retryMinMillis
+        );
+    }
+
+    private void write(String path, int value, Supplier<CompletableFuture<Void>> send)
+        throws Exception {
+        outbox.submit(Collections.singletonMap(path, new JsonPrimitive(value)), send)
+            .get(5, TimeUnit.SECONDS);
+    }
+
+    private static boolean waitFailed(CompletableFuture<Void> future) {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            return false;
+        } catch (Exception e) {
+            return true;
+        }
+    }
+
+    private static List<String> listOf(String... values) {
+        List<String> list = new ArrayList<>();
+        Collections.addAll(list, values);
+        return list;
+    }
+
+    private static CompletableFuture<Void> failed(Throwable throwable) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        future.completeExceptionally(throwable);
+        return future;
+    }
+}
@@ -0,0 +1,193 @@
+package com.elertan.remote.firebase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.Okio;
+import okio.Source;
+import okio.Timeout;
+import org.junit.Test;
+
+public class FirebaseSSEReaderTest {
+
+    // As recorded from a stream of /UnlockedItems
+    private static final String RECORDED_STREAM = ""
+        + "event: put\n"
+        + "data: {\"path\":\"/\",\"data\":{\"b4151\":{\"itemId\":4151,\"itemName\":\"Abyssal whip\"}}}\n"
+        + "\n"
+        + "event: keep-alive\n"
+        + "data: null\n"
+        + "\n"
+        + "event: patch\n"
+        + "data: {\"path\":\"/\",\"data\":{\"b995\":{\"itemId\":995,\"itemName\":\"Coins\"}}}\n"
+        + "\n"
+        + "event: put\n"
+        + "data: {\"path\":\"/b995\",\"data\":null}\n"
+        + "\n";
+    private static final int RECORDING_REPEATS = 50_000;
+
+    @Test
+    public void framesRecordedStreamIntoEvents() throws Exception {
+        List<String[]> events = readAll(source(RECORDED_STREAM));
+
+        assertEquals(4, events.size());
+        assertEvent(events.get(0), "put",
+            "{\"path\":\"/\",\"data\":{\"b4151\":{\"itemId\":4151,\"itemName\":\"Abyssal whip\"}}}");
+        assertEvent(events.get(1), "keep-alive", "null");
+        assertEvent(events.get(2), "patch",
+            "{\"path\":\"/\",\"data\":{\"b995\":{\"itemId\":995,\"itemName\":\"Coins\"}}}");
+        assertEvent(events.get(3), "put", "{\"path\":\"/b995\",\"data\":null}");
+    }
+
+    @Test
+    public void framesTheSameWhenBytesArriveInSmallChunks() throws Exception {
+        List<String[]> expected = readAll(source(RECORDED_STREAM));
+        for (int chunkSize = 1; chunkSize <= 7; chunkSize++) {
+            List<String[]> events = readAll(chunkedSource(RECORDED_STREAM, chunkSize));
+
+            assertEquals(expected.size(), events.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertEvent(events.get(i), expected.get(i)[0], expected.get(i)[1]);
+            }
+        }
+    }
+
+    @Test
+    public void acceptsCrLfAndNoSpaceAfterTheField() throws Exception {
+        List<String[]> events = readAll(source("event:put\r\ndata:{\"a\":1}\r\n\r\n"));
+
+        assertEquals(1, events.size());
+        assertEvent(events.get(0), "put", "{\"a\":1}");
+    }
+
+    @Test
+    public void joinsDataLinesWithNewlines() throws Exception {
+        List<String[]> events = readAll(source("event: put\ndata: {\"a\":\ndata: 1}\n\n"));
+
+        assertEquals(1, events.size());
+        assertEvent(events.get(0), "put", "{\"a\":\n1}");
+    }
+
+    @Test
+    public void skipsCommentsUnknownFieldsAndExtraBlankLines() throws Exception {
+        List<String[]> events = readAll(source(
+            "\n\n: comment\nid: 1\nretry: 100\nevent: put\ndata: 1\n\n\n"));
+
+        assertEquals(1, events.size());
+        assertEvent(events.get(0), "put", "1");
+    }
+
+    @Test
+    public void decodesMultiByteCharacters() throws Exception {
+        List<String[]> events = readAll(chunkedSource(
+            "event: put\ndata: \"Éclair ✓\"\n\n", 1));
+
+        assertEquals(1, events.size());
+        assertEvent(events.get(0), "put", "\"Éclair ✓\"");
+    }
+
+    @Test
+    public void dropsAnUnfinishedEventAtTheEndOfTheStream() throws Exception {
+        FirebaseSSEReader reader = new FirebaseSSEReader(
+            source("event: put\ndata: 1\n\nevent: put\ndata: 2\n"), 1, TimeUnit.SECONDS);
+        List<String[]> events = new ArrayList<>();
+
+        assertTrue(reader.readEvent((name, data) -> events.add(toEvent(name, data))));
+        assertFalse(reader.readEvent((name, data) -> events.add(toEvent(name, data))));
+        assertEquals(1, events.size());
+    }
+
+    @Test
+    public void clearsTheDataOnceTheHandlerReturns() throws Exception {
+        FirebaseSSEReader reader = new FirebaseSSEReader(
+            source("event: put\ndata: 12345\n\nevent: keep-alive\n\n"), 1, TimeUnit.SECONDS);
+        List<Buffer> buffers = new ArrayList<>();
+
+        assertTrue(reader.readEvent((name, data) -> buffers.add(data)));
+        assertEquals(0, buffers.get(0).size());
+
+        // An event without data gets an empty buffer
+        assertTrue(reader.readEvent((name, data) -> assertEquals(0, data.size())));
+    }
+
+    @Test
+    public void readsTheRecordedStreamRepeatedly() throws Exception {
+        Buffer recording = new Buffer();
+        for (int i = 0; i < RECORDING_REPEATS; i++) {
+            recording.writeUtf8(RECORDED_STREAM);
+        }
+        long bytes = recording.size();
+        FirebaseSSEReader reader = new FirebaseSSEReader(recording, 1, TimeUnit.SECONDS);
+        long[] eventCount = {0};
+
+        long startNanos = System.nanoTime();
+        while (reader.readEvent((name, data) -> eventCount[0]++)) {
+            // Keep reading until the stream ends
+        }
+        long elapsedNanos = Math.max(1, System.nanoTime() - startNanos);
+
+        System.out.printf(
+            "Recorded stream: %d events, %d KiB in %d ms (%d events/s, %.1f MiB/s)%n",
+            eventCount[0],
+            bytes / 1024,
+            elapsedNanos / 1_000_000,
+            eventCount[0] * 1_000_000_000L / elapsedNanos,
+            bytes * 1e9 / elapsedNanos / (1024 * 1024)
+        );
+
+        assertEquals(4L * RECORDING_REPEATS, eventCount[0]);
+    }
+
+    private static List<String[]> readAll(BufferedSource source) throws Exception {
+        FirebaseSSEReader reader = new FirebaseSSEReader(source, 1, TimeUnit.SECONDS);
+        List<String[]> events = new ArrayList<>();
+        while (reader.readEvent((name, data) -> events.add(toEvent(name, data)))) {
+            // Keep reading until the stream ends
+        }
+        return events;
+    }
+
+    private static String[] toEvent(String name, Buffer data) {
+        return new String[]{name, data.readUtf8()};
+    }
+
+    private static void assertEvent(String[] event, String name, String data) {
+        assertEquals(name, event[0]);
+        assertEquals(data, event[1]);
+    }
+
+    private static BufferedSource source(String stream) {
+        return new Buffer().writeUtf8(stream);
+    }
+
+    // Hands out at most chunkSize bytes per read, like a slow connection
+    private static BufferedSource chunkedSource(String stream, int chunkSize) {
+        Buffer bytes = new Buffer().writeUtf8(stream);
+        return Okio.buffer(new Source() {
+            @Override
+            public long read(Buffer sink, long byteCount) {
+                if (bytes.size() == 0) {
+                    return -1;
+                }
+                long count = Math.min(Math.min(byteCount, chunkSize), bytes.size());
+                sink.write(bytes, count);
+                return count;
+            }
+
+            @Override
+            public Timeout timeout() {
+                return Timeout.NONE;
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+    }
+}
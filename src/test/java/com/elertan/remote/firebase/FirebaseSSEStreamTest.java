@@ -0,0 +1,146 @@
+package com.elertan.remote.firebase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import okhttp3.OkHttpClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FirebaseSSEStreamTest {
+
+    private static final String RESUME_QUERY = "startAt=1";
+
+    private final BlockingQueue<String> requestLines = new LinkedBlockingQueue<>();
+    private final BlockingQueue<JsonElement> events = new LinkedBlockingQueue<>();
+    private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+    private ServerSocket serverSocket;
+    private FirebaseSSEStream stream;
+
+    @Before
+    public void setUp() throws Exception {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptThread = new Thread(this::accept, "fake-firebase");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+
+        // Every Firebase host resolves to the fake server
+        OkHttpClient httpClient = new OkHttpClient.Builder()
+            .dns(hostname -> Collections.singletonList(InetAddress.getLoopbackAddress()))
+            .build();
+        FirebaseSSERouter router = new FirebaseSSERouter();
+        router.register("/Items", new FirebaseSSERouter.Handler<JsonElement>() {
+            @Override
+            public JsonElement decode(FirebaseSSEType type, String[] keySegments,
+                JsonReader reader) {
+                return new JsonParser().parse(reader);
+            }
+
+            @Override
+            public void onEvent(FirebaseSSEType type, String[] keySegments, JsonElement data) {
+                events.add(data);
+            }
+        });
+        stream = new FirebaseSSEStream(
+            FirebaseSSEStream.createClient(httpClient),
+            new FirebaseRealtimeDatabaseURL(
+                "http://bu-test.firebaseio.com:" + serverSocket.getLocalPort()),
+            "/Items",
+            router
+        );
+        stream.setResumeQuerySupplier(() -> RESUME_QUERY);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        stream.stop();
+        serverSocket.close();
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void reconnectsRightAwayWithTheResumeQueryAfterAWake() throws Exception {
+        SleepDetector detector = new SleepDetector();
+        detector.addWakeListener(stream::reconnectAfterWake);
+        stream.start();
+
+        assertNotNull(events.poll(5, TimeUnit.SECONDS));
+        assertFalse(requestLines.take().contains(RESUME_QUERY));
+        assertEquals(-1, stream.getLastWakeToFirstEventMillis());
+
+        // The socket stays open but silent, as one does after the system slept
+        long nanos = System.nanoTime();
+        long millis = System.currentTimeMillis();
+        detector.reset(nanos, millis);
+        assertTrue(detector.tick(nanos + TimeUnit.SECONDS.toNanos(2), millis + 60_000));
+
+        assertNotNull(events.poll(5, TimeUnit.SECONDS));
+        String resumeRequestLine = requestLines.take();
+        long wakeToFirstEventMillis = stream.getLastWakeToFirstEventMillis();
+
+        System.out.printf("Wake to first live event: %d ms%n", wakeToFirstEventMillis);
+
+        // Only what changed while asleep is requested again
+        assertTrue(resumeRequestLine, resumeRequestLine.contains(RESUME_QUERY));
+        assertTrue(wakeToFirstEventMillis >= 0);
+        // Without the wake, the read timeout of 90 seconds would notice the dead socket first
+        assertTrue(wakeToFirstEventMillis + " ms", wakeToFirstEventMillis < 5_000);
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                sockets.add(socket);
+                serve(socket);
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    // Answers with a put of the data and then keeps the connection open without sending anything
+    private void serve(Socket socket) throws IOException {
+        BufferedReader reader = new BufferedReader(
+            new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        String requestLine = reader.readLine();
+        String header;
+        do {
+            header = reader.readLine();
+        } while (header != null && !header.isEmpty());
+        requestLines.add(requestLine);
+
+        OutputStream out = socket.getOutputStream();
+        out.write((""
+            + "HTTP/1.1 200 OK\r\n"
+            + "Content-Type: text/event-stream\r\n"
+            + "Connection: close\r\n"
+            + "\r\n"
+            + "event: put\n"
+            + "data: {\"path\":\"/\",\"data\":{\"1\":true}}\n"
+            + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+}
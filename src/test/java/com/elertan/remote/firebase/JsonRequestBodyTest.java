@@ -0,0 +1,142 @@
+package com.elertan.remote.firebase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import com.elertan.gson.UnlockedItemRecordAdapter;
+import com.elertan.models.ISOOffsetDateTime;
+import com.elertan.models.UnlockedItem;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.Okio;
+import org.junit.Test;
+
+public class JsonRequestBodyTest {
+
+    private static final int ITERATIONS = 200;
+
+    private final Gson gson = new Gson();
+    private final UnlockedItemRecordAdapter recordAdapter = new UnlockedItemRecordAdapter(false);
+
+    @Test
+    public void writesTheSameJsonAsGson() throws IOException {
+        JsonObject values = unlockedItems(3);
+
+        Buffer buffer = new Buffer();
+        new JsonRequestBody(gson, values).writeTo(buffer);
+
+        assertEquals(gson.toJson(values), buffer.readUtf8());
+    }
+
+    @Test
+    public void writesNullsWhenAsked() throws IOException {
+        Map<String, JsonElement> patch = new LinkedHashMap<>();
+        patch.put("b1", JsonNull.INSTANCE);
+        patch.put("b2", recordAdapter.toJsonTree(unlockedItem(2)));
+
+        Buffer buffer = new Buffer();
+        new JsonRequestBody(gson, patch, true).writeTo(buffer);
+
+        assertTrue(buffer.readUtf8().startsWith("{\"b1\":null,\"b2\":{"));
+    }
+
+    @Test
+    public void bufferedBodyKnowsItsSize() throws IOException {
+        JsonObject values = unlockedItems(100);
+
+        RequestBody body = JsonRequestBody.buffered(gson, values, false);
+
+        assertEquals(gson.toJson(values).length(), body.contentLength());
+    }
+
+    // Bytes allocated per write, streaming the tree into the sink against building a String of
+    // it first, as writes did before. Run with the tests so a regression shows up in the numbers.
+    @Test
+    public void streamingAllocatesLessThanAStringPerWrite() {
+        com.sun.management.ThreadMXBean threadBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        Map<String, JsonElement> sizes = new LinkedHashMap<>();
+        sizes.put("updateAll of 5000 items", unlockedItems(5000));
+        sizes.put("update of 1 item", recordAdapter.toJsonTree(unlockedItem(4151)));
+        Map<String, long[]> results = new HashMap<>();
+        for (Map.Entry<String, JsonElement> entry : sizes.entrySet()) {
+            JsonElement value = entry.getValue();
+            long streamed = allocatedBytesPerWrite(threadBean,
+                () -> new JsonRequestBody(gson, value));
+            long viaString = allocatedBytesPerWrite(threadBean,
+                () -> RequestBody.create(JsonRequestBody.JSON_MEDIA_TYPE, gson.toJson(value)));
+            results.put(entry.getKey(), new long[]{streamed, viaString});
+            System.out.printf(
+                "%s: %d bytes allocated streamed, %d bytes via a String%n",
+                entry.getKey(),
+                streamed,
+                viaString
+            );
+        }
+
+        long[] large = results.get("updateAll of 5000 items");
+        assertTrue("streamed " + large[0] + " bytes", large[0] * 4 < large[1]);
+        long[] small = results.get("update of 1 item");
+        assertTrue("streamed " + small[0] + " bytes", small[0] < small[1]);
+    }
+
+    private static long allocatedBytesPerWrite(com.sun.management.ThreadMXBean threadBean,
+        BodyFactory bodyFactory) {
+        long threadId = Thread.currentThread().getId();
+        // Warm up, so class loading and the JIT are not measured
+        writeBodies(bodyFactory, ITERATIONS);
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        writeBodies(bodyFactory, ITERATIONS);
+        return (threadBean.getThreadAllocatedBytes(threadId) - before) / ITERATIONS;
+    }
+
+    private static void writeBodies(BodyFactory bodyFactory, int count) {
+        try (BufferedSink sink = Okio.buffer(Okio.blackhole())) {
+            for (int i = 0; i < count; i++) {
+                bodyFactory.create().writeTo(sink);
+                sink.flush();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private JsonObject unlockedItems(int count) {
+        JsonObject values = new JsonObject();
+        for (int i = 0; i < count; i++) {
+            values.add("b" + i, recordAdapter.toJsonTree(unlockedItem(i)));
+        }
+        return values;
+    }
+
+    private static UnlockedItem unlockedItem(int id) {
+        return new UnlockedItem(
+            id,
+            "Item " + id,
+            1234567890123L + id,
+            new ISOOffsetDateTime(OffsetDateTime.of(2025, 1, 1, 12, 0, 0, 0, ZoneOffset.UTC)),
+            id % 3 == 0 ? null : id * 7
+        );
+    }
+
+    private interface BodyFactory {
+
+        RequestBody create();
+    }
+}
@@ -0,0 +1,113 @@
+package com.elertan.remote.firebase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SleepDetectorTest {
+
+    private static final long NANOS_PER_MILLI = 1_000_000;
+
+    private SleepDetector detector;
+    private AtomicInteger wakeCount;
+    private long nanos;
+    private long millis;
+
+    @Before
+    public void setUp() {
+        detector = new SleepDetector();
+        wakeCount = new AtomicInteger();
+        detector.addWakeListener(wakeCount::incrementAndGet);
+        nanos = 5_000 * NANOS_PER_MILLI;
+        millis = 1_700_000_000_000L;
+        detector.reset(nanos, millis);
+    }
+
+    @Test
+    public void regularTicksAreNotAWake() {
+        for (int i = 0; i < 100; i++) {
+            assertFalse(advance(2_000, 2_000));
+        }
+        assertEquals(0, wakeCount.get());
+    }
+
+    @Test
+    public void schedulingDelaysAndSmallClockCorrectionsAreNotAWake() {
+        assertFalse(advance(9_000, 9_000));
+        assertFalse(advance(2_000, 7_000));
+        assertFalse(advance(2_000, -3_000));
+        assertEquals(0, wakeCount.get());
+    }
+
+    @Test
+    public void sleepWhileTheMonotonicClockKeepsGoingIsAWake() {
+        // Both clocks moved on, the tick was just not scheduled while asleep
+        assertTrue(advance(60_000, 60_000));
+        assertEquals(1, wakeCount.get());
+    }
+
+    @Test
+    public void sleepWhileTheMonotonicClockStopsIsAWake() {
+        // Only the wall clock saw the time asleep
+        assertTrue(advance(2_000, 60_000));
+        assertEquals(1, wakeCount.get());
+    }
+
+    @Test
+    public void wallClockJumpingBackIsAWake() {
+        assertTrue(advance(2_000, -60_000));
+        assertEquals(1, wakeCount.get());
+    }
+
+    @Test
+    public void ticksAfterAWakeAreMeasuredFromTheWake() {
+        assertTrue(advance(2_000, 60_000));
+        assertFalse(advance(2_000, 2_000));
+        assertFalse(advance(2_000, 2_000));
+        assertEquals(1, wakeCount.get());
+    }
+
+    @Test
+    public void failingListenerDoesNotStopTheOthers() {
+        detector.addWakeListener(() -> {
+            throw new IllegalStateException("listener failed");
+        });
+        AtomicInteger laterListenerCount = new AtomicInteger();
+        detector.addWakeListener(laterListenerCount::incrementAndGet);
+
+        assertTrue(advance(60_000, 60_000));
+        assertEquals(1, wakeCount.get());
+        assertEquals(1, laterListenerCount.get());
+    }
+
+    @Test
+    public void removedListenerIsNotCalled() {
+        AtomicInteger removedListenerCount = new AtomicInteger();
+        Runnable removedListener = removedListenerCount::incrementAndGet;
+        detector.addWakeListener(removedListener);
+        detector.removeWakeListener(removedListener);
+
+        assertTrue(advance(60_000, 60_000));
+        assertEquals(0, removedListenerCount.get());
+    }
+
+    @Test
+    public void startAndStopCanBeCalledRepeatedly() {
+        detector.start();
+        detector.start();
+        detector.stop();
+        detector.stop();
+        detector.start();
+        detector.stop();
+    }
+
+    private boolean advance(long monotonicMillis, long wallMillis) {
+        nanos += monotonicMillis * NANOS_PER_MILLI;
+        millis += wallMillis;
+        return detector.tick(nanos, millis);
+    }
+}